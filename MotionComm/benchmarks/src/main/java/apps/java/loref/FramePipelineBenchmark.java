@@ -0,0 +1,147 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Time per frame of each stage of the frame pipeline, for each FrameScaler:
+ * decoding a camera frame, decoding and scaling it to the requested size,
+ * encoding the scaled image, and the three together, as done for a frame
+ * capture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class FramePipelineBenchmark {
+
+    /* constants */
+
+    static final float JPEG_QUALITY = 0.8f;
+    static final long POOL_SIZE = 32L * 1024 * 1024;
+
+    /* parameters */
+
+    @Param({ "AREA_AVERAGING", "PROGRESSIVE_BILINEAR", "DECODE_SUBSAMPLING" })
+    public FrameScalers scaler;
+
+    @Param({ "1280x720", "1920x1080" })
+    public String sourceSize;
+
+    @Param({ "320x240", "640x480" })
+    public String targetSize;
+
+    @Param({ "JPEG", "GIF" })
+    public FrameFormat format;
+
+    /* data */
+
+    private byte[] frame;
+    private int width;
+    private int height;
+    private BufferedImage scaledImage;
+    private FrameEncoder encoder;
+    private FrameBufferPool pool;
+
+    /* methods */
+
+    @Setup
+    public void setUp() throws IOException {
+
+	String[] source = sourceSize.split("x");
+	frame = MjpegFrameScannerBenchmark.generateFrame(Integer.parseInt(source[0]), Integer.parseInt(source[1]), 1);
+
+	String[] target = targetSize.split("x");
+	width = Integer.parseInt(target[0]);
+	height = Integer.parseInt(target[1]);
+
+	scaledImage = scaler.decodeAndScale(frame, 0, frame.length, width, height);
+	encoder = new FrameEncoder(format, JPEG_QUALITY);
+	pool = new FrameBufferPool(false, POOL_SIZE);
+
+    }
+
+    @TearDown
+    public void tearDown() {
+	encoder.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+	return scaler.decode(frame, 0, frame.length, width, height);
+    }
+
+    @Benchmark
+    public BufferedImage decodeAndScale() throws IOException {
+	return scaler.decodeAndScale(frame, 0, frame.length, width, height);
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+
+	FrameBuffer encoded = encoder.encode(scaledImage, pool);
+	int length = encoded.getLength();
+	encoded.release();
+
+	return length;
+
+    }
+
+    @Benchmark
+    public int decodeScaleEncode() throws IOException {
+
+	FrameBuffer encoded = encoder.encode(scaler.decodeAndScale(frame, 0, frame.length, width, height), pool);
+	int length = encoded.getLength();
+	encoded.release();
+
+	return length;
+
+    }
+
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.sf.jipcam.axis.MjpegInputStream;
+
+/*
+ * Time to extract a frame from an MJPEG stream held in memory, read in chunks
+ * of the given size as from a socket, with and without an EXIF thumbnail in
+ * the frames, by MjpegFrameScanner and by the jipcam MjpegInputStream it
+ * replaced. The stream repeats its frames endlessly, as a camera, so that a
+ * single reader serves the whole run.
+ * 
+ * The memory allocated per frame is reported by the GC profiler:
+ *   java -jar target/benchmarks.jar MjpegFrameScannerBenchmark -prof gc
+ * as gc.alloc.rate.norm, in bytes per operation, that is per frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MjpegFrameScannerBenchmark {
+
+    /* constants */
+
+    static final int FRAMES_PER_STREAM = 64;
+
+    /* subclasses */
+
+    /*
+     * in-memory stream returning at most chunkSize bytes per read. A looping
+     * stream starts again from the beginning of the data at its end.
+     */
+    static class ChunkedInputStream extends InputStream {
+
+	private final byte[] data;
+	private final int chunkSize;
+	private final boolean looping;
+	private int position = 0;
+
+	ChunkedInputStream(byte[] data, int chunkSize) {
+	    this(data, chunkSize, false);
+	}
+
+	ChunkedInputStream(byte[] data, int chunkSize, boolean looping) {
+	    this.data = data;
+	    this.chunkSize = chunkSize;
+	    this.looping = looping;
+	}
+
+	@Override
+	public int read() {
+
+	    if (looping && position >= data.length)
+		position = 0;
+
+	    return position < data.length ? data[position++] & 0xFF : -1;
+
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+
+	    if (looping && position >= data.length)
+		position = 0;
+
+	    if (position >= data.length)
+		return -1;
+
+	    int n = Math.min(Math.min(len, chunkSize), data.length - position);
+	    System.arraycopy(data, position, b, off, n);
+	    position += n;
+
+	    return n;
+
+	}
+
+    }
+
+    /* parameters */
+
+    @Param({ "640x480", "1280x720", "1920x1080" })
+    public String frameSize;
+
+    @Param({ "1460", "65536" })
+    public int chunkSize;
+
+    @Param({ "false", "true" })
+    public boolean thumbnail;
+
+    /* data */
+
+    private byte[] stream;
+    private MjpegFrameScanner scanner;
+    private MjpegInputStream jipcamStream;
+
+    /* methods */
+
+    @Setup
+    public void setUp() throws IOException {
+
+	String[] size = frameSize.split("x");
+	byte[] frame = generateFrame(Integer.parseInt(size[0]), Integer.parseInt(size[1]), 1);
+
+	if (thumbnail)
+	    frame = addThumbnail(frame, generateFrame(160, 120, 2));
+
+	stream = multipart(frame, FRAMES_PER_STREAM);
+
+	scanner = new MjpegFrameScanner(new ChunkedInputStream(stream, chunkSize, true));
+	jipcamStream = new MjpegInputStream(new ChunkedInputStream(stream, chunkSize, true));
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES_PER_STREAM)
+    public void scanFrames(Blackhole blackhole) throws IOException {
+
+	for (int i = 0; i < FRAMES_PER_STREAM; i++) {
+
+	    scanner.nextFrame();
+	    blackhole.consume(scanner.getFrameLength());
+
+	}
+
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES_PER_STREAM)
+    public void jipcamReadMjpegFrame(Blackhole blackhole) throws IOException {
+
+	for (int i = 0; i < FRAMES_PER_STREAM; i++)
+	    blackhole.consume(jipcamStream.readMjpegFrame());
+
+    }
+
+    /*
+     * Returns a JPEG of the given size, with a mix of flat and detailed areas
+     * as in a camera picture
+     */
+    static byte[] generateFrame(int width, int height, int seed) throws IOException {
+
+	BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	Random random = new Random(seed);
+
+	for (int y = 0; y < height; y++) {
+
+	    for (int x = 0; x < width; x++) {
+
+		int shade = (x * 255 / width + y * 255 / height) / 2;
+		int noise = y > height / 2 ? random.nextInt(64) : 0;
+		image.setRGB(x, y, ((shade + noise) & 0xFF) * 0x010101);
+
+	    }
+
+	}
+
+	ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+	ImageIO.write(image, "jpg", jpeg);
+	return jpeg.toByteArray();
+
+    }
+
+    /*
+     * inserts an EXIF APP1 segment holding the thumbnail after the
+     * start-of-image marker
+     */
+    static byte[] addThumbnail(byte[] jpeg, byte[] thumbnail) {
+
+	byte[] exifHeader = { 'E', 'x', 'i', 'f', 0, 0 };
+	int segmentLength = 2 + exifHeader.length + thumbnail.length;
+
+	ByteArrayOutputStream result = new ByteArrayOutputStream();
+	result.write(jpeg, 0, 2);
+	result.write(0xFF);
+	result.write(0xE1);
+	result.write(segmentLength >> 8);
+	result.write(segmentLength & 0xFF);
+	result.write(exifHeader, 0, exifHeader.length);
+	result.write(thumbnail, 0, thumbnail.length);
+	result.write(jpeg, 2, jpeg.length - 2);
+
+	return result.toByteArray();
+
+    }
+
+    /*
+     * Returns an MJPEG stream, as served by Motion, of the given frame
+     * repeated
+     */
+    static byte[] multipart(byte[] frame, int nOfFrames) {
+
+	ByteArrayOutputStream stream = new ByteArrayOutputStream();
+	byte[] header = ("--BoundaryString\r\nContent-type: image/jpeg\r\nContent-Length: " + frame.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+	for (int i = 0; i < nOfFrames; i++) {
+
+	    stream.write(header, 0, header.length);
+	    stream.write(frame, 0, frame.length);
+	    stream.write('\r');
+	    stream.write('\n');
+
+	}
+
+	return stream.toByteArray();
+
+    }
+
+}
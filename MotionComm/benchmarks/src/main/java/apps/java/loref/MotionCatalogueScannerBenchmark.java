@@ -0,0 +1,188 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Time to scan a Motion target tree of a million files, one subdirectory per
+ * day, sequentially, in parallel and with Files.walk() for reference, and
+ * time to parse a file name. The tree is created under java.io.tmpdir once
+ * per run, which takes a while, and deleted at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MotionCatalogueScannerBenchmark {
+
+    /* constants */
+
+    static final int NAMES = 10000;
+
+    /* parameters */
+
+    @Param({ "1000000" })
+    public int files;
+
+    @Param({ "10000" })
+    public int filesPerDirectory;
+
+    /* data */
+
+    private Path root;
+    private String[] names;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final MotionCatalogueScanner scanner = new MotionCatalogueScanner(zone);
+
+    /* methods */
+
+    @Setup
+    public void setUp() throws IOException {
+
+	root = Files.createTempDirectory("motion-catalogue");
+	names = new String[NAMES];
+
+	for (int i = 0; i < files; i++) {
+
+	    // one snapshot per second, and a movie every 10 snapshots
+	    int day = i / filesPerDirectory;
+	    int second = i % filesPerDirectory;
+	    String time = String.format("2026%02d%02d%02d%02d%02d", 1 + day / 28, 1 + day % 28, second / 3600, second / 60 % 60, second % 60);
+	    String name = second % 10 == 9 ? "01-" + time + ".mp4" : "01-" + time + "-00.jpg";
+
+	    if (second == 0)
+		Files.createDirectories(root.resolve(time.substring(0, 8)));
+
+	    Files.createFile(root.resolve(time.substring(0, 8)).resolve(name));
+
+	    if (i < NAMES)
+		names[i] = name;
+
+	}
+
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+	List<Path> paths = new ArrayList<Path>(files + files / filesPerDirectory + 1);
+
+	try (Stream<Path> tree = Files.walk(root)) {
+	    tree.sorted(Comparator.reverseOrder()).forEach(paths::add);
+	}
+
+	for (Path path : paths)
+	    Files.deleteIfExists(path);
+
+    }
+
+    @Benchmark
+    public long scanTree() throws IOException {
+
+	try (Stream<MotionFile> tree = scanner.scanTree(root)) {
+	    return tree.count();
+	}
+
+    }
+
+    @Benchmark
+    public long scanTreeParallel() throws IOException {
+
+	LongAdder snapshots = new LongAdder();
+	scanner.scanTreeParallel(root, file -> {
+	    if (file.getType() == MotionFile.Type.SNAPSHOT)
+		snapshots.increment();
+	});
+
+	return snapshots.sum();
+
+    }
+
+    /*
+     * the same scan with Files.walk(), which reads the attributes of every
+     * entry
+     */
+    @Benchmark
+    public long walk() throws IOException {
+
+	try (Stream<Path> tree = Files.walk(root)) {
+	    return tree.filter(path -> MotionFile.parse(path.getParent(), path.getFileName().toString(), zone) != null).count();
+	}
+
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(NAMES)
+    public long parse() {
+
+	long sum = 0;
+	Path directory = Paths.get("");
+
+	for (String name : names) {
+
+	    MotionFile file = MotionFile.parse(directory, name, zone);
+	    sum += file.getTimestamp();
+
+	}
+
+	return sum;
+
+    }
+
+}
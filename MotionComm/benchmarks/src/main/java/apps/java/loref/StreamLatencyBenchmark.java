@@ -0,0 +1,391 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URL;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Latency of the frames of a camera stream served at a fixed frame rate by
+ * FakeMotionServer, read by MotionComm (BLOCKING: blocking reads, flushed on
+ * the minimum chunk size or the flush deadline) and by the read loop it
+ * replaced (POLLING: available() polled, with a 500 ms sleep while at most
+ * 2048 bytes are buffered), both followed by MjpegFrameScanner.
+ * 
+ * timeToFirstFrame opens a stream and waits for its first frame. The stream
+ * of the previous invocation is closed first: a subscriber joining a stream
+ * still open waits for the next frame boundary instead, up to a frame
+ * interval.
+ * interFrameInterval waits for the next frame of an open stream: the spread
+ * of its percentiles around the frame interval is the jitter, and the
+ * intervals near zero are the frames delivered in bursts.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+public class StreamLatencyBenchmark {
+
+    /* constants */
+
+    static final String CAMERA_ID = "1";
+    static final long FRAME_TIMEOUT_MS = 10000L;
+
+    /* legacy read loop */
+    static final int DATA_SIZE_THRESHOLD = 2048;
+    static final long DATA_SIZE_THRESHOLD_WAIT_TIME_MS = 500L;
+    static final int PIPE_SIZE = 4 * 1024 * 1024;
+
+    /* subclasses */
+
+    public enum ReadMode {
+	BLOCKING, POLLING
+    }
+
+    /*
+     * the read loop of CameraDataStreamer before blocking reads, feeding a
+     * MjpegFrameScanner through a pipe. The receive time of each frame is
+     * passed to the consumer.
+     */
+    static class PollingStreamReader implements Closeable {
+
+	private final InputStream stream;
+	private final PipedOutputStream pipe;
+	private final Thread readingThread;
+	private final Thread scanningThread;
+	private volatile boolean running = true;
+
+	PollingStreamReader(int streamPort, LongConsumer onFrame) throws IOException {
+
+	    stream = new URL("http://127.0.0.1:" + streamPort).openStream();
+
+	    PipedInputStream scannerInput = new PipedInputStream(PIPE_SIZE);
+	    pipe = new PipedOutputStream(scannerInput);
+
+	    readingThread = new Thread(this::poll, "PollingStreamReader-read");
+	    scanningThread = new Thread(() -> scan(new MjpegFrameScanner(scannerInput), onFrame), "PollingStreamReader-scan");
+
+	    readingThread.setDaemon(true);
+	    scanningThread.setDaemon(true);
+	    readingThread.start();
+	    scanningThread.start();
+
+	}
+
+	private void poll() {
+
+	    try {
+
+		while (running) {
+
+		    int dataSize = stream.available();
+
+		    if (dataSize > DATA_SIZE_THRESHOLD) {
+
+			byte[] newData = new byte[dataSize];
+			int readBytes = stream.read(newData, 0, dataSize);
+
+			if (readBytes < 0)
+			    break;
+
+			pipe.write(newData, 0, readBytes);
+			pipe.flush();
+
+		    } else {
+
+			Thread.sleep(DATA_SIZE_THRESHOLD_WAIT_TIME_MS);
+
+		    }
+
+		}
+
+	    } catch (IOException | InterruptedException e) {
+
+		// closed
+
+	    } finally {
+
+		closeQuietly(pipe);
+
+	    }
+
+	}
+
+	private static void scan(MjpegFrameScanner scanner, LongConsumer onFrame) {
+
+	    try {
+
+		while (scanner.nextFrame())
+		    onFrame.accept(System.nanoTime());
+
+	    } catch (IOException e) {
+
+		// closed
+
+	    }
+
+	}
+
+	@Override
+	public void close() {
+
+	    running = false;
+	    readingThread.interrupt();
+	    closeQuietly(stream);
+
+	}
+
+    }
+
+    /*
+     * a stream kept open for the whole trial, queueing the receive time of
+     * its frames
+     */
+    @State(Scope.Benchmark)
+    public static class OpenStream {
+
+	private final BlockingQueue<Long> frameTimes = new LinkedBlockingQueue<Long>();
+	private FrameSubscription subscription;
+	private PollingStreamReader pollingReader;
+
+	@Setup
+	public void setUp(StreamLatencyBenchmark benchmark) throws IOException {
+
+	    if (benchmark.readMode == ReadMode.BLOCKING) {
+
+		subscription = benchmark.motionComm.subscribeFrames(CAMERA_ID, "interval", 0, 0, FrameFormat.JPEG, new FrameSubscriber() {
+
+		    @Override
+		    public void onSubscribe(FrameSubscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		    }
+
+		    @Override
+		    public void onFrame(String cameraID, byte[] frameData) {
+			frameTimes.add(System.nanoTime());
+		    }
+
+		    @Override
+		    public void onComplete() {
+		    }
+
+		});
+
+	    } else {
+
+		pollingReader = new PollingStreamReader(benchmark.motionServer.getStreamPort(CAMERA_ID), frameTimes::add);
+
+	    }
+
+	}
+
+	@TearDown
+	public void tearDown() {
+
+	    if (subscription != null)
+		subscription.cancel();
+
+	    if (pollingReader != null)
+		pollingReader.close();
+
+	}
+
+	long awaitFrame() throws InterruptedException {
+
+	    Long frameTime = frameTimes.poll(FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+	    if (frameTime == null)
+		throw new IllegalStateException("No frame received");
+
+	    return frameTime;
+
+	}
+
+    }
+
+    /*
+     * no stream open before each invocation
+     */
+    @State(Scope.Benchmark)
+    public static class NoOpenStream {
+
+	/*
+	 * waits for the stream of the previous invocation to be closed
+	 */
+	@Setup(Level.Invocation)
+	public void awaitStreamClosed(StreamLatencyBenchmark benchmark) throws InterruptedException {
+
+	    long deadline = System.currentTimeMillis() + FRAME_TIMEOUT_MS;
+
+	    while (benchmark.motionComm.getActiveStreamersCount() > 0) {
+
+		if (System.currentTimeMillis() > deadline)
+		    throw new IllegalStateException("Stream not closed");
+
+		Thread.sleep(1);
+
+	    }
+
+	}
+
+    }
+
+    /* parameters */
+
+    @Param({ "BLOCKING", "POLLING" })
+    public ReadMode readMode;
+
+    @Param({ "10", "25" })
+    public int framesPerSecond;
+
+    @Param({ "640x480" })
+    public String frameSize;
+
+    /* data */
+
+    private FakeMotionServer motionServer;
+    private MotionComm motionComm;
+
+    /* methods */
+
+    @Setup
+    public void setUp() throws IOException {
+
+	String[] size = frameSize.split("x");
+	motionServer = new FakeMotionServer(1, framesPerSecond, Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+
+	motionComm = new MotionComm("127.0.0.1", "benchmark", motionServer.getControlPort());
+
+	// each first frame comes from a new connection
+	motionComm.setStreamKeepWarm(0);
+
+    }
+
+    @TearDown
+    public void tearDown() {
+
+	motionComm.shutdown();
+	motionServer.close();
+
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 30)
+    public long timeToFirstFrame(NoOpenStream noOpenStream) throws Exception {
+
+	CompletableFuture<Long> firstFrame = new CompletableFuture<Long>();
+
+	if (readMode == ReadMode.BLOCKING) {
+
+	    FrameSubscription subscription = motionComm.subscribeFrames(CAMERA_ID, "first", 0, 0, FrameFormat.JPEG, new FrameSubscriber() {
+
+		@Override
+		public void onSubscribe(FrameSubscription subscription) {
+		    subscription.request(1);
+		}
+
+		@Override
+		public void onFrame(String cameraID, byte[] frameData) {
+		    firstFrame.complete(System.nanoTime());
+		}
+
+		@Override
+		public void onComplete() {
+		    firstFrame.completeExceptionally(new IOException("Stream ended before the first frame"));
+		}
+
+	    });
+
+	    try {
+		return firstFrame.get(FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	    } finally {
+		subscription.cancel();
+	    }
+
+	} else {
+
+	    PollingStreamReader reader = new PollingStreamReader(motionServer.getStreamPort(CAMERA_ID), firstFrame::complete);
+
+	    try {
+		return firstFrame.get(FRAME_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	    } finally {
+		reader.close();
+	    }
+
+	}
+
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @Warmup(iterations = 2, time = 5)
+    @Measurement(iterations = 5, time = 10)
+    public long interFrameInterval(OpenStream openStream) throws InterruptedException {
+
+	return openStream.awaitFrame();
+
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+
+	try {
+	    closeable.close();
+	} catch (IOException e) {
+	    // already closed
+	}
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Immutable snapshot of the cameras of a Motion instance, as returned by
+ * MotionComm.getCameraInventory()
+ */
+public final class CameraInventory {
+
+    /*
+     * subclasses
+     */
+    public static final class Camera {
+
+	private final String threadID;
+	private final String cameraName;
+	private final String streamPort;
+	private final int streamMaxRate;
+	private final String detectionStatus;
+
+	Camera(String threadID, String cameraName, String streamPort, int streamMaxRate, String detectionStatus) {
+
+	    this.threadID = threadID;
+	    this.cameraName = cameraName;
+	    this.streamPort = streamPort;
+	    this.streamMaxRate = streamMaxRate;
+	    this.detectionStatus = detectionStatus;
+
+	}
+
+	public String getThreadID() {
+	    return threadID;
+	}
+
+	public String getCameraName() {
+	    return cameraName;
+	}
+
+	public String getStreamPort() {
+	    return streamPort;
+	}
+
+	/*
+	 * returns the "stream_maxrate" parameter, or -1 if it could not be read
+	 */
+	public int getStreamMaxRate() {
+	    return streamMaxRate;
+	}
+
+	/*
+	 * returns the detection status, as returned by
+	 * MotionComm.getThreadMoDetStatus()
+	 */
+	public String getDetectionStatus() {
+	    return detectionStatus;
+	}
+
+	@Override
+	public String toString() {
+	    return String.format("%s [%s] port=%s maxrate=%d status=%s", threadID, cameraName, streamPort, streamMaxRate, detectionStatus);
+	}
+
+    }
+
+    private final String owner;
+    private final long timestamp;
+    private final List<Camera> cameras;
+
+    /* constructors */
+
+    CameraInventory(String owner, long timestamp, List<Camera> cameras) {
+
+	this.owner = owner;
+	this.timestamp = timestamp;
+	this.cameras = Collections.unmodifiableList(new ArrayList<Camera>(cameras));
+
+    }
+
+    /* getters */
+
+    public String getOwner() {
+	return owner;
+    }
+
+    /*
+     * returns the time, in milliseconds since the epoch, when the thread IDs
+     * were read
+     */
+    public long getTimestamp() {
+	return timestamp;
+    }
+
+    /*
+     * returns the cameras, in the order of their thread IDs
+     */
+    public List<Camera> getCameras() {
+	return cameras;
+    }
+
+    /* methods */
+
+    /*
+     * returns the camera with the given thread ID, or null
+     */
+    public Camera getCamera(String threadID) {
+
+	for (Camera camera : cameras) {
+
+	    if (camera.getThreadID().equals(threadID))
+		return camera;
+
+	}
+
+	return null;
+
+    }
+
+    public List<String> getThreadIDs() {
+
+	List<String> threadIDs = new ArrayList<String>(cameras.size());
+	for (Camera camera : cameras)
+	    threadIDs.add(camera.getThreadID());
+
+	return threadIDs;
+
+    }
+
+    public List<String> getCameraNames() {
+
+	List<String> cameraNames = new ArrayList<String>(cameras.size());
+	for (Camera camera : cameras)
+	    cameraNames.add(camera.getCameraName());
+
+	return cameraNames;
+
+    }
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+/*
+ * Reply of the Motion control port to a request.
+ * 
+ * The Motion text replies are made of a first line with the result and, for
+ * the actions, a second line "Done". For instance:
+ * 
+ * stream_port = 8081
+ * Done
+ */
+final class ControlResponse {
+
+    /* constants */
+    private final static String DONE = "Done";
+    private final static ControlResponse FAILED = new ControlResponse(-1, "");
+
+    private final int statusCode;
+    private final String body;
+    private final String[] lines;
+
+    /* constructors */
+
+    ControlResponse(int statusCode, String body) {
+
+	this.statusCode = statusCode;
+	this.body = body;
+	this.lines = body.split("\n");
+
+    }
+
+    /*
+     * returns the response of a request which could not be completed
+     */
+    static ControlResponse failed() {
+	return FAILED;
+    }
+
+    /* getters */
+
+    /*
+     * returns the HTTP status code, or -1 if no response was received
+     */
+    int getStatusCode() {
+	return statusCode;
+    }
+
+    boolean isSuccessful() {
+	return statusCode == 200;
+    }
+
+    String getBody() {
+	return body;
+    }
+
+    String[] getLines() {
+	return lines;
+    }
+
+    /* methods */
+
+    /*
+     * true if the reply is made of a result line followed by "Done"
+     */
+    boolean isDone() {
+
+	return lines.length == 2 && lines[1].equals(DONE);
+
+    }
+
+    /*
+     * Returns the value of a "name = value" result line, without spaces, or
+     * an empty string if the reply is not in that form
+     */
+    String getParameterValue() {
+
+	if (lines.length != 2)
+	    return "";
+
+	String reply[] = lines[0].replaceAll(" ", "").split("=");
+	return reply.length == 2 ? reply[1] : "";
+
+    }
+
+}
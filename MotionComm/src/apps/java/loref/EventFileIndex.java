@@ -0,0 +1,790 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * In-memory index of the files written by Motion in a target directory.
+ * 
+ * Motion names the snapshots cc-yyyyMMddhhmmss-ff.jpg and the movies
+ * cc-yyyyMMddhhmmss.avi (or another movie extension), where cc is the camera
+ * and ff the frame within the second; see MotionFile for the names
+ * accepted. The index keeps, for each camera, the snapshots and the movies sorted by time, so that looking up the snapshot of
+ * an event or the files of a time range takes O(log n) instead of a listing
+ * of the directory.
+ * 
+ * The index is built with one listing of the directory and then kept
+ * current by a WatchService, in a daemon thread. The subdirectories are not
+ * indexed.
+ * 
+ * If a persistence directory is set, the index is also kept in an
+ * EventIndexFile there, so that the next run can skip the listing: the
+ * stored index is reloaded as it is if the directory has not changed since
+ * the last checkpoint, or else reconciled with one listing, which only adds
+ * and removes the files that differ. A checkpoint needs a listing too, to
+ * catch the changes not yet reported by the WatchService: it is done when
+ * the index is closed, and by the watcher thread once the directory has
+ * been quiet for a checkpoint interval. The indexes are shared by all the
+ * MotionComm instances of the JVM: the ones still open are closed by
+ * closeAll(), called at the latest at the exit of the JVM.
+ */
+public final class EventFileIndex {
+
+    /* constants */
+    private final static DateTimeFormatter KEY_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private final static int DATE_LENGTH = 8;
+    private final static long DEFAULT_CHECKPOINT_INTERVAL = 60000L;
+
+    // key = yyyyMMddhhmmss * FRAMES + frame: sorted by time, and then by frame,
+    // while the files with the same key, of different events or extensions,
+    // are told apart by their names
+    private final static long FRAMES = 1000L;
+
+    private final static ConcurrentHashMap<Path, EventFileIndex> indexes = new ConcurrentHashMap<Path, EventFileIndex>();
+    private static volatile Path persistenceDirectory;
+    private static volatile long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private final static AtomicBoolean shutdownHookAdded = new AtomicBoolean();
+
+    private final Path directory;
+    private final File directoryFile;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedFile>> snapshots = new ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedFile>>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedFile>> movies = new ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedFile>>();
+    private final WatchService watchService;
+    private volatile boolean closed = false;
+
+    /* persistence */
+    private volatile EventIndexFile indexFile;
+    private volatile boolean indexFileComplete = true;
+    private volatile long reconciledModifiedTime;
+    private long checkpointedModifiedTime = -1L;
+    private long quietModifiedTime = -1L;
+
+    /* constructors */
+
+    private EventFileIndex(Path directory) throws IOException {
+
+	this.directory = directory;
+	this.directoryFile = directory.toFile();
+
+	// the directory is watched before being listed, so no file is missed
+	watchService = directory.getFileSystem().newWatchService();
+	directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, OVERFLOW);
+
+	try {
+
+	    long modifiedTime = Files.getLastModifiedTime(directory).toMillis();
+	    indexFile = openIndexFile(directory);
+
+	    if (indexFile != null) {
+
+		indexFile.replay(this::load);
+		indexFile.setLiveCount(size());
+
+	    }
+
+	    if (indexFile == null || !indexFile.isClean() || indexFile.getDirectoryModifiedTime() != modifiedTime)
+		reconcile();
+
+	    reconciledModifiedTime = modifiedTime;
+
+	    if (indexFile != null) {
+
+		indexFile.markInUse();
+		addShutdownHook();
+
+	    }
+
+	} catch (IOException e) {
+
+	    watchService.close();
+
+	    if (indexFile != null)
+		indexFile.close();
+
+	    throw e;
+
+	}
+
+	Thread watcher = new Thread(this::watch, "MotionComm-EventFileIndex");
+	watcher.setDaemon(true);
+	watcher.start();
+
+    }
+
+    /* methods */
+
+    /*
+     * Sets the directory where the indexes created afterwards are persisted,
+     * or null to keep them in memory only
+     */
+    public static void setPersistenceDirectory(String directory) {
+	persistenceDirectory = directory == null ? null : Paths.get(directory).toAbsolutePath().normalize();
+    }
+
+    public static String getPersistenceDirectory() {
+	Path directory = persistenceDirectory;
+	return directory == null ? null : directory.toString();
+    }
+
+    public static long getCheckpointInterval() {
+	return checkpointInterval;
+    }
+
+    /*
+     * Sets the interval, in milliseconds, between two checks of the
+     * persisted indexes by their watcher threads, 60 seconds by default. An
+     * index file is checkpointed when its directory has not changed since
+     * the previous check. Applies to the indexes created afterwards.
+     */
+    public static void setCheckpointInterval(long millis) {
+	if (millis < 1)
+	    throw new IllegalArgumentException("Checkpoint interval must be positive");
+	checkpointInterval = millis;
+    }
+
+    /*
+     * closes all the indexes, checkpointing their files
+     */
+    public static void closeAll() {
+
+	for (EventFileIndex index : indexes.values())
+	    index.close();
+
+    }
+
+    private static void addShutdownHook() {
+
+	if (shutdownHookAdded.compareAndSet(false, true))
+	    Runtime.getRuntime().addShutdownHook(new Thread(EventFileIndex::closeAll, "MotionComm-EventFileIndex-shutdown"));
+
+    }
+
+    /*
+     * returns the index file of the given directory, or null if the indexes
+     * are not persisted or the file cannot be opened
+     */
+    private static EventIndexFile openIndexFile(Path directory) {
+
+	Path persistence = persistenceDirectory;
+
+	if (persistence == null)
+	    return null;
+
+	try {
+
+	    Files.createDirectories(persistence);
+
+	    // one file per directory, named after its path
+	    StringBuilder name = new StringBuilder();
+	    for (byte b : MessageDigest.getInstance("SHA-1").digest(directory.toString().getBytes(StandardCharsets.UTF_8)))
+		name.append(String.format("%02x", b));
+
+	    return new EventIndexFile(persistence.resolve(name.append(".idx").toString()));
+
+	} catch (IOException | NoSuchAlgorithmException e) {
+
+	    return null;
+
+	}
+
+    }
+
+    /*
+     * Returns the index of the given directory, building it on the first
+     * call. The index is shared by all the callers until closed.
+     */
+    public static EventFileIndex forDirectory(String directory) throws IOException {
+
+	Path path = Paths.get(directory).toAbsolutePath().normalize();
+	EventFileIndex index = indexes.get(path);
+
+	if (index != null)
+	    return index;
+
+	try {
+
+	    return indexes.computeIfAbsent(path, key -> {
+
+		try {
+		    return new EventFileIndex(key);
+		} catch (IOException e) {
+		    throw new IndexCreationException(e);
+		}
+
+	    });
+
+	} catch (IndexCreationException e) {
+
+	    throw (IOException) e.getCause();
+
+	}
+
+    }
+
+    /*
+     * Stops watching the directory and removes the index from the shared
+     * ones
+     */
+    public void close() {
+
+	closed = true;
+	indexes.remove(directory, this);
+
+	try {
+	    watchService.close();
+	} catch (IOException e) {
+	    // nothing left to release
+	}
+
+	EventIndexFile file = indexFile;
+
+	if (file == null)
+	    return;
+
+	try {
+
+	    long modifiedTime = Files.getLastModifiedTime(directory).toMillis();
+
+	    // the changes since the last listing may not have been reported yet
+	    if (modifiedTime != reconciledModifiedTime)
+		reconcile();
+
+	    // the index file is left marked as in use if it misses some files
+	    if (indexFileComplete)
+		file.checkpoint(modifiedTime, this::writeSorted);
+
+	} catch (IOException e) {
+
+	    // the next run will reconcile the index file
+
+	} finally {
+
+	    indexFile = null;
+
+	    try {
+		file.close();
+	    } catch (IOException e) {
+		// nothing left to release
+	    }
+
+	}
+
+    }
+
+    public boolean isClosed() {
+	return closed;
+    }
+
+    public Path getDirectory() {
+	return directory;
+    }
+
+    /*
+     * returns the number of files indexed
+     */
+    public int size() {
+
+	int size = 0;
+
+	for (ConcurrentSkipListSet<IndexedFile> files : snapshots.values())
+	    size += files.size();
+
+	for (ConcurrentSkipListSet<IndexedFile> files : movies.values())
+	    size += files.size();
+
+	return size;
+
+    }
+
+    /*
+     * Returns the absolute path of the snapshot of the event of the given
+     * movie file: the first snapshot of the same camera taken at or after the
+     * start of the movie, on the same day, or else the last one taken before
+     * it, on the same day. Returns null if the name is not in the Motion
+     * format or no such snapshot exists.
+     */
+    public String getEventSnapshot(String movieFileName) {
+
+	String name = new File(movieFileName).getName();
+	MotionFile movie = MotionFile.parse(directory, name, zone);
+	String cameraID;
+	long time;
+
+	if (movie != null) {
+
+	    cameraID = movie.getCameraID();
+	    time = movie.getTimestamp();
+
+	} else {
+
+	    // a name with the date only, cc-yyyyMMdd...
+	    int dash = name.indexOf('-');
+
+	    if (dash < 1 || !isDigits(name, dash + 1, dash + 1 + DATE_LENGTH))
+		return null;
+
+	    cameraID = name.substring(0, dash);
+	    time = Long.parseLong(name.substring(dash + 1, dash + 1 + DATE_LENGTH)) * 1000000L;
+
+	}
+
+	ConcurrentSkipListSet<IndexedFile> files = snapshots.get(cameraID);
+
+	if (files == null)
+	    return null;
+
+	long day = time / 1000000L;
+	IndexedFile start = IndexedFile.first(time * FRAMES);
+
+	IndexedFile snapshot = files.ceiling(start);
+
+	if (snapshot == null || getDay(snapshot.key) != day)
+	    snapshot = files.lower(start);
+
+	if (snapshot == null || getDay(snapshot.key) != day)
+	    return null;
+
+	return new File(directoryFile, snapshot.name).getAbsolutePath();
+
+    }
+
+    /*
+     * returns the absolute paths of the snapshots of the given camera taken
+     * from 'from', included, to 'to', excluded, sorted by time
+     */
+    public List<String> getSnapshots(String cameraID, LocalDateTime from, LocalDateTime to) {
+	return getFiles(snapshots, cameraID, from, to);
+    }
+
+    /*
+     * returns the absolute paths of the movies of the given camera started
+     * from 'from', included, to 'to', excluded, sorted by time
+     */
+    public List<String> getMovies(String cameraID, LocalDateTime from, LocalDateTime to) {
+	return getFiles(movies, cameraID, from, to);
+    }
+
+    private List<String> getFiles(ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedFile>> index, String cameraID, LocalDateTime from, LocalDateTime to) {
+
+	List<String> out = new ArrayList<String>();
+	ConcurrentSkipListSet<IndexedFile> files = index.get(cameraID);
+
+	if (files == null || !from.isBefore(to))
+	    return out;
+
+	IndexedFile fromFile = IndexedFile.first(Long.parseLong(from.format(KEY_FORMAT)) * FRAMES);
+	IndexedFile toFile = IndexedFile.first(Long.parseLong(to.format(KEY_FORMAT)) * FRAMES);
+
+	for (IndexedFile file : files.subSet(fromFile, toFile))
+	    out.add(new File(directoryFile, file.name).getAbsolutePath());
+
+	return out;
+
+    }
+
+    /*
+     * Compares a listing of the directory with the files indexed: the new
+     * files are added and the ones which have gone, after an overflow of the
+     * watch events or since the last run, are removed. The files already
+     * indexed are neither parsed again nor written to the index file.
+     */
+    private void reconcile() throws IOException {
+
+	HashSet<String> indexed = new HashSet<String>();
+
+	for (ConcurrentSkipListSet<IndexedFile> files : snapshots.values()) {
+	    for (IndexedFile file : files)
+		indexed.add(file.name);
+	}
+
+	for (ConcurrentSkipListSet<IndexedFile> files : movies.values()) {
+	    for (IndexedFile file : files)
+		indexed.add(file.name);
+	}
+
+	try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+
+	    for (Path file : files) {
+
+		String name = file.getFileName().toString();
+
+		if (!indexed.remove(name))
+		    add(name);
+
+	    }
+
+	}
+
+	for (String name : indexed)
+	    remove(name);
+
+    }
+
+    private void watch() {
+
+	long interval = checkpointInterval;
+	long nextCheckpoint = System.currentTimeMillis() + interval;
+
+	while (!closed) {
+
+	    WatchKey key;
+
+	    try {
+
+		key = watchService.poll(Math.max(1L, nextCheckpoint - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+
+	    } catch (InterruptedException | ClosedWatchServiceException e) {
+
+		return;
+
+	    }
+
+	    if (System.currentTimeMillis() >= nextCheckpoint) {
+
+		checkpointIfQuiet();
+		nextCheckpoint = System.currentTimeMillis() + interval;
+
+	    }
+
+	    if (key == null)
+		continue;
+
+	    for (WatchEvent<?> event : key.pollEvents()) {
+
+		if (event.kind() == OVERFLOW) {
+
+		    try {
+			reconcile();
+		    } catch (IOException e) {
+			// the next events will tell whether the directory is still there
+		    }
+
+		} else {
+
+		    String name = event.context().toString();
+
+		    if (event.kind() == ENTRY_CREATE)
+			add(name);
+		    else
+			remove(name);
+
+		}
+
+	    }
+
+	    // the directory is no longer accessible
+	    if (!key.reset()) {
+
+		close();
+		return;
+
+	    }
+
+	}
+
+    }
+
+    /*
+     * Checkpoints the index file if the directory has not changed since the
+     * previous call, and not already been checkpointed at its current state.
+     * A directory being written continuously is left to close(), as each
+     * checkpoint costs a listing.
+     */
+    private void checkpointIfQuiet() {
+
+	EventIndexFile file = indexFile;
+
+	if (file == null || !indexFileComplete)
+	    return;
+
+	try {
+
+	    long modifiedTime = Files.getLastModifiedTime(directory).toMillis();
+	    boolean quiet = modifiedTime == quietModifiedTime;
+	    quietModifiedTime = modifiedTime;
+
+	    if (!quiet || modifiedTime == checkpointedModifiedTime)
+		return;
+
+	    if (modifiedTime != reconciledModifiedTime) {
+
+		reconcile();
+		reconciledModifiedTime = modifiedTime;
+
+	    }
+
+	    file.checkpoint(modifiedTime, this::writeSorted);
+	    checkpointedModifiedTime = modifiedTime;
+
+	} catch (IOException e) {
+
+	    // tried again at the next interval
+
+	}
+
+    }
+
+    private void add(String name) {
+
+	MotionFile file = MotionFile.parse(directory, name, zone);
+
+	if (file == null)
+	    return;
+
+	long key = getKey(file);
+
+	if (getIndex(file).computeIfAbsent(file.getCameraID(), cameraID -> new ConcurrentSkipListSet<IndexedFile>()).add(new IndexedFile(key, name)))
+	    persist(true, file.getType(), file.getCameraID(), key, name);
+
+    }
+
+    private void remove(String name) {
+
+	MotionFile file = MotionFile.parse(directory, name, zone);
+
+	if (file == null)
+	    return;
+
+	ConcurrentSkipListSet<IndexedFile> files = getIndex(file).get(file.getCameraID());
+	long key = getKey(file);
+
+	if (files != null && files.remove(new IndexedFile(key, name)))
+	    persist(false, file.getType(), file.getCameraID(), key, name);
+
+    }
+
+    /*
+     * applies a record of the index file
+     */
+    private void load(boolean add, MotionFile.Type type, String cameraID, long key, String name) {
+
+	ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedFile>> index = type == MotionFile.Type.SNAPSHOT ? snapshots : movies;
+
+	if (add) {
+
+	    index.computeIfAbsent(cameraID, id -> new ConcurrentSkipListSet<IndexedFile>()).add(new IndexedFile(key, name));
+
+	} else {
+
+	    ConcurrentSkipListSet<IndexedFile> files = index.get(cameraID);
+
+	    if (files != null)
+		files.remove(new IndexedFile(key, name));
+
+	}
+
+    }
+
+    private void persist(boolean add, MotionFile.Type type, String cameraID, long key, String name) {
+
+	EventIndexFile file = indexFile;
+
+	if (file == null)
+	    return;
+
+	try {
+
+	    if (!file.append(add, type, cameraID.length(), key, name))
+		indexFileComplete = false;
+
+	} catch (IOException e) {
+
+	    indexFileComplete = false;
+
+	}
+
+    }
+
+    /*
+     * writes the files of the index to a new index file, sorted by camera and
+     * then by time
+     */
+    private void writeSorted(EventIndexFile file) throws IOException {
+
+	TreeSet<String> cameraIDs = new TreeSet<String>(snapshots.keySet());
+	cameraIDs.addAll(movies.keySet());
+
+	for (String cameraID : cameraIDs) {
+
+	    Iterator<IndexedFile> snapshotFiles = getEntries(snapshots, cameraID);
+	    Iterator<IndexedFile> movieFiles = getEntries(movies, cameraID);
+	    IndexedFile snapshot = snapshotFiles.hasNext() ? snapshotFiles.next() : null;
+	    IndexedFile movie = movieFiles.hasNext() ? movieFiles.next() : null;
+
+	    // merges the two sorted sequences
+	    while (snapshot != null || movie != null) {
+
+		if (movie == null || (snapshot != null && snapshot.key <= movie.key)) {
+
+		    file.append(true, MotionFile.Type.SNAPSHOT, cameraID.length(), snapshot.key, snapshot.name);
+		    snapshot = snapshotFiles.hasNext() ? snapshotFiles.next() : null;
+
+		} else {
+
+		    file.append(true, MotionFile.Type.MOVIE, cameraID.length(), movie.key, movie.name);
+		    movie = movieFiles.hasNext() ? movieFiles.next() : null;
+
+		}
+
+	    }
+
+	}
+
+    }
+
+    private static Iterator<IndexedFile> getEntries(ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedFile>> index, String cameraID) {
+
+	ConcurrentSkipListSet<IndexedFile> files = index.get(cameraID);
+	return files == null ? Collections.<IndexedFile> emptyIterator() : files.iterator();
+
+    }
+
+    private ConcurrentHashMap<String, ConcurrentSkipListSet<IndexedFile>> getIndex(MotionFile file) {
+	return file.getType() == MotionFile.Type.SNAPSHOT ? snapshots : movies;
+    }
+
+    private static long getKey(MotionFile file) {
+	return file.getTimestamp() * FRAMES + Math.max(0, file.getFrame());
+    }
+
+    private static long getDay(long key) {
+	return key / FRAMES / 1000000L;
+    }
+
+    private static boolean isDigits(String s, int start, int end) {
+
+	if (start >= end || end > s.length())
+	    return false;
+
+	for (int i = start; i < end; i++) {
+
+	    if (s.charAt(i) < '0' || s.charAt(i) > '9')
+		return false;
+
+	}
+
+	return true;
+
+    }
+
+    /* subclasses */
+
+    /*
+     * A file of the index, sorted by key and then by name. The name breaks
+     * the ties between the files with the same time and frame, which would
+     * otherwise replace each other.
+     */
+    private static final class IndexedFile implements Comparable<IndexedFile> {
+
+	private final long key;
+	private final String name;
+
+	IndexedFile(long key, String name) {
+	    this.key = key;
+	    this.name = name;
+	}
+
+	/*
+	 * returns the bound sorted before all the files with the given key
+	 */
+	static IndexedFile first(long key) {
+	    return new IndexedFile(key, "");
+	}
+
+	@Override
+	public int compareTo(IndexedFile other) {
+
+	    int byKey = Long.compare(key, other.key);
+	    return byKey != 0 ? byKey : name.compareTo(other.name);
+
+	}
+
+	@Override
+	public boolean equals(Object other) {
+
+	    return other instanceof IndexedFile && compareTo((IndexedFile) other) == 0;
+
+	}
+
+	@Override
+	public int hashCode() {
+
+	    return Long.hashCode(key) * 31 + name.hashCode();
+
+	}
+
+    }
+
+    /*
+     * carries the IOException of the index creation out of computeIfAbsent()
+     */
+    private static class IndexCreationException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	IndexCreationException(IOException cause) {
+	    super(cause);
+	}
+
+    }
+
+}
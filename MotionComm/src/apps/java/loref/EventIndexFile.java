@@ -0,0 +1,312 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Memory-mapped file persisting an EventFileIndex between runs.
+ * 
+ * The file is a 64 bytes header followed by an append-only log of 64 bytes
+ * records, each adding or removing a file of the index:
+ * 
+ * header: magic (int), version (int), record count (long), directory
+ * modification time at the checkpoint (long), clean flag (byte)
+ * 
+ * record: operation (byte), file type (byte), name length (byte), camera
+ * length (byte), 4 unused bytes, key (long), name (48 bytes, ASCII)
+ * 
+ * The clean flag is cleared when the index is opened and set by each
+ * checkpoint, so after a crash the next run knows whether the log held all
+ * the changes of the directory at the time of the last checkpoint; it is
+ * only trusted if the directory has not changed since. A checkpoint rewrites the log, sorted by camera and
+ * time, when most of its records are obsolete.
+ */
+final class EventIndexFile implements Closeable {
+
+    /* constants */
+    final static int MAX_NAME_LENGTH = 48;
+
+    private final static int MAGIC = 0x4D434549;
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = 64;
+    private final static int RECORD_SIZE = 64;
+    private final static int INITIAL_MAPPED_SIZE = 1024 * 1024;
+
+    private final static int RECORD_COUNT_OFFSET = 8;
+    private final static int DIRECTORY_MTIME_OFFSET = 16;
+    private final static int CLEAN_OFFSET = 24;
+
+    private final static byte ADD = 1;
+    private final static byte REMOVE = 2;
+
+    /* subclasses */
+
+    interface RecordConsumer {
+
+	void accept(boolean add, MotionFile.Type type, String cameraID, long key, String name);
+
+    }
+
+    interface RecordSource {
+
+	void writeTo(EventIndexFile file) throws IOException;
+
+    }
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long recordCount;
+    private long liveCount;
+
+    /* constructors */
+
+    /*
+     * opens the given file, creating it, or resetting it if not valid
+     */
+    EventIndexFile(Path path) throws IOException {
+
+	this.path = path;
+	channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+	long size = channel.size();
+	map(Math.max(size, INITIAL_MAPPED_SIZE));
+
+	recordCount = buffer.getLong(RECORD_COUNT_OFFSET);
+
+	if (size < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || recordCount < 0 || HEADER_SIZE + recordCount * RECORD_SIZE > size)
+	    reset();
+
+    }
+
+    /* getters */
+
+    /*
+     * true if the file was checkpointed when last used
+     */
+    synchronized boolean isClean() {
+	return buffer.get(CLEAN_OFFSET) != 0;
+    }
+
+    /*
+     * returns the modification time, in milliseconds, of the directory at the
+     * last checkpoint
+     */
+    synchronized long getDirectoryModifiedTime() {
+	return buffer.getLong(DIRECTORY_MTIME_OFFSET);
+    }
+
+    /* methods */
+
+    /*
+     * Passes the records of the log to the consumer, in order. A record which
+     * is not valid, as after a crash while writing it, ends the log.
+     */
+    synchronized void replay(RecordConsumer consumer) {
+
+	byte[] name = new byte[MAX_NAME_LENGTH];
+	MotionFile.Type[] types = MotionFile.Type.values();
+
+	for (long i = 0; i < recordCount; i++) {
+
+	    int offset = (int) (HEADER_SIZE + i * RECORD_SIZE);
+	    byte operation = buffer.get(offset);
+	    int type = buffer.get(offset + 1);
+	    int nameLength = buffer.get(offset + 2);
+	    int cameraLength = buffer.get(offset + 3);
+
+	    if ((operation != ADD && operation != REMOVE) || type < 0 || type >= types.length || nameLength < 1 || nameLength > MAX_NAME_LENGTH || cameraLength < 1 || cameraLength >= nameLength) {
+
+		setRecordCount(i);
+		break;
+
+	    }
+
+	    buffer.position(offset + 16);
+	    buffer.get(name, 0, nameLength);
+
+	    String fileName = new String(name, 0, nameLength, StandardCharsets.US_ASCII);
+	    consumer.accept(operation == ADD, types[type], fileName.substring(0, cameraLength), buffer.getLong(offset + 8), fileName);
+
+	}
+
+    }
+
+    /*
+     * Appends a record. Returns false if the name cannot be stored, being
+     * too long or not ASCII, or the file is closed.
+     */
+    synchronized boolean append(boolean add, MotionFile.Type type, int cameraLength, long key, String name) throws IOException {
+
+	if (channel == null || name.length() > MAX_NAME_LENGTH || !StandardCharsets.US_ASCII.newEncoder().canEncode(name))
+	    return false;
+
+	long end = HEADER_SIZE + (recordCount + 1) * RECORD_SIZE;
+
+	// a mapped buffer is indexed by int
+	if (end > Integer.MAX_VALUE)
+	    return false;
+
+	if (end > buffer.capacity())
+	    map(Math.min(Integer.MAX_VALUE, Math.max(end, 2L * buffer.capacity())));
+
+	int offset = (int) (end - RECORD_SIZE);
+	buffer.put(offset, add ? ADD : REMOVE);
+	buffer.put(offset + 1, (byte) type.ordinal());
+	buffer.put(offset + 2, (byte) name.length());
+	buffer.put(offset + 3, (byte) cameraLength);
+	buffer.putLong(offset + 8, key);
+	buffer.position(offset + 16);
+	buffer.put(name.getBytes(StandardCharsets.US_ASCII));
+
+	// the record is counted once written
+	setRecordCount(recordCount + 1);
+	liveCount += add ? 1 : -1;
+
+	return true;
+
+    }
+
+    /*
+     * marks the file as in use, until the next checkpoint
+     */
+    synchronized void markInUse() {
+
+	buffer.put(CLEAN_OFFSET, (byte) 0);
+	buffer.force();
+
+    }
+
+    /*
+     * sets the number of files the replayed log holds, to decide when to
+     * rewrite it
+     */
+    synchronized void setLiveCount(long count) {
+	liveCount = count;
+    }
+
+    /*
+     * Records that the log holds all the changes of the directory up to the
+     * given modification time, and flushes the file. The records are
+     * supplied, sorted, by the index when the log needs to be rewritten.
+     */
+    synchronized void checkpoint(long directoryModifiedTime, RecordSource records) throws IOException {
+
+	if (channel == null)
+	    return;
+
+	if (recordCount > 2 * liveCount + 1024) {
+
+	    Path rewritten = path.resolveSibling(path.getFileName() + ".tmp");
+	    Files.deleteIfExists(rewritten);
+
+	    try (EventIndexFile sorted = new EventIndexFile(rewritten)) {
+
+		records.writeTo(sorted);
+		sorted.finish(directoryModifiedTime);
+
+	    }
+
+	    closeChannel();
+	    Files.move(rewritten, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	    map(channel.size());
+	    recordCount = buffer.getLong(RECORD_COUNT_OFFSET);
+	    liveCount = recordCount;
+
+	} else {
+
+	    finish(directoryModifiedTime);
+
+	}
+
+    }
+
+    private void finish(long directoryModifiedTime) {
+
+	buffer.putLong(DIRECTORY_MTIME_OFFSET, directoryModifiedTime);
+	buffer.put(CLEAN_OFFSET, (byte) 1);
+	buffer.force();
+
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+
+	if (channel != null)
+	    closeChannel();
+
+    }
+
+    private void closeChannel() throws IOException {
+
+	buffer.force();
+	channel.close();
+	channel = null;
+
+    }
+
+    private void reset() {
+
+	for (int i = 0; i < HEADER_SIZE; i++)
+	    buffer.put(i, (byte) 0);
+
+	buffer.putInt(0, MAGIC);
+	buffer.putInt(4, VERSION);
+	recordCount = 0;
+
+    }
+
+    private void setRecordCount(long count) {
+
+	recordCount = count;
+	buffer.putLong(RECORD_COUNT_OFFSET, count);
+
+    }
+
+    private void map(long size) throws IOException {
+
+	// the mapping extends the file; the previous buffer is released by the GC
+	buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+    }
+
+}
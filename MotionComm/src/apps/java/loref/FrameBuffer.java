@@ -0,0 +1,158 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Reference counted frame, held in a pooled buffer.
+ * 
+ * A FrameBuffer passed to MotionCommFrameBufferListener.onNewFrame() is only
+ * valid until the method returns. To keep it longer, the listener calls
+ * retain(), and then release() once done with it: when the last reference is
+ * released, the buffer goes back to the pool and the FrameBuffer can no
+ * longer be read.
+ */
+public final class FrameBuffer {
+
+    private final FrameBufferPool pool;
+    private final int length;
+    private final AtomicInteger references = new AtomicInteger(1);
+    private volatile ByteBuffer buffer;
+    private byte[] array;
+
+    /* constructors */
+
+    FrameBuffer(FrameBufferPool pool, ByteBuffer buffer) {
+
+	this.pool = pool;
+	this.buffer = buffer;
+	this.length = buffer.remaining();
+
+    }
+
+    /*
+     * wraps an array of its own, returned as it is by toByteArray()
+     */
+    FrameBuffer(FrameBufferPool pool, byte[] array) {
+
+	this(pool, ByteBuffer.wrap(array));
+	this.array = array;
+
+    }
+
+    /* getters */
+
+    public int getLength() {
+	return length;
+    }
+
+    public int getReferenceCount() {
+	return references.get();
+    }
+
+    /* methods */
+
+    /*
+     * Returns a read-only view of the frame data, from position 0 to the
+     * length of the frame. Each call returns a new view, with its own
+     * position and limit.
+     */
+    public ByteBuffer getData() {
+
+	ByteBuffer data = buffer;
+
+	if (data == null || references.get() < 1)
+	    throw new IllegalStateException("Frame buffer already released");
+
+	return data.asReadOnlyBuffer();
+
+    }
+
+    /*
+     * Returns a copy of the frame data in an array. The copy is made on the
+     * first call and then shared by all the callers, which must not modify
+     * it.
+     */
+    public synchronized byte[] toByteArray() {
+
+	if (array == null) {
+
+	    array = new byte[length];
+	    getData().get(array);
+
+	}
+
+	return array;
+
+    }
+
+    public FrameBuffer retain() {
+
+	int current;
+
+	do {
+
+	    current = references.get();
+
+	    if (current < 1)
+		throw new IllegalStateException("Frame buffer already released");
+
+	} while (!references.compareAndSet(current, current + 1));
+
+	return this;
+
+    }
+
+    /*
+     * Releases a reference. Returns true if it was the last one, and the
+     * buffer has gone back to the pool.
+     */
+    public boolean release() {
+
+	int remaining = references.decrementAndGet();
+
+	if (remaining > 0)
+	    return false;
+
+	if (remaining < 0)
+	    throw new IllegalStateException("Frame buffer already released");
+
+	ByteBuffer data = buffer;
+	buffer = null;
+	pool.recycle(data);
+
+	return true;
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Pool of the buffers holding the frames delivered to the listeners.
+ * 
+ * The buffers are grouped in power-of-two size classes, from 4 KB to 32 MB,
+ * and the pool keeps at most maxPooledBytes of free buffers; bigger frames,
+ * and the buffers exceeding the limit, are left to the garbage collector.
+ * 
+ * A heap pool keeping no free buffers copies each frame to an array of its
+ * own instead, which FrameBuffer.toByteArray() then returns without a second
+ * copy: the frame pipelines use UNPOOLED when no listener asks for
+ * FrameBuffers.
+ */
+final class FrameBufferPool {
+
+    /* constants */
+    private final static int MIN_SIZE_CLASS = 12;
+    private final static int MAX_SIZE_CLASS = 25;
+
+    final static FrameBufferPool UNPOOLED = new FrameBufferPool(false, 0L);
+
+    private final boolean direct;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeBuffers;
+
+    /* constructors */
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    FrameBufferPool(boolean direct, long maxPooledBytes) {
+
+	this.direct = direct;
+	this.maxPooledBytes = maxPooledBytes;
+
+	freeBuffers = new ConcurrentLinkedQueue[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+	for (int i = 0; i < freeBuffers.length; i++)
+	    freeBuffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    }
+
+    /* getters */
+
+    boolean isDirect() {
+	return direct;
+    }
+
+    long getMaxPooledBytes() {
+	return maxPooledBytes;
+    }
+
+    /*
+     * returns the number of buffers allocated because none was free
+     */
+    long getAllocations() {
+	return allocations.get();
+    }
+
+    /* methods */
+
+    /*
+     * returns a FrameBuffer holding a copy of the given data
+     */
+    FrameBuffer copyOf(byte[] data, int offset, int length) {
+
+	if (!direct && maxPooledBytes <= 0) {
+	    allocations.incrementAndGet();
+	    return new FrameBuffer(this, Arrays.copyOfRange(data, offset, offset + length));
+	}
+
+	ByteBuffer buffer = acquire(length);
+	buffer.put(data, offset, length);
+	buffer.flip();
+
+	return new FrameBuffer(this, buffer);
+
+    }
+
+    private ByteBuffer acquire(int length) {
+
+	int sizeClass = sizeClass(length);
+
+	if (sizeClass <= MAX_SIZE_CLASS) {
+
+	    ByteBuffer buffer = freeBuffers[sizeClass - MIN_SIZE_CLASS].poll();
+
+	    if (buffer != null) {
+
+		pooledBytes.addAndGet(-buffer.capacity());
+		return buffer;
+
+	    }
+
+	}
+
+	allocations.incrementAndGet();
+
+	int capacity = sizeClass <= MAX_SIZE_CLASS ? 1 << sizeClass : length;
+	return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+
+    }
+
+    /*
+     * called by FrameBuffer when its last reference is released
+     */
+    void recycle(ByteBuffer buffer) {
+
+	int capacity = buffer.capacity();
+	int sizeClass = sizeClass(capacity);
+
+	if (maxPooledBytes <= 0 || sizeClass > MAX_SIZE_CLASS || capacity != 1 << sizeClass)
+	    return;
+
+	if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+
+	    pooledBytes.addAndGet(-capacity);
+	    return;
+
+	}
+
+	buffer.clear();
+	freeBuffers[sizeClass - MIN_SIZE_CLASS].offer(buffer);
+
+    }
+
+    private static int sizeClass(int length) {
+
+	if (length <= 1 << MIN_SIZE_CLASS)
+	    return MIN_SIZE_CLASS;
+
+	return 32 - Integer.numberOfLeadingZeros(length - 1);
+
+    }
+
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/*
+ * Encodes the captured frames in a FrameFormat.
+ * 
+ * The ImageWriter, its parameters and the output buffer are created once and
+ * reused for every frame, so an instance must only be used by one thread at a
+ * time.
+ */
+class FrameEncoder {
+
+    /* constants */
+    private final static int INITIAL_OUTPUT_SIZE = 64 * 1024;
+
+    private final FrameFormat format;
+    private final ImageWriter writer;
+    private final ImageWriteParam writeParam;
+    private final OutputBuffer output = new OutputBuffer(INITIAL_OUTPUT_SIZE);
+
+    /* subclasses */
+
+    /*
+     * gives access to the encoded bytes without copying them to a new array
+     */
+    private static class OutputBuffer extends ByteArrayOutputStream {
+
+	OutputBuffer(int size) {
+	    super(size);
+	}
+
+	byte[] getBuffer() {
+	    return buf;
+	}
+
+    }
+
+    /* constructors */
+
+    FrameEncoder(FrameFormat format, float jpegQuality) {
+
+	this.format = format;
+
+	Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format.getFormatName());
+	if (!writers.hasNext())
+	    throw new IllegalStateException("No ImageIO writer available for " + format.getFormatName());
+
+	writer = writers.next();
+
+	if (format == FrameFormat.JPEG) {
+
+	    writeParam = writer.getDefaultWriteParam();
+	    writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+	    writeParam.setCompressionQuality(jpegQuality);
+
+	} else {
+
+	    writeParam = null;
+
+	}
+
+    }
+
+    /* methods */
+
+    FrameFormat getFormat() {
+	return format;
+    }
+
+    /*
+     * returns the encoded image in a buffer of the given pool
+     */
+    FrameBuffer encode(BufferedImage image, FrameBufferPool pool) throws IOException {
+
+	output.reset();
+
+	ImageOutputStream imageOutput = new MemoryCacheImageOutputStream(output);
+
+	try {
+
+	    writer.setOutput(imageOutput);
+	    writer.write(null, new IIOImage(image, null, null), writeParam);
+
+	} finally {
+
+	    writer.setOutput(null);
+	    imageOutput.close();
+
+	}
+
+	return pool.copyOf(output.getBuffer(), 0, output.size());
+
+    }
+
+    void dispose() {
+
+	writer.dispose();
+
+    }
+
+}
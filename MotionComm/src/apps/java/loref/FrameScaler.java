@@ -0,0 +1,74 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/*
+ * Turns the JPEG data of a camera frame into an image of the requested size.
+ * 
+ * Decoding and scaling are separate steps, so that a frame can be decoded
+ * once and scaled to several sizes, but decode() receives the largest size
+ * that will be requested, so that an implementation can reduce the
+ * resolution while decoding. See FrameScalers for the built-in
+ * implementations.
+ * 
+ * In all methods, a width or height which is not positive means that no
+ * resize is requested.
+ */
+public interface FrameScaler {
+
+    /*
+     * Decodes the JPEG image held in data[offset, offset + length). The
+     * returned image may be smaller than the original, but not smaller than
+     * minWidth x minHeight. Returns null if the data cannot be decoded.
+     */
+    BufferedImage decode(byte[] data, int offset, int length, int minWidth, int minHeight) throws IOException;
+
+    /*
+     * Returns the image scaled to width x height, or the image itself if it
+     * already has that size.
+     */
+    BufferedImage scale(BufferedImage image, int width, int height);
+
+    /*
+     * Decodes the JPEG image held in data[offset, offset + length) and returns
+     * it scaled to width x height. Returns null if the data cannot be decoded.
+     */
+    default BufferedImage decodeAndScale(byte[] data, int offset, int length, int width, int height) throws IOException {
+
+	BufferedImage image = decode(data, offset, length, width, height);
+	return image != null ? scale(image, width, height) : null;
+
+    }
+
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/*
+ * Built-in FrameScaler implementations.
+ * 
+ * All of them decode through a pooled JPEG ImageReader over an in-memory
+ * stream (ImageIO.read() may go through a temporary file cache), and return
+ * the decoded image as it is when it already has the requested size.
+ */
+public enum FrameScalers implements FrameScaler {
+
+    /*
+     * Image.getScaledInstance() with Image.SCALE_SMOOTH, the area averaging
+     * filter. Best quality, by far the slowest: kept for compatibility.
+     */
+    AREA_AVERAGING {
+
+	@Override
+	public BufferedImage decode(byte[] data, int offset, int length, int minWidth, int minHeight) throws IOException {
+
+	    return FrameScalers.decode(data, offset, length, false, minWidth, minHeight);
+
+	}
+
+	@Override
+	public BufferedImage scale(BufferedImage image, int width, int height) {
+
+	    if (keepsSize(image, width, height))
+		return image;
+
+	    Image scaledImage = image.getScaledInstance(width, height, Image.SCALE_SMOOTH);
+	    BufferedImage destinationImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	    Graphics2D graphics = destinationImage.createGraphics();
+	    graphics.drawImage(scaledImage, 0, 0, null);
+	    graphics.dispose();
+
+	    return destinationImage;
+
+	}
+
+    },
+
+    /*
+     * Full resolution decoding, then bilinear scaling by successive halvings
+     * down to less than twice the requested size, and a last bilinear step to
+     * the exact size. Halving keeps the bilinear filter from skipping source
+     * pixels, which would otherwise cause aliasing on large reductions.
+     */
+    PROGRESSIVE_BILINEAR {
+
+	@Override
+	public BufferedImage decode(byte[] data, int offset, int length, int minWidth, int minHeight) throws IOException {
+
+	    return FrameScalers.decode(data, offset, length, false, minWidth, minHeight);
+
+	}
+
+	@Override
+	public BufferedImage scale(BufferedImage image, int width, int height) {
+
+	    return resize(image, width, height);
+
+	}
+
+    },
+
+    /*
+     * Decoding with source subsampling by the largest integer factor which
+     * keeps the decoded image at least as large as the requested size, then
+     * PROGRESSIVE_BILINEAR scaling of the (much smaller) decoded image. The
+     * subsampled decoding skips most of the color conversion and memory
+     * traffic of a full resolution decoding.
+     */
+    DECODE_SUBSAMPLING {
+
+	@Override
+	public BufferedImage decode(byte[] data, int offset, int length, int minWidth, int minHeight) throws IOException {
+
+	    return FrameScalers.decode(data, offset, length, true, minWidth, minHeight);
+
+	}
+
+	@Override
+	public BufferedImage scale(BufferedImage image, int width, int height) {
+
+	    return resize(image, width, height);
+
+	}
+
+    };
+
+    /*
+     * Idle JPEG readers. ImageReader is not thread safe, so each decoding
+     * takes one out of the pool and gives it back afterwards. The pool does
+     * not depend on the threads, which may be a new virtual thread for each
+     * task: readers in excess of MAX_POOLED_READERS are disposed of.
+     */
+    private final static int MAX_POOLED_READERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private final static ConcurrentLinkedQueue<ImageReader> JPEG_READERS = new ConcurrentLinkedQueue<ImageReader>();
+    private final static AtomicInteger POOLED_READERS = new AtomicInteger();
+
+    private static ImageReader acquireReader() {
+
+	ImageReader reader = JPEG_READERS.poll();
+
+	if (reader != null) {
+	    POOLED_READERS.decrementAndGet();
+	    return reader;
+	}
+
+	Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("jpeg");
+	return readers.hasNext() ? readers.next() : null;
+
+    }
+
+    private static void releaseReader(ImageReader reader) {
+
+	if (POOLED_READERS.incrementAndGet() <= MAX_POOLED_READERS) {
+	    JPEG_READERS.offer(reader);
+	} else {
+	    POOLED_READERS.decrementAndGet();
+	    reader.dispose();
+	}
+
+    }
+
+    /*
+     * Decodes the JPEG data. If subsample is true, the image is subsampled
+     * while decoding, keeping it at least as large as width x height.
+     */
+    private static BufferedImage decode(byte[] data, int offset, int length, boolean subsample, int width, int height) throws IOException {
+
+	ImageReader reader = acquireReader();
+
+	if (reader == null)
+	    return ImageIO.read(new ByteArrayInputStream(data, offset, length));
+
+	ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(data, offset, length));
+
+	try {
+
+	    reader.setInput(input, true, true);
+
+	    ImageReadParam param = reader.getDefaultReadParam();
+
+	    if (subsample && width > 0 && height > 0) {
+
+		int factor = Math.min(reader.getWidth(0) / width, reader.getHeight(0) / height);
+
+		if (factor > 1)
+		    param.setSourceSubsampling(factor, factor, 0, 0);
+
+	    }
+
+	    return reader.read(0, param);
+
+	} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+
+	    // corrupted or truncated frame
+	    return null;
+
+	} finally {
+
+	    reader.setInput(null);
+	    input.close();
+	    releaseReader(reader);
+
+	}
+
+    }
+
+    /*
+     * true if the image already has the requested size, or if no resize is
+     * requested
+     */
+    private static boolean keepsSize(BufferedImage image, int width, int height) {
+
+	return width <= 0 || height <= 0 || (image.getWidth() == width && image.getHeight() == height);
+
+    }
+
+    /*
+     * Bilinear scaling by successive halvings, see PROGRESSIVE_BILINEAR
+     */
+    private static BufferedImage resize(BufferedImage source, int width, int height) {
+
+	if (keepsSize(source, width, height))
+	    return source;
+
+	BufferedImage current = source;
+	int currentWidth = source.getWidth();
+	int currentHeight = source.getHeight();
+
+	while (currentWidth != width || currentHeight != height) {
+
+	    currentWidth = currentWidth / 2 >= width ? currentWidth / 2 : width;
+	    currentHeight = currentHeight / 2 >= height ? currentHeight / 2 : height;
+
+	    BufferedImage next = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_RGB);
+	    Graphics2D graphics = next.createGraphics();
+	    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+	    graphics.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+	    graphics.dispose();
+
+	    current = next;
+
+	}
+
+	return current;
+
+    }
+
+}
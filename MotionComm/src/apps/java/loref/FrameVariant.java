@@ -0,0 +1,112 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+/*
+ * Size and encoding of the frames delivered to a destination. A width or
+ * height which is not positive means that the frames are not resized.
+ */
+final class FrameVariant {
+
+    private final int width;
+    private final int height;
+    private final FrameFormat format;
+
+    /* constructors */
+
+    FrameVariant(int width, int height, FrameFormat format) {
+
+	// all the "no resize" variants are the same variant
+	boolean resize = width > 0 && height > 0;
+
+	this.width = resize ? width : 0;
+	this.height = resize ? height : 0;
+	this.format = format;
+
+    }
+
+    /* getters */
+
+    int getWidth() {
+	return width;
+    }
+
+    int getHeight() {
+	return height;
+    }
+
+    FrameFormat getFormat() {
+	return format;
+    }
+
+    boolean isResized() {
+	return width > 0;
+    }
+
+    /*
+     * true if the JPEG data received from the camera can be delivered as it
+     * is, without decoding it
+     */
+    boolean isPassThrough() {
+	return format == FrameFormat.JPEG && !isResized();
+    }
+
+    /* methods */
+
+    @Override
+    public boolean equals(Object obj) {
+
+	if (this == obj)
+	    return true;
+
+	if (!(obj instanceof FrameVariant))
+	    return false;
+
+	FrameVariant other = (FrameVariant) obj;
+	return width == other.width && height == other.height && format == other.format;
+
+    }
+
+    @Override
+    public int hashCode() {
+
+	return (31 * width + height) * 31 + format.hashCode();
+
+    }
+
+    @Override
+    public String toString() {
+
+	return String.format("%dx%d %s", width, height, format);
+
+    }
+
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Lock-free latency histogram with power-of-two buckets of microseconds.
+ * 
+ * Bucket i counts the latencies in [2^(i-1), 2^i) microseconds (bucket 0
+ * counts the ones below one microsecond), so the percentiles are reported
+ * with a relative error below a factor of two, in exchange for a fixed memory
+ * footprint and a recording cost of a few atomic increments.
+ */
+public final class LatencyHistogram {
+
+    /* constants */
+    private final static int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /* methods */
+
+    public void record(long nanos) {
+
+	if (nanos < 0)
+	    nanos = 0;
+
+	long micros = nanos / 1000L;
+	int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+
+	buckets.incrementAndGet(bucket);
+	count.incrementAndGet();
+	totalNanos.addAndGet(nanos);
+
+	long max;
+	while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos))
+	    ;
+
+    }
+
+    public long getCount() {
+	return count.get();
+    }
+
+    /*
+     * returns the mean latency in milliseconds, or 0 if nothing was recorded
+     */
+    public double getMeanMillis() {
+
+	long n = count.get();
+	return n == 0 ? 0d : totalNanos.get() / (n * 1e6);
+
+    }
+
+    /*
+     * returns the highest latency recorded, in milliseconds
+     */
+    public double getMaxMillis() {
+	return maxNanos.get() / 1e6;
+    }
+
+    /*
+     * Returns the upper bound, in milliseconds, of the bucket holding the
+     * given percentile (between 0 and 100) of the recorded latencies, or 0 if
+     * nothing was recorded
+     */
+    public double getPercentileMillis(double percentile) {
+
+	long n = count.get();
+
+	if (n == 0)
+	    return 0d;
+
+	long rank = Math.max(1L, (long) Math.ceil(n * percentile / 100d));
+	long seen = 0;
+
+	for (int i = 0; i < BUCKETS; i++) {
+
+	    seen += buckets.get(i);
+
+	    if (seen >= rank)
+		return Math.min((1L << i) / 1000d, getMaxMillis());
+
+	}
+
+	return getMaxMillis();
+
+    }
+
+    public void reset() {
+
+	for (int i = 0; i < BUCKETS; i++)
+	    buckets.set(i, 0L);
+
+	count.set(0L);
+	totalNanos.set(0L);
+	maxNanos.set(0L);
+
+    }
+
+    @Override
+    public String toString() {
+
+	return String.format("count=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", getCount(), getMeanMillis(), getPercentileMillis(50), getPercentileMillis(99), getMaxMillis());
+
+    }
+
+}
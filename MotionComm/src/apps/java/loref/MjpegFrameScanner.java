@@ -0,0 +1,459 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Extracts the JPEG images from an MJPEG stream.
+ * 
+ * The scanner looks for the JPEG start-of-image marker (0xFF 0xD8) directly in
+ * its own buffer, which is reused for the whole life of the scanner and only
+ * grows when a frame does not fit in it, and then walks the segments of the
+ * image: the marker segments are skipped by their length, so that the images
+ * embedded in them, such as EXIF thumbnails, are never mistaken for the frame,
+ * and the entropy-coded data is scanned up to the next marker, until the
+ * end-of-image marker (0xFF 0xD9). The segment lengths delimit the image, so
+ * of the multipart headers between the frames only the Content-Length is
+ * looked at, to check that the image does not run past its part.
+ * 
+ * An image cut short, as happens when the stream is reconnected, shows up as
+ * a start-of-image marker where the walk expects a marker of the current image
+ * or inside its entropy-coded data: the partial image is dropped and the scan
+ * resumes from the new image. An image whose segments do not hold together, or
+ * which is longer than its part, is dropped as well, and the scan resumes from
+ * the next start-of-image marker.
+ * 
+ * Each frame is exposed as a view (buffer, offset, length) over the internal
+ * buffer, so no per-frame allocation takes place. The view is only valid until
+ * the next call to nextFrame().
+ */
+class MjpegFrameScanner {
+
+    /* constants */
+    private final static int MARKER = 0xFF;
+    private final static int START_OF_IMAGE = 0xD8;
+    private final static int END_OF_IMAGE = 0xD9;
+    private final static int START_OF_SCAN = 0xDA;
+    private final static int FIRST_RESTART = 0xD0;
+    private final static int LAST_RESTART = 0xD7;
+    private final static int TEMPORARY = 0x01;
+    private final static int STUFFING = 0x00;
+    private final static int FIRST_SEGMENT = 0xC0;
+    private final static int DEFAULT_INITIAL_CAPACITY = 256 * 1024;
+    private final static int MAX_PART_HEADER_SIZE = 1024;
+    private final static byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+    /*
+     * the second bytes of the markers which end the entropy-coded data: all
+     * of them but the stuffing and the restart markers
+     */
+    private final static boolean[] ENDS_ENTROPY_DATA = new boolean[256];
+
+    static {
+
+	for (int marker = 0; marker < 256; marker++)
+	    ENDS_ENTROPY_DATA[marker] = marker != STUFFING && marker != MARKER && (marker < FIRST_RESTART || marker > LAST_RESTART);
+
+    }
+    private final static int MAX_FRAME_SIZE = 32 * 1024 * 1024;
+
+    /* data */
+    private final InputStream in;
+    private byte[] buffer;
+    private int dataStart = 0;
+    private int dataEnd = 0;
+    private int scanPosition = 0;
+    private int frameStart = -1;
+
+    /* true while scanPosition is in the entropy-coded data of the frame */
+    private boolean inEntropyData = false;
+
+    /* Content-Length of the part of the frame, or -1 if not known */
+    private int partLength = -1;
+
+    /* time spent waiting for the stream data */
+    private long readNanos = 0L;
+
+    /* current frame */
+    private int frameOffset = 0;
+    private int frameLength = 0;
+
+    /* constructors */
+
+    MjpegFrameScanner(InputStream in) {
+	this(in, DEFAULT_INITIAL_CAPACITY);
+    }
+
+    MjpegFrameScanner(InputStream in, int initialCapacity) {
+	this.in = in;
+	this.buffer = new byte[Math.max(initialCapacity, 1024)];
+    }
+
+    /* getters */
+
+    byte[] getFrameBuffer() {
+	return buffer;
+    }
+
+    int getFrameOffset() {
+	return frameOffset;
+    }
+
+    int getFrameLength() {
+	return frameLength;
+    }
+
+    /*
+     * returns the total time spent reading from the stream, in nanoseconds
+     */
+    long getReadNanos() {
+	return readNanos;
+    }
+
+    /* methods */
+
+    /*
+     * Reads the stream up to the end of the next complete JPEG image. Returns
+     * false when the stream ends before a complete image is found.
+     */
+    boolean nextFrame() throws IOException {
+
+	frameLength = 0;
+
+	while (true) {
+
+	    if (frameStart < 0) {
+
+		int startOfImage = indexOfMarker(START_OF_IMAGE, scanPosition, dataEnd);
+
+		if (startOfImage >= 0) {
+
+		    startFrame(startOfImage, dataStart);
+
+		} else {
+
+		    // nothing worth keeping, except the part headers read so far
+		    dataStart = Math.max(dataStart, dataEnd - Math.min(MAX_PART_HEADER_SIZE, buffer.length / 2));
+		    scanPosition = Math.max(scanPosition, dataEnd - 1);
+
+		}
+
+	    }
+
+	    if (frameStart >= 0) {
+
+		if (walkFrame())
+		    return true;
+
+		// dropped: the next image is looked for in the buffered data
+		if (frameStart < 0)
+		    continue;
+
+	    }
+
+	    if (!fill())
+		return false;
+
+	}
+
+    }
+
+    /*
+     * Walks the segments of the current frame from scanPosition, as far as the
+     * buffered data allows. Returns true when the end of the frame has been
+     * reached. Returns false when more data is needed, or when the frame has
+     * been dropped, in which case frameStart is -1.
+     */
+    private boolean walkFrame() {
+
+	while (true) {
+
+	    if (inEntropyData) {
+
+		int marker = indexOfSegmentMarker(scanPosition, dataEnd);
+
+		if (marker < 0) {
+
+		    // a trailing 0xFF may start the next marker
+		    scanPosition = Math.max(scanPosition, dataEnd - 1);
+		    return false;
+
+		}
+
+		scanPosition = marker;
+		inEntropyData = false;
+
+	    }
+
+	    if (scanPosition + 1 >= dataEnd)
+		return false;
+
+	    if ((buffer[scanPosition] & 0xFF) != MARKER) {
+
+		dropFrame();
+		return false;
+
+	    }
+
+	    int marker = buffer[scanPosition + 1] & 0xFF;
+
+	    if (marker == MARKER) {
+
+		// fill byte before a marker
+		scanPosition++;
+
+	    } else if (marker == END_OF_IMAGE) {
+
+		int length = scanPosition + 2 - frameStart;
+
+		dataStart = scanPosition + 2;
+		scanPosition = dataStart;
+		frameStart = -1;
+
+		// longer than its part: a cut image run into the next one
+		if (partLength >= 0 && length > partLength)
+		    return false;
+
+		frameOffset = dataStart - length;
+		frameLength = length;
+
+		return true;
+
+	    } else if (marker == START_OF_IMAGE) {
+
+		/*
+		 * a new image starts before the end of the current one, which
+		 * was cut short, e.g. by a reconnection of the stream: the
+		 * partial image is dropped
+		 */
+		startFrame(scanPosition, frameStart + 2);
+
+	    } else if ((marker >= FIRST_RESTART && marker <= LAST_RESTART) || marker == TEMPORARY) {
+
+		// markers without a segment
+		scanPosition += 2;
+
+	    } else if (marker < FIRST_SEGMENT) {
+
+		// not a marker: the frame was cut short within its headers
+		dropFrame();
+		return false;
+
+	    } else {
+
+		if (scanPosition + 3 >= dataEnd)
+		    return false;
+
+		int segmentLength = ((buffer[scanPosition + 2] & 0xFF) << 8) | (buffer[scanPosition + 3] & 0xFF);
+
+		if (segmentLength < 2) {
+
+		    dropFrame();
+		    return false;
+
+		}
+
+		// the segment is skipped, even beyond the buffered data
+		scanPosition += 2 + segmentLength;
+		inEntropyData = marker == START_OF_SCAN;
+
+	    }
+
+	}
+
+    }
+
+    /*
+     * starts a frame at the given start-of-image marker, taking its part
+     * length from the headers which precede it from the given index on
+     */
+    private void startFrame(int startOfImage, int headersFrom) {
+
+	frameStart = startOfImage;
+	scanPosition = startOfImage + 2;
+	inEntropyData = false;
+	partLength = parseContentLength(Math.max(headersFrom, startOfImage - MAX_PART_HEADER_SIZE), startOfImage);
+
+    }
+
+    /*
+     * Returns the value of the last Content-Length header in [from, to), or -1
+     */
+    private int parseContentLength(int from, int to) {
+
+	for (int i = to - CONTENT_LENGTH.length; i >= from; i--) {
+
+	    if (!matchesIgnoreCase(CONTENT_LENGTH, i))
+		continue;
+
+	    int position = i + CONTENT_LENGTH.length;
+	    while (position < to && buffer[position] == ' ')
+		position++;
+
+	    long value = -1;
+
+	    while (position < to && buffer[position] >= '0' && buffer[position] <= '9' && value <= Integer.MAX_VALUE)
+		value = (value < 0 ? 0 : value * 10) + (buffer[position++] - '0');
+
+	    return value <= Integer.MAX_VALUE ? (int) value : -1;
+
+	}
+
+	return -1;
+
+    }
+
+    private boolean matchesIgnoreCase(byte[] lowerCase, int at) {
+
+	for (int i = 0; i < lowerCase.length; i++) {
+
+	    int b = buffer[at + i];
+
+	    if (b >= 'A' && b <= 'Z')
+		b += 'a' - 'A';
+
+	    if (b != lowerCase[i])
+		return false;
+
+	}
+
+	return true;
+
+    }
+
+    /*
+     * drops the current frame, whose segments do not hold together, and
+     * resumes the search for a start-of-image marker from where the walk
+     * failed, so that no image embedded in the dropped one is taken for a
+     * frame
+     */
+    private void dropFrame() {
+
+	dataStart = scanPosition;
+	frameStart = -1;
+	inEntropyData = false;
+
+    }
+
+    /*
+     * Returns the index of the first 0xFF, marker pair in [from, to), or -1
+     */
+    private int indexOfMarker(int marker, int from, int to) {
+
+	for (int i = from; i < to - 1; i++) {
+
+	    if ((buffer[i] & 0xFF) == MARKER && (buffer[i + 1] & 0xFF) == marker)
+		return i;
+
+	}
+
+	return -1;
+
+    }
+
+    /*
+     * Returns the index of the first marker in the entropy-coded data in
+     * [from, to), leaving out the stuffed 0xFF bytes and the restart markers,
+     * or -1
+     */
+    private int indexOfSegmentMarker(int from, int to) {
+
+	for (int i = from; i < to - 1; i++) {
+
+	    if ((buffer[i] & 0xFF) == MARKER) {
+
+		int marker = buffer[i + 1] & 0xFF;
+
+		if (ENDS_ENTROPY_DATA[marker])
+		    return i;
+
+	    }
+
+	}
+
+	return -1;
+
+    }
+
+    /*
+     * Makes room at the end of the buffer, discarding the consumed data or
+     * growing the buffer, and reads more data from the stream.
+     */
+    private boolean fill() throws IOException {
+
+	int keepFrom = frameStart >= 0 ? frameStart : dataStart;
+
+	if (dataEnd == buffer.length) {
+
+	    if (keepFrom > 0) {
+
+		System.arraycopy(buffer, keepFrom, buffer, 0, dataEnd - keepFrom);
+		dataEnd -= keepFrom;
+		dataStart -= keepFrom;
+		scanPosition -= keepFrom;
+		if (frameStart >= 0)
+		    frameStart -= keepFrom;
+
+	    } else if (buffer.length < MAX_FRAME_SIZE) {
+
+		byte[] larger = new byte[Math.min(buffer.length * 2, MAX_FRAME_SIZE)];
+		System.arraycopy(buffer, 0, larger, 0, dataEnd);
+		buffer = larger;
+
+	    } else {
+
+		// no end-of-image in sight: drop the partial frame and resync
+		frameStart = -1;
+		inEntropyData = false;
+		dataStart = dataEnd - 1;
+		scanPosition = dataStart;
+		return fill();
+
+	    }
+
+	}
+
+	long readStart = System.nanoTime();
+	int read = in.read(buffer, dataEnd, buffer.length - dataEnd);
+	readNanos += System.nanoTime() - readStart;
+
+	if (read < 0)
+	    return false;
+
+	dataEnd += read;
+	return true;
+
+    }
+
+}
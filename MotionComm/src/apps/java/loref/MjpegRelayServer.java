@@ -0,0 +1,573 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * HTTP server relaying the MJPEG streams of the cameras of a MotionComm to
+ * any number of clients, with a single connection to Motion per camera.
+ * 
+ * A client requests http://{host}:{port}/{cameraID}. The frames of the
+ * camera are taken as they are from the camera stream, through a frame
+ * subscription for the destination RELAY_DESTINATION, which is cancelled
+ * when the last client of the camera leaves.
+ * 
+ * All the sockets are served by a single thread, with non-blocking writes.
+ * Each client has at most one frame being written and one waiting: a client
+ * which cannot keep up with the camera gets the latest frames, and the
+ * others are dropped.
+ */
+public class MjpegRelayServer implements Closeable {
+
+    /* constants */
+    public final static String RELAY_DESTINATION = "relay";
+
+    private final static String BOUNDARY = "BoundaryString";
+    private final static int MAX_REQUEST_SIZE = 8192;
+    private final static byte[] RESPONSE_HEADER = ("HTTP/1.0 200 OK\r\n" + "Server: MotionComm\r\n" + "Connection: close\r\n" + "Cache-Control: no-cache, no-store\r\n" + "Pragma: no-cache\r\n" + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] NOT_FOUND = ("HTTP/1.0 404 Not Found\r\n" + "Connection: close\r\n" + "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] BAD_REQUEST = ("HTTP/1.0 400 Bad Request\r\n" + "Connection: close\r\n" + "Content-Length: 0\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] PART_END = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /* subclasses */
+
+    private class Client {
+
+	private final SocketChannel channel;
+	private final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+	private String cameraID;
+
+	// the buffers being written, and the frame waiting, if any
+	private ByteBuffer[] current;
+	private ByteBuffer[] pending;
+	private boolean closeWhenWritten = false;
+
+	Client(SocketChannel channel) {
+	    this.channel = channel;
+	}
+
+    }
+
+    private class RelayedCamera implements FrameSubscriber {
+
+	private final String cameraID;
+	private final List<Client> clients = new ArrayList<Client>();
+	private FrameSubscription subscription;
+
+	RelayedCamera(String cameraID) {
+	    this.cameraID = cameraID;
+	}
+
+	@Override
+	public void onSubscribe(FrameSubscription subscription) {
+
+	    this.subscription = subscription;
+	    subscription.request(Long.MAX_VALUE);
+
+	}
+
+	@Override
+	public void onFrame(String cameraID, byte[] frameData) {
+
+	    // called by the delivery task of the subscription
+	    runOnSelector(() -> sendFrame(this, frameData));
+
+	}
+
+	@Override
+	public void onComplete() {
+
+	    runOnSelector(() -> endCamera(this));
+
+	}
+
+    }
+
+    private final MotionComm motionComm;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread selectorThread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean running = false;
+    private boolean closed = false;
+
+    /* used by the selector thread only */
+    private final HashMap<String, RelayedCamera> cameras = new HashMap<String, RelayedCamera>();
+
+    private final AtomicInteger clientsCount = new AtomicInteger();
+    private final AtomicLong sentFramesCount = new AtomicLong();
+    private final AtomicLong droppedFramesCount = new AtomicLong();
+
+    /* constructors */
+
+    /*
+     * Binds the server to the given port, or to any free port if 0. The
+     * server is started by start().
+     */
+    public MjpegRelayServer(MotionComm motionComm, int port) throws IOException {
+
+	this.motionComm = motionComm;
+
+	selector = Selector.open();
+	serverChannel = ServerSocketChannel.open();
+
+	try {
+
+	    serverChannel.bind(new InetSocketAddress(port));
+	    serverChannel.configureBlocking(false);
+	    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+	} catch (IOException e) {
+
+	    serverChannel.close();
+	    selector.close();
+	    throw e;
+
+	}
+
+	selectorThread = new Thread(this::serve, "MotionComm-MjpegRelay");
+	selectorThread.setDaemon(true);
+
+    }
+
+    /* getters */
+
+    public int getPort() {
+	return serverChannel.socket().getLocalPort();
+    }
+
+    /*
+     * returns the path to request the stream of the given camera from
+     */
+    public static String getStreamPath(String cameraID) {
+	return "/" + cameraID;
+    }
+
+    public int getClientsCount() {
+	return clientsCount.get();
+    }
+
+    public long getSentFramesCount() {
+	return sentFramesCount.get();
+    }
+
+    /*
+     * returns the number of frames not sent to the clients which could not
+     * keep up with their camera
+     */
+    public long getDroppedFramesCount() {
+	return droppedFramesCount.get();
+    }
+
+    /* methods */
+
+    public synchronized void start() {
+
+	if (closed)
+	    throw new IllegalStateException("Relay server already closed");
+
+	if (running)
+	    return;
+
+	running = true;
+	selectorThread.start();
+
+    }
+
+    /*
+     * closes the connections of all the clients, cancels the frame
+     * subscriptions and releases the server socket, whether the server was
+     * started or not
+     */
+    @Override
+    public synchronized void close() {
+
+	closed = true;
+	running = false;
+
+	if (selectorThread.isAlive()) {
+
+	    selector.wakeup();
+
+	    try {
+		selectorThread.join();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+	    }
+
+	}
+
+	// released by the selector thread when it stops, if it ever ran
+	closeChannels();
+
+    }
+
+    private void runOnSelector(Runnable task) {
+
+	tasks.add(task);
+	selector.wakeup();
+
+    }
+
+    private void serve() {
+
+	try {
+
+	    while (running) {
+
+		selector.select();
+
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		    task.run();
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+		while (keys.hasNext()) {
+
+		    SelectionKey key = keys.next();
+		    keys.remove();
+
+		    if (!key.isValid())
+			continue;
+
+		    if (key.isAcceptable())
+			accept();
+		    else if (key.isReadable())
+			read(key);
+		    else if (key.isWritable())
+			write((Client) key.attachment());
+
+		}
+
+	    }
+
+	} catch (IOException | ClosedSelectorException e) {
+
+	    // the server cannot go on
+
+	} finally {
+
+	    running = false;
+	    shutdown();
+
+	}
+
+    }
+
+    private void accept() throws IOException {
+
+	SocketChannel channel;
+
+	while ((channel = serverChannel.accept()) != null) {
+
+	    channel.configureBlocking(false);
+	    channel.socket().setTcpNoDelay(true);
+	    channel.register(selector, SelectionKey.OP_READ, new Client(channel));
+
+	}
+
+    }
+
+    private void read(SelectionKey key) {
+
+	Client client = (Client) key.attachment();
+
+	try {
+
+	    // after the request, the reads only detect the closed connections
+	    if (client.cameraID != null || client.closeWhenWritten) {
+
+		client.request.clear();
+
+		if (client.channel.read(client.request) < 0)
+		    closeClient(client);
+
+		return;
+
+	    }
+
+	    if (client.channel.read(client.request) < 0) {
+
+		closeClient(client);
+		return;
+
+	    }
+
+	    String request = new String(client.request.array(), 0, client.request.position(), StandardCharsets.US_ASCII);
+
+	    if (!request.contains("\r\n\r\n")) {
+
+		if (!client.request.hasRemaining())
+		    reply(client, BAD_REQUEST);
+
+		return;
+
+	    }
+
+	    // GET /{cameraID}[?...] HTTP/1.x
+	    String[] requestLine = request.substring(0, request.indexOf("\r\n")).split(" ");
+
+	    if (requestLine.length != 3 || !requestLine[0].equals("GET") || !requestLine[1].startsWith("/")) {
+
+		reply(client, BAD_REQUEST);
+		return;
+
+	    }
+
+	    String path = requestLine[1];
+	    int query = path.indexOf('?');
+	    String cameraID = path.substring(1, query < 0 ? path.length() : query);
+
+	    if (cameraID.isEmpty() || cameraID.contains("/")) {
+
+		reply(client, NOT_FOUND);
+		return;
+
+	    }
+
+	    addClient(client, cameraID);
+
+	} catch (IOException e) {
+
+	    closeClient(client);
+
+	}
+
+    }
+
+    private void reply(Client client, byte[] response) {
+
+	client.closeWhenWritten = true;
+	send(client, new ByteBuffer[] { ByteBuffer.wrap(response) });
+
+    }
+
+    private void addClient(Client client, String cameraID) {
+
+	RelayedCamera camera = cameras.get(cameraID);
+
+	if (camera == null) {
+
+	    camera = new RelayedCamera(cameraID);
+
+	    try {
+
+		motionComm.subscribeFrames(cameraID, RELAY_DESTINATION, 0, 0, FrameFormat.JPEG, camera);
+
+	    } catch (RuntimeException e) {
+
+		reply(client, NOT_FOUND);
+		return;
+
+	    }
+
+	    cameras.put(cameraID, camera);
+
+	}
+
+	client.cameraID = cameraID;
+	camera.clients.add(client);
+	clientsCount.incrementAndGet();
+
+	send(client, new ByteBuffer[] { ByteBuffer.wrap(RESPONSE_HEADER) });
+
+    }
+
+    private void sendFrame(RelayedCamera camera, byte[] frameData) {
+
+	if (cameras.get(camera.cameraID) != camera)
+	    return;
+
+	// the part is built once, and shared by the clients through views
+	ByteBuffer partHeader = ByteBuffer.wrap(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + frameData.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+	ByteBuffer frame = ByteBuffer.wrap(frameData);
+	ByteBuffer partEnd = ByteBuffer.wrap(PART_END);
+
+	for (Client client : new ArrayList<Client>(camera.clients))
+	    send(client, new ByteBuffer[] { partHeader.duplicate(), frame.duplicate(), partEnd.duplicate() });
+
+    }
+
+    /*
+     * writes the buffers to the client, or queues them in place of the frame
+     * waiting, if a write is in progress
+     */
+    private void send(Client client, ByteBuffer[] buffers) {
+
+	if (client.current != null) {
+
+	    if (client.pending != null)
+		droppedFramesCount.incrementAndGet();
+
+	    client.pending = buffers;
+	    return;
+
+	}
+
+	client.current = buffers;
+	write(client);
+
+    }
+
+    private void write(Client client) {
+
+	SelectionKey key = client.channel.keyFor(selector);
+
+	try {
+
+	    while (client.current != null) {
+
+		client.channel.write(client.current);
+
+		if (client.current[client.current.length - 1].hasRemaining()) {
+
+		    // the socket buffer is full: goes on when writable
+		    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		    return;
+
+		}
+
+		if (client.cameraID != null && client.current.length == 3)
+		    sentFramesCount.incrementAndGet();
+
+		client.current = client.pending;
+		client.pending = null;
+
+	    }
+
+	    if (client.closeWhenWritten) {
+
+		closeClient(client);
+		return;
+
+	    }
+
+	    key.interestOps(SelectionKey.OP_READ);
+
+	} catch (IOException | RuntimeException e) {
+
+	    closeClient(client);
+
+	}
+
+    }
+
+    private void closeClient(Client client) {
+
+	try {
+	    client.channel.close();
+	} catch (IOException e) {
+	    // already closed
+	}
+
+	if (client.cameraID == null)
+	    return;
+
+	RelayedCamera camera = cameras.get(client.cameraID);
+	client.cameraID = null;
+
+	if (camera == null || !camera.clients.remove(client))
+	    return;
+
+	clientsCount.decrementAndGet();
+
+	if (camera.clients.isEmpty()) {
+
+	    cameras.remove(camera.cameraID);
+
+	    if (camera.subscription != null)
+		camera.subscription.cancel();
+
+	}
+
+    }
+
+    /*
+     * the stream of the camera has ended: its clients are disconnected
+     */
+    private void endCamera(RelayedCamera camera) {
+
+	if (cameras.get(camera.cameraID) != camera)
+	    return;
+
+	for (Client client : new ArrayList<Client>(camera.clients))
+	    closeClient(client);
+
+    }
+
+    private void shutdown() {
+
+	for (SelectionKey key : selector.keys()) {
+
+	    if (key.attachment() instanceof Client)
+		closeClient((Client) key.attachment());
+
+	}
+
+	closeChannels();
+
+    }
+
+    private void closeChannels() {
+
+	try {
+	    serverChannel.close();
+	} catch (IOException e) {
+	    // nothing left to release
+	}
+
+	try {
+	    selector.close();
+	} catch (IOException e) {
+	    // nothing left to release
+	}
+
+    }
+
+}
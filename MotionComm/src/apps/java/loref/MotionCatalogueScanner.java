@@ -0,0 +1,355 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Scans a Motion target directory, and optionally its subdirectories, for
+ * the snapshots and movies written by Motion, returning them as MotionFiles.
+ * 
+ * The directories are read with Files.newDirectoryStream, so the entries are
+ * never all held in memory, and each name is parsed once. The entries whose
+ * name is a Motion file name are taken as files without further checks: only
+ * the other ones are checked for being subdirectories. The symbolic links to
+ * directories are not followed, so that a link cycle does not make the walk
+ * endless.
+ */
+public final class MotionCatalogueScanner {
+
+    private final ZoneId zone;
+
+    /* constructors */
+
+    public MotionCatalogueScanner() {
+	this(ZoneId.systemDefault());
+    }
+
+    /*
+     * the zone is the one of the times in the file names
+     */
+    public MotionCatalogueScanner(ZoneId zone) {
+	this.zone = zone;
+    }
+
+    /* methods */
+
+    /*
+     * Returns a lazy stream of the Motion files of the given directory, not
+     * including its subdirectories. The stream must be closed, to close the
+     * directory. The I/O errors while reading are thrown as
+     * UncheckedIOException.
+     */
+    public Stream<MotionFile> scan(Path directory) throws IOException {
+
+	DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+
+	return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new DirectoryEntries(entries), Spliterator.NONNULL), false).map(entry -> MotionFile.parse(directory, entry.getFileName().toString(), zone)).filter(file -> file != null).onClose(() -> {
+
+	    try {
+		entries.close();
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+
+	});
+
+    }
+
+    /*
+     * Returns a lazy stream of the Motion files of the given directory and of
+     * its subdirectories, depth first. The stream must be closed, to close
+     * the directories still open.
+     * 
+     * The tree is walked by a TreeIterator rather than with a flatMap() of
+     * the subdirectory streams, which before Java 10 reads a whole
+     * subdirectory as soon as its first file is requested.
+     */
+    public Stream<MotionFile> scanTree(Path root) throws IOException {
+
+	TreeIterator files = new TreeIterator(root);
+
+	return StreamSupport.stream(Spliterators.spliteratorUnknownSize(files, Spliterator.NONNULL), false).onClose(files::close);
+
+    }
+
+    /*
+     * Scans the given directory and its subdirectories in parallel, in the
+     * given pool, passing each Motion file to the consumer, which is called
+     * concurrently by the threads of the pool. Returns the number of files
+     * found.
+     */
+    public long scanTreeParallel(Path root, Consumer<MotionFile> consumer, ForkJoinPool pool) throws IOException {
+
+	try {
+
+	    return pool.invoke(new DirectoryScan(root, consumer));
+
+	} catch (UncheckedIOException e) {
+
+	    throw e.getCause();
+
+	}
+
+    }
+
+    /*
+     * as scanTreeParallel(root, consumer, pool), in the common pool
+     */
+    public long scanTreeParallel(Path root, Consumer<MotionFile> consumer) throws IOException {
+	return scanTreeParallel(root, consumer, ForkJoinPool.commonPool());
+    }
+
+    /* subclasses */
+
+    /*
+     * Iterates over the Motion files of a tree, depth first, keeping open
+     * only the directories from the root to the one being read.
+     */
+    private class TreeIterator implements Iterator<MotionFile> {
+
+	private final ArrayDeque<OpenDirectory> openDirectories = new ArrayDeque<OpenDirectory>();
+	private MotionFile next;
+
+	TreeIterator(Path root) throws IOException {
+	    openDirectories.push(new OpenDirectory(root));
+	}
+
+	@Override
+	public boolean hasNext() {
+
+	    while (next == null && !openDirectories.isEmpty()) {
+
+		OpenDirectory current = openDirectories.peek();
+
+		if (!current.entries.hasNext()) {
+
+		    closeDirectory();
+		    continue;
+
+		}
+
+		Path entry = current.entries.next();
+		next = MotionFile.parse(current.directory, entry.getFileName().toString(), zone);
+
+		if (next == null && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+
+		    try {
+			openDirectories.push(new OpenDirectory(entry));
+		    } catch (IOException e) {
+			throw new UncheckedIOException(e);
+		    }
+
+		}
+
+	    }
+
+	    return next != null;
+
+	}
+
+	@Override
+	public MotionFile next() {
+
+	    if (!hasNext())
+		throw new NoSuchElementException();
+
+	    MotionFile file = next;
+	    next = null;
+	    return file;
+
+	}
+
+	void close() {
+
+	    UncheckedIOException error = null;
+
+	    while (!openDirectories.isEmpty()) {
+
+		try {
+		    closeDirectory();
+		} catch (UncheckedIOException e) {
+		    if (error == null)
+			error = e;
+		}
+
+	    }
+
+	    if (error != null)
+		throw error;
+
+	}
+
+	private void closeDirectory() {
+
+	    try {
+		openDirectories.pop().stream.close();
+	    } catch (IOException e) {
+		throw new UncheckedIOException(e);
+	    }
+
+	}
+
+    }
+
+    private static final class OpenDirectory {
+
+	private final Path directory;
+	private final DirectoryStream<Path> stream;
+	private final Iterator<Path> entries;
+
+	OpenDirectory(Path directory) throws IOException {
+
+	    this.directory = directory;
+	    this.stream = Files.newDirectoryStream(directory);
+	    this.entries = new DirectoryEntries(stream);
+
+	}
+
+    }
+
+    /*
+     * iterator over the entries of a DirectoryStream, throwing its I/O errors
+     * as UncheckedIOException, as the streams of Files do
+     */
+    private static final class DirectoryEntries implements Iterator<Path> {
+
+	private final Iterator<Path> entries;
+
+	DirectoryEntries(DirectoryStream<Path> stream) {
+	    this.entries = stream.iterator();
+	}
+
+	@Override
+	public boolean hasNext() {
+
+	    try {
+		return entries.hasNext();
+	    } catch (DirectoryIteratorException e) {
+		throw new UncheckedIOException(e.getCause());
+	    }
+
+	}
+
+	@Override
+	public Path next() {
+
+	    try {
+		return entries.next();
+	    } catch (DirectoryIteratorException e) {
+		throw new UncheckedIOException(e.getCause());
+	    }
+
+	}
+
+    }
+
+    /*
+     * scans the files of a directory, forking a task for each subdirectory
+     */
+    private class DirectoryScan extends RecursiveTask<Long> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Path directory;
+	private final Consumer<MotionFile> consumer;
+
+	DirectoryScan(Path directory, Consumer<MotionFile> consumer) {
+	    this.directory = directory;
+	    this.consumer = consumer;
+	}
+
+	@Override
+	protected Long compute() {
+
+	    long count = 0;
+	    List<DirectoryScan> subdirectories = new ArrayList<DirectoryScan>();
+
+	    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+
+		for (Path entry : entries) {
+
+		    MotionFile file = MotionFile.parse(directory, entry.getFileName().toString(), zone);
+
+		    if (file != null) {
+
+			consumer.accept(file);
+			count++;
+
+		    } else if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+
+			DirectoryScan subdirectory = new DirectoryScan(entry, consumer);
+			subdirectory.fork();
+			subdirectories.add(subdirectory);
+
+		    }
+
+		}
+
+	    } catch (IOException e) {
+
+		throw new UncheckedIOException(e);
+
+	    } catch (DirectoryIteratorException e) {
+
+		throw new UncheckedIOException(e.getCause());
+
+	    }
+
+	    for (DirectoryScan subdirectory : subdirectories)
+		count += subdirectory.join();
+
+	    return count;
+
+	}
+
+    }
+
+}
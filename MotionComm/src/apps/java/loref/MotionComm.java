@@ -34,38 +34,85 @@ import static apps.java.loref.GeneralUtilitiesLibrary.parseHttpRequest;
 import static apps.java.loref.GeneralUtilitiesLibrary.parseShellCommand;
 
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.net.URL;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
-
-import javax.imageio.ImageIO;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import com.sun.media.vfw.BitMapInfo;
 
-import net.sf.jipcam.axis.MjpegFrame;
-import net.sf.jipcam.axis.MjpegInputStream;
-
 import java.io.InputStream;
 
 public class MotionComm {
 
     /* constants */
-    private final static int DATA_SIZE_THRESHOLD = 2048;
-    private final static long DATA_SIZE_THRESHOLD_WAIT_TIME_MS = 500L;
+    private final static int STREAM_READ_BUFFER_SIZE = 65536;
+    private final static int STREAM_MAX_HEADER_LINE_LENGTH = 8192;
+    private final static int DEFAULT_STREAM_MIN_CHUNK_SIZE = 2048;
+    private final static int DEFAULT_STREAM_MAX_FLUSH_DELAY_MS = 50;
+    private final static int DEFAULT_STREAM_BUFFER_SIZE = 4 * 1024 * 1024;
+    private final static long DEFAULT_STREAM_KEEP_WARM_MS = 10000L;
+    private final static long DEFAULT_STREAM_RECONNECT_MIN_DELAY_MS = 500L;
+    private final static long DEFAULT_STREAM_RECONNECT_MAX_DELAY_MS = 30000L;
+    private final static int DEFAULT_STREAM_MAX_RECONNECT_ATTEMPTS = 5;
+    private final static String MOTION_STREAM_BOUNDARY = "--BoundaryString";
+    private final static float DEFAULT_JPEG_QUALITY = 0.8f;
+    private final static long DEFAULT_FRAME_BUFFER_POOL_SIZE = 32L * 1024 * 1024;
+    private final static long DEFAULT_PARAMETER_CACHE_TTL_MS = 60000L;
+    private final static int DEFAULT_PARAMETER_CACHE_SIZE = 1024;
+    private final static int DEFAULT_CONTROL_CONNECT_TIMEOUT_MS = 2000;
+    private final static int DEFAULT_CONTROL_READ_TIMEOUT_MS = 5000;
+    private final static int DEFAULT_CONTROL_MAX_IN_FLIGHT = 64;
+    private final static long DEFAULT_DETECTION_STATUS_MIN_POLL_INTERVAL_MS = 1000L;
+    private final static long DEFAULT_DETECTION_STATUS_MAX_POLL_INTERVAL_MS = 10000L;
+    private final static long MAX_DETECTION_STATUS_BACKOFF_MS = 60000L;
+    private final static String DETECTION_STATUS_ACTIVE = "ACTIVE";
+    private final static String DETECTION_STATUS_PAUSE = "PAUSE";
+    private final static String PRE_EVENT_DESTINATION = "preevent";
+    private final static String LATEST_FRAME_DESTINATION = "latest";
+    private final static long DEFAULT_LATEST_FRAME_KEEP_WARM_MS = 30000L;
+    private final static long DEFAULT_LATEST_FRAME_TIMEOUT_MS = 5000L;
+    private final static long DEFAULT_LATEST_FRAME_MAX_AGE_MS = 5000L;
+    private final static long LATEST_FRAME_MIN_IDLE_CHECK_MS = 1000L;
 
     /* subclasses */
-    private class StopMotionEmulation extends TimerTask {
+    private class StopMotionEmulation implements Runnable {
 
 	private String cameraID;
 
@@ -76,8 +123,11 @@ public class MotionComm {
 	@Override
 	public void run() {
 
-	    setParameter(cameraID, "emulate_motion", "off");
-	    this.cancel();
+	    try {
+		setParameter(cameraID, "emulate_motion", "off");
+	    } finally {
+		scheduledTasksCount.decrementAndGet();
+	    }
 
 	}
 
@@ -91,24 +141,28 @@ public class MotionComm {
 
 	private final static String CLASS_NAME = "CameraDataStreamer";
 	private String cameraID;
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	public InputStream getInputStream(String userName) {
 
-	    return in.get(userName);
+	    return cursors.get(userName);
 
 	}
 
 	/* process */
-	private HashMap<String, PipedInputStream> in = new HashMap<String, PipedInputStream>();
-	private HashMap<String, PipedOutputStream> out = new HashMap<String, PipedOutputStream>();
-	private HashMap<String, BufferedOutputStream> bufOut = new HashMap<String, BufferedOutputStream>();
+	private StreamRingBuffer ringBuffer;
+	private ConcurrentHashMap<String, StreamRingBuffer.Cursor> cursors = new ConcurrentHashMap<String, StreamRingBuffer.Cursor>();
 	private String port;
-	private HashMap<String, String> users = new HashMap<String, String>();
+	private ConcurrentHashMap<String, String> users = new ConcurrentHashMap<String, String>();
+	private volatile StreamHealth health = StreamHealth.CONNECTING;
+	private MotionCommMetrics.CameraMetrics cameraMetrics;
+	private volatile long idleSince = 0L;
+	private final ReentrantLock reconnectionLock = new ReentrantLock();
+	private final Condition reconnectionSignal = reconnectionLock.newCondition();
 
 	/* subclasses */
 
-	private Thread streamingThread = new Thread() {
+	private Runnable streamingTask = new Runnable() {
 
 	    public void run() {
 
@@ -116,89 +170,56 @@ public class MotionComm {
 		    System.out.println("Thread della lettura dei dati in stream avviato.");
 		}
 
-		InputStream stream; // apre lo stream
-
-		try {
-
-		    String streamURL = String.format("http://%s:%s", host, port);
-
-		    if (debugMode) {
-			System.out.println("CameraDataStreamer - Apertura dello stream \"" + streamURL + "\" in corso...");
-		    }
-
-		    stream = new URL(streamURL).openStream();
-
-		    if (debugMode) {
-			System.out.println("CameraDataStreamer - Stream \"" + streamURL + "\" aperto");
-		    }
-
-		    if (debugMode) {
-			System.out.println(running);
-		    }
-		    while (running) {
-
-			// determina la dimensione dei dati disponibili
-			int dataSize = stream.available();
+		/*
+		 * The stream is opened again whenever it is lost while the
+		 * streamer is running, after a delay which doubles at each
+		 * attempt receiving no data. The streamer gives up after
+		 * streamMaxReconnectAttempts such attempts in a row. The users
+		 * go on reading the ring buffer across the reconnections: their
+		 * frame scanners drop the frame cut short, and resume from the
+		 * first frame of the new connection.
+		 */
+		int failedAttempts = 0;
+		long reconnectDelay = streamReconnectMinDelay;
 
-			if (debugMode) {
-			    System.out.println("CameraDataStreamer - In attesa di raggiungimento del  buffer (" + dataSize + ")");
-			}
+		while (running) {
 
-			// se la dimensione supera la soglia
-			if (dataSize > DATA_SIZE_THRESHOLD) {
+		    boolean received = readStream();
 
-			    // acquisisce la porzione di stream in un nuovo
-			    // array di byte
-			    byte[] newData = new byte[dataSize];
-			    stream.read(newData, 0, dataSize);
+		    if (!running)
+			break;
 
-			    bufOut.forEach((k, v) -> {
-				try {
-				    v.write(newData);
-				    v.flush();
-				} catch (IOException e) {
-				    if (debugMode)
-					printDebugErrorMessage(CLASS_NAME, e);
-				}
+		    if (received) {
 
-			    });
+			failedAttempts = 0;
+			reconnectDelay = streamReconnectMinDelay;
 
-			    if (debugMode)
-				printDebugMessage("CameraDataStreamer", "write ok");
-
-			    if (debugMode) {
-				System.out.println("CameraDataStreamer - Buffer raggiunto. " + dataSize + " bytes inviati allo stream.");
-			    }
+		    } else if (++failedAttempts > streamMaxReconnectAttempts) {
 
-			} else {
+			break;
 
-			    try {
-				Thread.sleep(DATA_SIZE_THRESHOLD_WAIT_TIME_MS);
-			    } catch (InterruptedException e) {
-			    }
+		    }
 
-			}
+		    health = StreamHealth.RECONNECTING;
+		    streamReconnectionsCount.incrementAndGet();
 
-		    }
+		    awaitReconnection(reconnectDelay);
+		    reconnectDelay = Math.min(reconnectDelay * 2, streamReconnectMaxDelay);
 
-		    if (debugMode) {
-			System.out.println("CameraDataStreamer - Chiusura stream...");
-		    }
+		}
 
-		    // chiude lo stream
-		    stream.close();
+		// a stopped streamer is never handed out to new users
+		camerasDataStreamers.compute(cameraID, (id, current) -> {
 
-		    if (debugMode) {
-			System.out.println("CameraDataStreamer - Stream Closed");
-		    }
+		    running = false;
+		    return current == CameraDataStreamer.this ? null : current;
 
-		} catch (IOException e) {
+		});
 
-		    if (debugMode) {
-			System.out.println("CameraDataStreamer - IOException: " + e.getMessage());
-		    }
+		health = StreamHealth.STOPPED;
 
-		}
+		// the users get end-of-stream once they have read the pending data
+		ringBuffer.close();
 
 	    }
 
@@ -208,14 +229,21 @@ public class MotionComm {
 
 	public CameraDataStreamer(String cameraID) {
 	    this.cameraID = cameraID;
-	    port = getStreamPort(cameraID);
+	    ringBuffer = new StreamRingBuffer(streamBufferSize, MOTION_STREAM_BOUNDARY.getBytes(StandardCharsets.US_ASCII));
+	    cameraMetrics = metrics.forCamera(cameraID);
 	}
 
 	private void startStreaming() {
 
-	    streamingThread.start();
 	    running = true;
 
+	    try {
+		executor.execute(streamingTask);
+	    } catch (RejectedExecutionException e) {
+		running = false;
+		throw e;
+	    }
+
 	    if (debugMode) {
 		System.out.println("Streaming dei dati avviato");
 	    }
@@ -226,302 +254,2311 @@ public class MotionComm {
 
 	    running = false;
 
+	    reconnectionLock.lock();
+
+	    try {
+		reconnectionSignal.signalAll();
+	    } finally {
+		reconnectionLock.unlock();
+	    }
+
 	}
 
-	private void addUser(String userID) {
+	/*
+	 * Opens the stream and writes its data to the ring buffer, until the
+	 * stream ends or fails, or the streamer is stopped. Returns true if
+	 * any data has been received.
+	 */
+	private boolean readStream() {
 
-	    PipedInputStream inStream = new PipedInputStream();
-	    PipedOutputStream outStream = new PipedOutputStream();
-	    BufferedOutputStream bufOutStream = new BufferedOutputStream(outStream);
+	    boolean received = false;
+	    InputStream stream = null;
 
 	    try {
 
-		inStream.connect(outStream);
-		in.put(userID, inStream);
-		out.put(userID, outStream);
-		bufOut.put(userID, bufOutStream);
+		port = getStreamPort(cameraID);
+		String streamURL = String.format("http://%s:%s", host, port);
+
+		if (debugMode) {
+		    System.out.println("CameraDataStreamer - Apertura dello stream \"" + streamURL + "\" in corso...");
+		}
 
-		users.put(userID, "" + System.currentTimeMillis());
+		int minChunkSize = streamMinChunkSize;
+		int maxFlushDelay = streamMaxFlushDelay;
 
-		if (debugMode)
-		    printDebugMessage(CLASS_NAME, String.format("User \"%s\" added, piped stream connected", userID));
+		stream = openStream(port, maxFlushDelay);
 
-	    } catch (IOException e) {
+		health = StreamHealth.STREAMING;
 
-		if (debugMode)
-		    printDebugErrorMessage(CLASS_NAME, e);
+		if (debugMode) {
+		    System.out.println("CameraDataStreamer - Stream \"" + streamURL + "\" aperto");
+		}
+
+		/*
+		 * Blocking reads into a reusable buffer. Data is forwarded to
+		 * the users as soon as at least streamMinChunkSize bytes are
+		 * buffered, or when streamMaxFlushDelay milliseconds have
+		 * elapsed since the first buffered byte. The read timeout of
+		 * the connection wakes the loop up when the camera stalls, so
+		 * that pending data is flushed and a stop request is noticed.
+		 */
+		byte[] buffer = new byte[Math.max(STREAM_READ_BUFFER_SIZE, minChunkSize)];
+		int bufferedBytes = 0;
+		long firstByteTime = 0L;
+
+		while (running) {
+
+		    int readBytes;
+
+		    try {
+			readBytes = stream.read(buffer, bufferedBytes, buffer.length - bufferedBytes);
+		    } catch (SocketTimeoutException e) {
+			readBytes = 0;
+		    }
+
+		    if (readBytes < 0) {
+
+			if (debugMode) {
+			    System.out.println("CameraDataStreamer - Fine dello stream");
+			}
+
+			break;
+
+		    }
+
+		    if (readBytes > 0) {
+
+			metrics.addBytesIn(cameraMetrics, readBytes);
+
+			if (bufferedBytes == 0) {
+			    firstByteTime = System.currentTimeMillis();
+			    received = true;
+			}
+
+		    }
+
+		    bufferedBytes += readBytes;
+
+		    if (bufferedBytes > 0 && (bufferedBytes >= minChunkSize || bufferedBytes == buffer.length || System.currentTimeMillis() - firstByteTime >= maxFlushDelay)) {
+
+			// written once, read by every user through its cursor
+			ringBuffer.write(buffer, 0, bufferedBytes);
+			bufferedBytes = 0;
+
+		    }
+
+		}
+
+		if (bufferedBytes > 0)
+		    ringBuffer.write(buffer, 0, bufferedBytes);
+
+	    } catch (IOException | ControlBusyException e) {
+
+		// also when the stream port could not be requested: retried
+		if (debugMode) {
+		    System.out.println("CameraDataStreamer - " + e.getClass().getSimpleName() + ": " + e.getMessage());
+		}
+
+	    } finally {
+
+		if (stream != null) {
+
+		    try {
+			stream.close();
+		    } catch (IOException e) {
+			if (debugMode)
+			    printDebugErrorMessage(CLASS_NAME, e);
+		    }
+
+		}
 
 	    }
 
+	    return received;
+
 	}
 
-	private void removeUser(String userID) {
+	/*
+	 * Opens the stream of the camera. The connection and the response
+	 * headers are subject to the timeouts of the control requests: only
+	 * then the read timeout of the returned stream is set to the given
+	 * poll interval, so that the read loop wakes up when the camera stalls.
+	 */
+	private InputStream openStream(String streamPort, int pollInterval) throws IOException {
 
-	    users.remove(userID);
+	    int portNumber;
 
 	    try {
-		in.get(userID).close();
-		out.get(userID).close();
-		bufOut.get(userID).close();
+		portNumber = Integer.parseInt(streamPort.trim());
+	    } catch (NumberFormatException e) {
+		throw new IOException("Invalid stream port \"" + streamPort + "\"");
+	    }
 
-	    } catch (IOException e) {
+	    Socket socket = new Socket();
 
-		if (debugMode)
-		    printDebugErrorMessage(CLASS_NAME, e);
-	    }
+	    try {
 
-	    in.remove(userID);
-	    out.remove(userID);
-	    bufOut.remove(userID);
+		socket.connect(new InetSocketAddress(host, portNumber), controlClient.getConnectTimeout());
+		socket.setSoTimeout(controlClient.getReadTimeout());
 
-	    if (debugMode) {
-		System.out.println("CameraDataStreamer - Utilizzatore \"" + userID + "\" rimosso");
-	    }
+		OutputStream out = socket.getOutputStream();
+		out.write(("GET / HTTP/1.0\r\nHost: " + host + ":" + portNumber + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+
+		// the headers are read unbuffered, so that no body data is held back
+		InputStream in = socket.getInputStream();
+		String statusLine = readHeaderLine(in);
+		String[] status = statusLine.split(" ");
+
+		if (status.length < 2 || !status[0].startsWith("HTTP/") || !status[1].equals("200"))
+		    throw new IOException("Unexpected stream response \"" + statusLine + "\"");
+
+		while (!readHeaderLine(in).isEmpty())
+		    ;
 
-	    if (users.size() < 1) {
+		socket.setSoTimeout(pollInterval);
+		return in;
 
-		stopStreaming();
-		camerasDataStreamers.remove(cameraID);
+	    } catch (IOException e) {
+
+		socket.close();
+		throw e;
 
 	    }
 
 	}
 
-    }
+	private String readHeaderLine(InputStream in) throws IOException {
 
-    private class FrameCapturer {
+	    StringBuilder line = new StringBuilder();
+	    int c;
+
+	    while ((c = in.read()) != '\n') {
+
+		if (c < 0)
+		    throw new IOException("Stream closed in the response headers");
+
+		if (line.length() >= STREAM_MAX_HEADER_LINE_LENGTH)
+		    throw new IOException("Stream response header too long");
+
+		if (c != '\r')
+		    line.append((char) c);
+
+	    }
+
+	    return line.toString();
+
+	}
 
 	/*
-	 * this class manages the frame capture from a camera, using the
-	 * CameraDataStream class for input data
+	 * waits for the given time before the stream is opened again, unless
+	 * the streamer is stopped in the meantime
 	 */
+	private void awaitReconnection(long delayMillis) {
 
-	/* getters and setters */
-	
-	private static final int DEFAULT_FRAME_WIDTH=640;
-	private static final int DEFAULT_FRAME_HEIGHT=480;
+	    long remaining = TimeUnit.MILLISECONDS.toNanos(delayMillis);
 
-	private CameraDataStreamer cameraDataStreamer;
-	private String cameraID;
-	private String destination;
-	private int framesToBeCaptured = 0;
-	private int capturedFrames = 0;
-	
-	private int frameWidth;
-	private int frameHeight;
+	    // not a monitor: a virtual thread waiting here leaves its carrier
+	    reconnectionLock.lock();
 
-	private String userID;
+	    try {
 
-	/* 
-	 * getters and setters
-	 */
-	public void setFramesToBeCaptured(int value) {
-	    this.framesToBeCaptured = value;
-	}
+		while (running && remaining > 0) {
 
-	/* constructors */
+		    try {
+			remaining = reconnectionSignal.awaitNanos(remaining);
+		    } catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			running = false;
+		    }
 
-	public FrameCapturer(String cameraID, CameraDataStreamer cameraDataStreamer, String destination) {
+		}
 
-	    this.cameraID = cameraID;
-	    this.cameraDataStreamer = cameraDataStreamer;
-	    this.destination=destination;
-	    this.frameWidth=DEFAULT_FRAME_WIDTH;
-	    this.frameHeight=DEFAULT_FRAME_HEIGHT;
+	    } finally {
 
-	    this.userID = cameraID + "_" + destination + "-" + "FrameCapturer";
+		reconnectionLock.unlock();
+
+	    }
 
 	}
-	
-	public FrameCapturer(String cameraID, CameraDataStreamer cameraDataStreamer, String destination, int frameWidth, int frameHeight) {
 
-	    this.cameraID = cameraID;
-	    this.cameraDataStreamer = cameraDataStreamer;
-	    this.destination=destination;
-	    this.frameWidth=frameWidth;
-	    this.frameHeight=frameHeight;
+	private StreamHealth getHealth() {
 
-	    this.userID = cameraID + "_" + destination + "-" + "FrameCapturer";
+	    StreamHealth current = health;
+	    return current == StreamHealth.STREAMING && users.isEmpty() ? StreamHealth.IDLE : current;
 
 	}
 
-	/* methods */
-	
-	public void addFramesToCapture(int value) {
-	    
-	    this.framesToBeCaptured += value;
-	    
+	private boolean isRunning() {
+
+	    return running;
+
 	}
 
-	public void startFrameCapture() {
+	private int getUsersCount() {
 
-	    cameraDataStreamer.addUser(userID);
+	    return users.size();
 
-	    new Thread() {
+	}
 
-		public void run() {
+	private void addUser(String userID) {
 
-		    boolean continueLooping = true;
+	    cursors.put(userID, ringBuffer.newCursor(streamOverrunPolicy));
+	    users.put(userID, "" + System.currentTimeMillis());
 
-		    try {
+	    if (debugMode)
+		printDebugMessage(CLASS_NAME, String.format("User \"%s\" added, stream cursor created", userID));
 
-			MjpegInputStream mjpegInputStream = new MjpegInputStream(cameraDataStreamer.getInputStream(userID));
-
-			while (capturedFrames < framesToBeCaptured && continueLooping) {
-
-			    MjpegFrame mjpegFrame = mjpegInputStream.readMjpegFrame();
-			    			    
-			    if (mjpegFrame != null) {
-				    
-				if (motionCommListener != null){
-				    
-				    Image scaledImage = mjpegFrame.getImage().getScaledInstance(frameWidth, frameHeight, Image.SCALE_SMOOTH);
-				    BufferedImage destinationImage = new BufferedImage(frameWidth, frameHeight, BufferedImage.TYPE_INT_RGB);
-				    destinationImage.getGraphics().drawImage(scaledImage, 0, 0, null);
-				    				    				    
-				    ByteArrayOutputStream out = new ByteArrayOutputStream();
-				    ImageIO.write(destinationImage, "gif", out);
-				    out.flush();
-				    
-				    motionCommListener.onNewFrame(cameraID, out.toByteArray(), destination);
-
-				    destinationImage.getGraphics().dispose();
-				    out.close();
-				    
-				}
-				    
-				// incrementa il contatore dei frames catturati
-				capturedFrames++;
-
-				if (debugMode) {
-				    System.out.println("FrameCapturer - Frame catturati: " + capturedFrames + "; da catturare: " + framesToBeCaptured);
-				}
+	}
 
-			    }
+	private void removeUser(String userID) {
 
-			}
+	    users.remove(userID);
 
-			if (debugMode) {
-			    System.out.println("FrameCapturer - Numero di fotogrammi raggiunto");
-			}
+	    if (users.isEmpty())
+		idleSince = System.nanoTime();
 
-			mjpegInputStream.close();
+	    StreamRingBuffer.Cursor cursor = cursors.remove(userID);
+	    if (cursor != null)
+		cursor.close();
 
-			if (debugMode) {
-			    System.out.println("FrameCapturer - Stream chiuso");
-			}
+	    if (debugMode) {
+		System.out.println("CameraDataStreamer - Utilizzatore \"" + userID + "\" rimosso");
+	    }
 
-		    } catch (IOException | IllegalArgumentException e) {
+	}
 
-			if (debugMode) {
-			    System.out.println("FrameCapturer - Exception: " + e.getMessage());
-			    continueLooping = false;
-			}
+    }
 
-		    }
+    private class CameraFramePipeline {
 
-		    cameraDataStreamer.removeUser(userID);
+	/*
+	 * This class reads the frames of a camera from its CameraDataStreamer
+	 * and delivers them to all the FrameCapturers of the camera.
+	 * 
+	 * Each frame is parsed and decoded at most once, scaled at most once per
+	 * requested size and encoded at most once per requested FrameVariant,
+	 * however many FrameCapturers requested it. The resulting data is shared
+	 * by all the FrameCapturers of the same variant.
+	 */
 
-		    if (debugMode) {
-			System.out.println("FrameCapturer - richiesta rimozione utilizzatore inviata");
-		    }
+	private final static String CLASS_NAME = "CameraFramePipeline";
+	private String cameraID;
+	private String userID;
+	private volatile boolean running = false;
 
-		    camerasFrameCapturers.remove(cameraID + "_" + destination);
+	private CameraDataStreamer cameraDataStreamer;
+	private FrameScaler frameScaler;
+	private float jpegQuality;
+	private FrameBufferPool frameBufferPool;
+	private MotionCommMetrics.CameraMetrics cameraMetrics;
 
-		}
+	/* process */
+	private CopyOnWriteArrayList<FrameCapturer> frameCapturers = new CopyOnWriteArrayList<FrameCapturer>();
 
-	    }.start();
+	/* per-frame caches, used by the pipeline thread only */
+	private ArrayList<FrameCapturer> acceptingFrameCapturers = new ArrayList<FrameCapturer>();
+	private HashMap<FrameVariant, FrameBuffer> encodedVariants = new HashMap<FrameVariant, FrameBuffer>();
+	private HashMap<Long, BufferedImage> scaledImages = new HashMap<Long, BufferedImage>();
+	private EnumMap<FrameFormat, FrameEncoder> frameEncoders = new EnumMap<FrameFormat, FrameEncoder>(FrameFormat.class);
 
-	}
+	/* subclasses */
 
-    }
+	private Runnable pipelineTask = new Runnable() {
 
-    /* getters and setters */
+	    public void run() {
 
-    private String host;
-    private int port;
-    private String owner;
-    private boolean debugMode = false;
+		InputStream cameraStream = cameraDataStreamer.getInputStream(userID);
+		MjpegFrameScanner frameScanner = new MjpegFrameScanner(cameraStream);
 
-    public String getHost() {
-	return host;
-    }
+		try {
 
-    public void setHost(String host) {
-	this.host = host;
-    }
+		    while (running) {
 
-    public int getPort() {
-	return port;
-    }
+			// the parse time leaves out the wait for the stream data
+			long parseStart = System.nanoTime();
+			long readTime = frameScanner.getReadNanos();
 
-    public void setPort(int port) {
-	this.port = port;
-    }
+			if (!frameScanner.nextFrame())
+			    break;
 
-    public void setDebugMode(boolean value) {
-	debugMode = value;
-    }
+			metrics.recordParse(cameraMetrics, System.nanoTime() - parseStart - (frameScanner.getReadNanos() - readTime));
 
-    /* control */
-    private String baseRequestURL;
-    private MotionCommListener motionCommListener;
+			processFrame(frameScanner.getFrameBuffer(), frameScanner.getFrameOffset(), frameScanner.getFrameLength());
 
-    private HashMap<String, CameraDataStreamer> camerasDataStreamers = new HashMap<String, CameraDataStreamer>();
-    private HashMap<String, FrameCapturer> camerasFrameCapturers = new HashMap<String, FrameCapturer>();
+		    }
 
-    /* constructors */
+		} catch (IOException e) {
 
-    public MotionComm(String host, String owner, int port) {
+		    if (debugMode)
+			printDebugErrorMessage(CLASS_NAME, e);
 
-	this.host = host;
-	this.port = port;
-	this.owner = owner;
+		}
 
-	baseRequestURL = new StringBuilder().append("http://").append(host).append(":").append(port).toString();
+		/*
+		 * the stream has ended, or the last FrameCapturer has left: no
+		 * FrameCapturer can join this pipeline anymore, the ones still
+		 * registered are dropped
+		 */
+		camerasFramePipelines.compute(cameraID, (id, current) -> {
 
-    }
+		    running = false;
+		    return current == CameraFramePipeline.this ? null : current;
 
-    /* interface */
+		});
 
-    /* methods */
+		for (FrameCapturer frameCapturer : frameCapturers) {
+		    camerasFrameCapturers.remove(frameCapturer.getFrameCapturerID(), frameCapturer);
+		    frameCapturer.onPipelineEnd();
+		}
 
-    public void setListener(MotionCommListener listener) {
-	motionCommListener = listener;
-    }
+		frameEncoders.values().forEach(FrameEncoder::dispose);
 
-    public int getNOfThreads() {
+		releaseCameraDataStreamer(cameraID, cameraDataStreamer, userID);
 
-	/*
-	 * restituisce il numero di thread attivi corrispondenti ad una
-	 * videocamera
-	 * 
-	 * ad esempio, questa  la risposta di motion con 2 videocamere:
-	 * 
-	 * Motion 4.0 Running [3] Cameras
-	 * 0
-	 * 1
-	 * 2
-	 * 
-	 * la funzione restituisce 2, ovvero il numero di righe della
-	 * risposta
-	 * -2, in quanto la prima riga  la risposta ed il thread 0  sempre
-	 * il
-	 * thread principale
-	 * 
-	 */
+		if (debugMode) {
+		    System.out.println("CameraFramePipeline - Pipeline terminata per cameraID: " + cameraID);
+		}
 
-	String httpResponse = parseHttpRequest(baseRequestURL);
-	String[] responseLines = httpResponse.split("\n");
+	    }
 
-	return responseLines.length - 2;
+	};
 
-    }
+	/* constructors */
 
-    /*
-     * Returns a String array with the thread ids of the current motion
-     * instance.
-     * 
+	public CameraFramePipeline(String cameraID) {
+
+	    this.cameraID = cameraID;
+	    this.userID = cameraID + "-" + "FramePipeline" + "-" + streamUsersSequence.incrementAndGet();
+	    this.frameScaler = MotionComm.this.frameScaler;
+	    this.jpegQuality = MotionComm.this.jpegQuality;
+	    this.frameBufferPool = MotionComm.this.frameBufferPool;
+	    this.cameraMetrics = metrics.forCamera(cameraID);
+
+	}
+
+	/* methods */
+
+	private void startPipeline() {
+
+	    running = true;
+	    cameraDataStreamer = acquireCameraDataStreamer(cameraID, userID);
+
+	    try {
+		executor.execute(pipelineTask);
+	    } catch (RejectedExecutionException e) {
+		running = false;
+		releaseCameraDataStreamer(cameraID, cameraDataStreamer, userID);
+		throw e;
+	    }
+
+	}
+
+	/*
+	 * must be called while holding the camerasFramePipelines entry of this
+	 * pipeline
+	 */
+	private void stopPipeline() {
+
+	    running = false;
+
+	    // unblocks the pipeline thread
+	    InputStream cameraStream = cameraDataStreamer.getInputStream(userID);
+	    if (cameraStream != null) {
+
+		try {
+		    cameraStream.close();
+		} catch (IOException e) {
+		    if (debugMode)
+			printDebugErrorMessage(CLASS_NAME, e);
+		}
+
+	    }
+
+	}
+
+	private boolean isRunning() {
+
+	    return running;
+
+	}
+
+	private void addFrameCapturer(FrameCapturer frameCapturer) {
+
+	    frameCapturers.add(frameCapturer);
+
+	}
+
+	private void removeFrameCapturer(FrameCapturer frameCapturer) {
+
+	    frameCapturers.remove(frameCapturer);
+
+	}
+
+	private int getFrameCapturersCount() {
+
+	    return frameCapturers.size();
+
+	}
+
+	private void processFrame(byte[] data, int offset, int length) {
+
+	    // the frames beyond the rate of each destination are skipped before being decoded
+	    long now = System.nanoTime();
+	    acceptingFrameCapturers.clear();
+
+	    for (FrameCapturer frameCapturer : frameCapturers) {
+
+		frameCapturer.onStreamFrame(data, offset, length, now);
+
+		if (frameCapturer.acceptsFrame(now))
+		    acceptingFrameCapturers.add(frameCapturer);
+
+	    }
+
+	    encodedVariants.clear();
+	    scaledImages.clear();
+	    BufferedImage decodedImage = null;
+	    boolean decoded = false;
+
+	    // the frames for the byte[] listeners are copied once, to arrays of their own
+	    FrameBufferPool framesPool = FrameBufferPool.UNPOOLED;
+
+	    for (FrameCapturer frameCapturer : acceptingFrameCapturers) {
+
+		if (frameCapturer.wantsFrameBuffers())
+		    framesPool = frameBufferPool;
+
+	    }
+
+	    for (FrameCapturer frameCapturer : acceptingFrameCapturers) {
+
+		FrameVariant variant = frameCapturer.getFrameVariant();
+		FrameBuffer frameData = encodedVariants.get(variant);
+
+		if (frameData == null && !encodedVariants.containsKey(variant)) {
+
+		    try {
+
+			if (variant.isPassThrough()) {
+
+			    // il fotogramma JPEG della camera viene inoltrato senza decodifica
+			    frameData = framesPool.copyOf(data, offset, length);
+
+			} else {
+
+			    if (!decoded) {
+
+				// decodifica una sola volta, alla risoluzione richiesta piu' alta
+				int[] decodingSize = getDecodingSize();
+				long decodeStart = System.nanoTime();
+				decodedImage = frameScaler.decode(data, offset, length, decodingSize[0], decodingSize[1]);
+				metrics.recordDecode(cameraMetrics, System.nanoTime() - decodeStart);
+				decoded = true;
+
+			    }
+
+			    if (decodedImage != null) {
+
+				BufferedImage scaledImage = getScaledImage(decodedImage, variant);
+				long encodeStart = System.nanoTime();
+				frameData = getFrameEncoder(variant.getFormat()).encode(scaledImage, framesPool);
+				metrics.recordEncode(cameraMetrics, System.nanoTime() - encodeStart);
+
+			    }
+
+			}
+
+		    } catch (IOException | IllegalArgumentException e) {
+
+			if (debugMode)
+			    printDebugErrorMessage(CLASS_NAME, e);
+
+		    }
+
+		    encodedVariants.put(variant, frameData);
+
+		}
+
+		if (frameData != null)
+		    frameCapturer.postFrame(frameData);
+
+	    }
+
+	    // the FrameCapturers hold their own references to the frames they were posted
+	    for (FrameBuffer frameData : encodedVariants.values()) {
+
+		if (frameData != null)
+		    frameData.release();
+
+	    }
+
+	    for (FrameCapturer frameCapturer : frameCapturers)
+		frameCapturer.retireIfDone();
+
+	}
+
+	/*
+	 * Returns the smallest size the frames can be decoded at, for the
+	 * variants requested for the current frame: {0, 0} if any of them needs
+	 * the frames at their own size.
+	 */
+	private int[] getDecodingSize() {
+
+	    int width = 0;
+	    int height = 0;
+
+	    for (FrameCapturer frameCapturer : acceptingFrameCapturers) {
+
+		FrameVariant variant = frameCapturer.getFrameVariant();
+
+		if (variant.isPassThrough())
+		    continue;
+
+		if (!variant.isResized())
+		    return new int[] { 0, 0 };
+
+		width = Math.max(width, variant.getWidth());
+		height = Math.max(height, variant.getHeight());
+
+	    }
+
+	    return new int[] { width, height };
+
+	}
+
+	private BufferedImage getScaledImage(BufferedImage decodedImage, FrameVariant variant) {
+
+	    Long size = ((long) variant.getWidth() << 32) | variant.getHeight();
+	    BufferedImage scaledImage = scaledImages.get(size);
+
+	    if (scaledImage == null) {
+
+		long scaleStart = System.nanoTime();
+		scaledImage = frameScaler.scale(decodedImage, variant.getWidth(), variant.getHeight());
+		metrics.recordScale(System.nanoTime() - scaleStart);
+		scaledImages.put(size, scaledImage);
+
+	    }
+
+	    return scaledImage;
+
+	}
+
+	private FrameEncoder getFrameEncoder(FrameFormat format) {
+
+	    FrameEncoder frameEncoder = frameEncoders.get(format);
+
+	    if (frameEncoder == null) {
+
+		frameEncoder = new FrameEncoder(format, jpegQuality);
+		frameEncoders.put(format, frameEncoder);
+
+	    }
+
+	    return frameEncoder;
+
+	}
+
+    }
+
+    private class FrameCapturer {
+
+	/*
+	 * this class manages the frame capture from a camera for a destination.
+	 * The frames are supplied by the CameraFramePipeline of the camera, at
+	 * most at the maximum frame rate of the destination, and delivered to
+	 * the listener by a task of the executor. A frame still waiting for the
+	 * listener when a newer one arrives is dropped, so a slow listener gets
+	 * the latest frames instead of a growing backlog.
+	 */
+
+	/* getters and setters */
+	
+	private static final int DEFAULT_FRAME_WIDTH=640;
+	private static final int DEFAULT_FRAME_HEIGHT=480;
+
+	private volatile CameraFramePipeline cameraFramePipeline;
+	private String cameraID;
+	private String destination;
+	private String frameCapturerID;
+	private volatile int framesToBeCaptured = 0;
+	private volatile int capturedFrames = 0;
+	
+	private FrameVariant frameVariant;
+	private MotionCommMetrics.CameraMetrics cameraMetrics;
+
+	/* frame rate, used by the pipeline thread only */
+	private long nextFrameTime = System.nanoTime();
+
+	/* delivery */
+	private final AtomicReference<FrameBuffer> pendingFrame = new AtomicReference<FrameBuffer>();
+	private final AtomicBoolean delivering = new AtomicBoolean();
+	private final AtomicBoolean retired = new AtomicBoolean();
+
+	private Runnable deliveryTask = new Runnable() {
+
+	    @Override
+	    public void run() {
+
+		do {
+
+		    FrameBuffer frameData;
+
+		    while ((frameData = pendingFrame.getAndSet(null)) != null) {
+
+			try {
+
+			    if (wantsFrames()) {
+
+				long deliveryStart = System.nanoTime();
+				deliverFrame(frameData);
+				metrics.recordDelivery(cameraMetrics, System.nanoTime() - deliveryStart);
+
+			    }
+
+			} finally {
+
+			    frameData.release();
+
+			}
+
+			retireIfDone();
+
+		    }
+
+		    onDeliveryDrained();
+
+		    delivering.set(false);
+
+		    // a frame, or the end of the pipeline, may have been posted after the last check
+		} while ((pendingFrame.get() != null || hasPendingCompletion()) && delivering.compareAndSet(false, true));
+
+	    }
+
+	};
+
+	/* 
+	 * getters and setters
+	 */
+
+	/*
+	 * the number of frames to be captured must only be changed while holding
+	 * the camerasFrameCapturers entry of this FrameCapturer, see
+	 * captureFrames() and retire()
+	 */
+	public void setFramesToBeCaptured(int value) {
+	    this.framesToBeCaptured = value;
+	}
+
+	public String getFrameCapturerID() {
+	    return frameCapturerID;
+	}
+
+	public String getCameraID() {
+	    return cameraID;
+	}
+
+	public FrameVariant getFrameVariant() {
+	    return frameVariant;
+	}
+
+	/* constructors */
+
+	public FrameCapturer(String cameraID, String destination) {
+
+	    this(cameraID, destination, DEFAULT_FRAME_WIDTH, DEFAULT_FRAME_HEIGHT, FrameFormat.GIF);
+
+	}
+	
+	/*
+	 * frameWidth or frameHeight not positive means no resize
+	 */
+	public FrameCapturer(String cameraID, String destination, int frameWidth, int frameHeight, FrameFormat frameFormat) {
+
+	    this(cameraID, destination, cameraID + "_" + destination, frameWidth, frameHeight, frameFormat);
+
+	}
+
+	protected FrameCapturer(String cameraID, String destination, String frameCapturerID, int frameWidth, int frameHeight, FrameFormat frameFormat) {
+
+	    this.cameraID = cameraID;
+	    this.destination = destination;
+	    this.frameVariant = new FrameVariant(frameWidth, frameHeight, frameFormat);
+
+	    this.frameCapturerID = frameCapturerID;
+	    this.cameraMetrics = metrics.forCamera(cameraID);
+
+	}
+
+	/* methods */
+	
+	public void addFramesToCapture(int value) {
+	    
+	    this.framesToBeCaptured += value;
+	    
+	}
+
+	public boolean wantsFrames() {
+
+	    return capturedFrames < framesToBeCaptured;
+
+	}
+
+	/*
+	 * true if the frames are delivered as FrameBuffers rather than arrays
+	 */
+	boolean wantsFrameBuffers() {
+
+	    return motionCommListener instanceof MotionCommFrameBufferListener;
+
+	}
+
+	/*
+	 * true once this FrameCapturer needs no more frames
+	 */
+	boolean isDone() {
+
+	    return capturedFrames >= framesToBeCaptured;
+
+	}
+
+	/*
+	 * called when the pipeline has ended, while this FrameCapturer was still
+	 * registered
+	 */
+	void onPipelineEnd() {
+	}
+
+	/*
+	 * called by the delivery task each time no frame is left waiting
+	 */
+	void onDeliveryDrained() {
+	}
+
+	/*
+	 * true if the delivery task has to run onDeliveryDrained() even without
+	 * a frame to deliver
+	 */
+	boolean hasPendingCompletion() {
+	    return false;
+	}
+
+	/*
+	 * called by the pipeline thread for each frame of the camera stream, as
+	 * it is, before the frame rate of the destination is applied
+	 */
+	void onStreamFrame(byte[] data, int offset, int length, long now) {
+	}
+
+	/*
+	 * Removes this FrameCapturer from camerasFrameCapturers, unless more
+	 * frames have been requested in the meantime. Returns true if this
+	 * FrameCapturer is no longer registered.
+	 */
+	private boolean retire() {
+
+	    return camerasFrameCapturers.computeIfPresent(frameCapturerID, (id, frameCapturer) -> {
+
+		if (frameCapturer == this && isDone())
+		    return null;
+
+		return frameCapturer;
+
+	    }) != this;
+
+	}
+
+	public void startFrameCapture() {
+
+	    cameraFramePipeline = acquireCameraFramePipeline(cameraID, this);
+
+	}
+
+	/*
+	 * Called by the pipeline thread for each frame, before decoding it.
+	 * Returns true if this FrameCapturer wants the frame, given the maximum
+	 * frame rate of its destination. The frames are accepted at a steady
+	 * pace, allowing a quarter of the minimum interval of jitter.
+	 */
+	private boolean acceptsFrame(long now) {
+
+	    if (!wantsFrames())
+		return false;
+
+	    long interval = getDestinationMinFrameInterval(destination);
+
+	    if (interval <= 0)
+		return true;
+
+	    long early = nextFrameTime - now;
+
+	    if (early > interval / 4) {
+
+		metrics.recordSkip(cameraMetrics);
+		return false;
+
+	    }
+
+	    // after a pause of the stream, the pace restarts from this frame
+	    nextFrameTime = early < -interval ? now + interval : nextFrameTime + interval;
+	    return true;
+
+	}
+
+	/*
+	 * called by the pipeline thread: hands the frame over to the delivery
+	 * task, replacing the frame still waiting for it, if any
+	 */
+	private void postFrame(FrameBuffer frameData) {
+
+	    FrameBuffer droppedFrame = pendingFrame.getAndSet(frameData.retain());
+
+	    if (droppedFrame != null) {
+
+		droppedFrame.release();
+		metrics.recordDrop(cameraMetrics);
+
+	    }
+
+	    scheduleDelivery();
+
+	}
+
+	/*
+	 * runs the delivery task, unless it is already running
+	 */
+	void scheduleDelivery() {
+
+	    if (delivering.compareAndSet(false, true)) {
+
+		try {
+		    executor.execute(deliveryTask);
+		} catch (RejectedExecutionException e) {
+		    // no thread available: delivers from the pipeline thread
+		    deliveryTask.run();
+		}
+
+	    }
+
+	}
+
+	/*
+	 * Unregisters this FrameCapturer once it is done. Called by the pipeline
+	 * thread, the delivery task and FrameSubscription.cancel(), it releases
+	 * the pipeline only once, after it has been acquired.
+	 */
+	void retireIfDone() {
+
+	    if (cameraFramePipeline != null && isDone() && retire() && retired.compareAndSet(false, true))
+		releaseCameraFramePipeline(cameraID, cameraFramePipeline, this);
+
+	}
+
+	/*
+	 * called by the delivery task
+	 */
+	void deliverFrame(FrameBuffer frameData) {
+
+	    MotionCommListener listener = motionCommListener;
+
+	    if (listener != null) {
+
+		try {
+
+		    if (listener instanceof MotionCommFrameBufferListener)
+			((MotionCommFrameBufferListener) listener).onNewFrame(cameraID, frameData, destination);
+		    else
+			listener.onNewFrame(cameraID, frameData.toByteArray(), destination);
+
+		} catch (RuntimeException e) {
+
+		    if (debugMode)
+			printDebugErrorMessage("FrameCapturer", e);
+
+		}
+
+	    }
+
+	    // incrementa il contatore dei frames catturati
+	    capturedFrames++;
+
+	}
+
+    }
+
+    private class SubscriptionFrameCapturer extends FrameCapturer implements FrameSubscription {
+
+	/*
+	 * this FrameCapturer delivers the frames to a FrameSubscriber, as long
+	 * as it has outstanding demand, until it is cancelled
+	 */
+
+	private FrameSubscriber subscriber;
+	private final AtomicLong demand = new AtomicLong();
+	private volatile boolean cancelled = false;
+	private volatile boolean pipelineEnded = false;
+
+	/* constructors */
+
+	public SubscriptionFrameCapturer(String cameraID, String destination, int frameWidth, int frameHeight, FrameFormat frameFormat, FrameSubscriber subscriber) {
+
+	    super(cameraID, destination, cameraID + "_" + destination + "_" + subscriptionsSequence.incrementAndGet(), frameWidth, frameHeight, frameFormat);
+	    this.subscriber = subscriber;
+
+	}
+
+	/* methods */
+
+	@Override
+	public void request(long n) {
+
+	    if (n < 1)
+		throw new IllegalArgumentException("Requested frames must be positive");
+
+	    // the demand saturates at Long.MAX_VALUE, which means unbounded
+	    demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+
+	}
+
+	@Override
+	public void cancel() {
+
+	    cancelled = true;
+	    retireIfDone();
+
+	}
+
+	@Override
+	public boolean isCancelled() {
+	    return cancelled;
+	}
+
+	@Override
+	public boolean wantsFrames() {
+
+	    return !cancelled && demand.get() > 0;
+
+	}
+
+	@Override
+	boolean wantsFrameBuffers() {
+
+	    return false;
+
+	}
+
+	@Override
+	boolean isDone() {
+
+	    return cancelled;
+
+	}
+
+	@Override
+	void deliverFrame(FrameBuffer frameData) {
+
+	    // only the delivery task decreases the demand, so it cannot go below zero
+	    if (demand.get() != Long.MAX_VALUE)
+		demand.decrementAndGet();
+
+	    try {
+
+		subscriber.onFrame(getCameraID(), frameData.toByteArray());
+
+	    } catch (RuntimeException e) {
+
+		if (debugMode)
+		    printDebugErrorMessage("SubscriptionFrameCapturer", e);
+
+	    }
+
+	}
+
+	/*
+	 * the completion goes through the delivery task, after the frame still
+	 * waiting, so that the subscriber is called by one thread at a time
+	 */
+	@Override
+	void onPipelineEnd() {
+
+	    pipelineEnded = true;
+	    scheduleDelivery();
+
+	}
+
+	@Override
+	boolean hasPendingCompletion() {
+
+	    return pipelineEnded && !cancelled;
+
+	}
+
+	@Override
+	void onDeliveryDrained() {
+
+	    if (!hasPendingCompletion())
+		return;
+
+	    cancelled = true;
+
+	    try {
+
+		subscriber.onComplete();
+
+	    } catch (RuntimeException e) {
+
+		if (debugMode)
+		    printDebugErrorMessage("SubscriptionFrameCapturer", e);
+
+	    }
+
+	    retireIfDone();
+
+	}
+
+    }
+
+    private class PreEventFrameCapturer extends FrameCapturer {
+
+	/*
+	 * this FrameCapturer keeps the camera stream open and stores its frames,
+	 * as they are, in a PreEventFrameRing. It never wants frames delivered,
+	 * so the frames are neither copied nor decoded for it by the pipeline.
+	 */
+
+	private final PreEventFrameRing frameRing;
+	private volatile boolean stopped = false;
+
+	/* constructors */
+
+	public PreEventFrameCapturer(String cameraID, PreEventFrameRing frameRing) {
+
+	    super(cameraID, PRE_EVENT_DESTINATION, cameraID + "_" + PRE_EVENT_DESTINATION + "_" + subscriptionsSequence.incrementAndGet(), 0, 0, FrameFormat.JPEG);
+	    this.frameRing = frameRing;
+
+	}
+
+	/* methods */
+
+	public PreEventFrameRing getFrameRing() {
+	    return frameRing;
+	}
+
+	public void stop() {
+
+	    stopped = true;
+	    retireIfDone();
+
+	}
+
+	@Override
+	public boolean wantsFrames() {
+
+	    return false;
+
+	}
+
+	@Override
+	boolean isDone() {
+
+	    return stopped;
+
+	}
+
+	@Override
+	void onStreamFrame(byte[] data, int offset, int length, long now) {
+
+	    frameRing.add(data, offset, length, now);
+
+	}
+
+	@Override
+	void onPipelineEnd() {
+
+	    stopped = true;
+	    camerasPreEventBuffers.remove(getCameraID(), this);
+
+	}
+
+    }
+
+    private class LatestFrameCapturer extends FrameCapturer {
+
+	/*
+	 * this FrameCapturer keeps the camera stream open and holds the latest
+	 * frame of the camera, as it is, until it has not been asked for the
+	 * frame for the keep-warm time. The idle time is checked on each frame
+	 * and by a task of the scheduler, so that a stream delivering no frames,
+	 * such as one being reconnected, is closed as well. A frame older than
+	 * the maximum age is not returned.
+	 */
+
+	private FrameBuffer latestFrame;
+	private long latestFrameTime;
+	private final AtomicInteger waitersCount = new AtomicInteger();
+	private volatile long lastAccessTime = System.nanoTime();
+	private boolean firstFrameReceived = false;
+	private volatile boolean stopped = false;
+	private volatile boolean retired = false;
+
+	/* constructors */
+
+	public LatestFrameCapturer(String cameraID) {
+
+	    super(cameraID, LATEST_FRAME_DESTINATION, cameraID + "_" + LATEST_FRAME_DESTINATION + "_" + subscriptionsSequence.incrementAndGet(), 0, 0, FrameFormat.JPEG);
+
+	}
+
+	/* methods */
+
+	@Override
+	public void startFrameCapture() {
+
+	    super.startFrameCapture();
+	    scheduleIdleCheck(latestFrameKeepWarm);
+
+	}
+
+	/*
+	 * returns a copy of the latest frame, or null if none has been received
+	 * within the maximum age or the stream has been closed
+	 */
+	public byte[] getLatestFrame() {
+
+	    lastAccessTime = System.nanoTime();
+
+	    FrameBuffer frameData;
+
+	    synchronized (this) {
+
+		if (!hasRecentFrame(lastAccessTime))
+		    return null;
+
+		frameData = latestFrame.retain();
+
+	    }
+
+	    try {
+
+		byte[] frame = new byte[frameData.getLength()];
+		frameData.getData().get(frame);
+		return frame;
+
+	    } finally {
+
+		frameData.release();
+
+	    }
+
+	}
+
+	/*
+	 * waits for a frame within the maximum age, at most for the given time
+	 */
+	public byte[] awaitLatestFrame(long timeoutMillis) throws InterruptedException {
+
+	    // not retired while waited for, however short the keep-warm time
+	    waitersCount.incrementAndGet();
+
+	    try {
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+		synchronized (this) {
+
+		    long now;
+
+		    while (!stopped && !hasRecentFrame(now = System.nanoTime()) && now < deadline)
+			TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+
+		}
+
+		return getLatestFrame();
+
+	    } finally {
+
+		waitersCount.decrementAndGet();
+
+	    }
+
+	}
+
+	/*
+	 * true if stopped for having been idle for the keep-warm time, rather
+	 * than for the end of the camera stream
+	 */
+	public boolean isRetired() {
+
+	    return retired;
+
+	}
+
+	@Override
+	public boolean wantsFrames() {
+
+	    return false;
+
+	}
+
+	@Override
+	boolean isDone() {
+
+	    return stopped;
+
+	}
+
+	@Override
+	void onStreamFrame(byte[] data, int offset, int length, long now) {
+
+	    if (stopped)
+		return;
+
+	    if (isIdle(now)) {
+
+		// retired by the pipeline after this frame
+		retireIdle();
+		return;
+
+	    }
+
+	    setLatestFrame(frameBufferPool.copyOf(data, offset, length), now);
+
+	}
+
+	@Override
+	void onPipelineEnd() {
+
+	    stop();
+
+	}
+
+	/*
+	 * true if the frame held has been received within the maximum age.
+	 * Called holding the lock of this object.
+	 */
+	private boolean hasRecentFrame(long now) {
+
+	    return latestFrame != null && now - latestFrameTime <= latestFrameMaxAge * 1000000L;
+
+	}
+
+	/*
+	 * true if not asked for the frame for the keep-warm time. The keep-warm
+	 * time runs from the first frame, or from the start while there is none.
+	 */
+	private boolean isIdle(long now) {
+
+	    return waitersCount.get() == 0 && now - lastAccessTime > latestFrameKeepWarm * 1000000L;
+
+	}
+
+	private void retireIdle() {
+
+	    retired = true;
+	    stop();
+
+	}
+
+	/*
+	 * checks the idle time after the given delay, even if no frame comes
+	 */
+	private void scheduleIdleCheck(long delayMillis) {
+
+	    if (shuttingDown)
+		return;
+
+	    scheduledTasksCount.incrementAndGet();
+
+	    try {
+
+		scheduler.schedule(() -> {
+
+		    try {
+			checkIdle();
+		    } finally {
+			scheduledTasksCount.decrementAndGet();
+		    }
+
+		}, Math.max(delayMillis, LATEST_FRAME_MIN_IDLE_CHECK_MS), TimeUnit.MILLISECONDS);
+
+	    } catch (RejectedExecutionException e) {
+
+		// no scheduler: the idle time is checked on the frames only
+		scheduledTasksCount.decrementAndGet();
+
+	    }
+
+	}
+
+	private void checkIdle() {
+
+	    if (stopped)
+		return;
+
+	    long now = System.nanoTime();
+
+	    if (isIdle(now)) {
+
+		retireIdle();
+		retireIfDone();
+		return;
+
+	    }
+
+	    long idleMillis = TimeUnit.NANOSECONDS.toMillis(now - lastAccessTime);
+	    scheduleIdleCheck(latestFrameKeepWarm - idleMillis);
+
+	}
+
+	private void stop() {
+
+	    synchronized (this) {
+
+		stopped = true;
+		notifyAll();
+
+	    }
+
+	    camerasLatestFrames.remove(getCameraID(), this);
+	    setLatestFrame(null, 0L);
+
+	}
+
+	private void setLatestFrame(FrameBuffer frameData, long receiveTime) {
+
+	    FrameBuffer previousFrame;
+
+	    synchronized (this) {
+
+		previousFrame = latestFrame;
+
+		if (stopped && frameData != null) {
+
+		    // stopped by the scheduler meanwhile: the frame is not kept
+		    latestFrame = null;
+		    frameData.release();
+
+		} else {
+
+		    latestFrame = frameData;
+		    latestFrameTime = receiveTime;
+
+		    if (frameData != null && !firstFrameReceived) {
+
+			// the keep-warm time runs from the first frame
+			firstFrameReceived = true;
+			lastAccessTime = receiveTime;
+
+		    }
+
+		    notifyAll();
+
+		}
+
+	    }
+
+	    if (previousFrame != null)
+		previousFrame.release();
+
+	}
+
+    }
+
+    private class DetectionStatusMonitor {
+
+	/*
+	 * This class tracks the motion detection status of the cameras, so that
+	 * the listener is notified also of the changes made by other Motion
+	 * clients.
+	 * 
+	 * Each camera is polled with its own interval: it starts at the minimum
+	 * poll interval, doubles after each poll returning the same status up to
+	 * the maximum poll interval, and goes back to the minimum when the status
+	 * changes. The cameras not answering are polled with an exponential
+	 * backoff. The camera list is refreshed every maximum poll interval.
+	 */
+
+	private class CameraStatus {
+
+	    private String status;
+	    private long interval;
+	    private long nextPoll;
+	    private int failures;
+	    private boolean polling;
+
+	    // incremented by the local changes, to discard the polls started before them
+	    private long version;
+
+	}
+
+	private final ConcurrentHashMap<String, CameraStatus> cameras = new ConcurrentHashMap<String, CameraStatus>();
+	private ScheduledFuture<?> tick;
+	private long nextCamerasRefresh;
+
+	private Runnable tickTask = new Runnable() {
+
+	    @Override
+	    public void run() {
+
+		try {
+
+		    long now = System.currentTimeMillis();
+
+		    if (now >= nextCamerasRefresh) {
+
+			nextCamerasRefresh = now + detectionStatusMaxPollInterval;
+			CompletableFuture.supplyAsync(MotionComm.this::getThreadsIDs, controlExecutor).thenAccept(threadIDs -> refreshCameras(threadIDs));
+
+		    }
+
+		    cameras.forEach((cameraID, cameraStatus) -> {
+
+			long version;
+
+			synchronized (cameraStatus) {
+
+			    if (cameraStatus.polling || now < cameraStatus.nextPoll)
+				return;
+
+			    cameraStatus.polling = true;
+			    version = cameraStatus.version;
+
+			}
+
+			getThreadMoDetStatusAsync(cameraID).whenComplete((status, e) -> onStatus(cameraID, cameraStatus, version, e == null ? status : ""));
+
+		    });
+
+		} catch (RuntimeException e) {
+
+		    // a failed tick must not cancel the periodic task
+		    if (debugMode)
+			printDebugErrorMessage("DetectionStatusMonitor", e);
+
+		}
+
+	    }
+
+	};
+
+	private synchronized void start() {
+
+	    if (tick != null)
+		return;
+
+	    nextCamerasRefresh = 0L;
+	    tick = scheduler.scheduleWithFixedDelay(tickTask, 0L, detectionStatusMinPollInterval, TimeUnit.MILLISECONDS);
+
+	}
+
+	private synchronized void stop() {
+
+	    if (tick == null)
+		return;
+
+	    tick.cancel(false);
+	    tick = null;
+	    cameras.clear();
+
+	}
+
+	private synchronized boolean isRunning() {
+	    return tick != null;
+	}
+
+	private void refreshCameras(String[] threadIDs) {
+
+	    // an empty list is most likely a failed request
+	    if (threadIDs.length == 0 || !isRunning())
+		return;
+
+	    List<String> current = Arrays.asList(threadIDs);
+	    cameras.keySet().retainAll(current);
+
+	    for (String cameraID : current)
+		cameras.computeIfAbsent(cameraID, id -> new CameraStatus());
+
+	}
+
+	private void onStatus(String cameraID, CameraStatus cameraStatus, long version, String status) {
+
+	    long now = System.currentTimeMillis();
+	    boolean changed = false;
+
+	    synchronized (cameraStatus) {
+
+		cameraStatus.polling = false;
+
+		if (cameraStatus.version != version)
+		    return;
+
+		if (status == null || status.isEmpty()) {
+
+		    cameraStatus.failures++;
+		    cameraStatus.interval = Math.min(MAX_DETECTION_STATUS_BACKOFF_MS, detectionStatusMinPollInterval << Math.min(cameraStatus.failures, 16));
+
+		} else {
+
+		    // the first status read is not a change
+		    changed = cameraStatus.status != null && !cameraStatus.status.equals(status);
+
+		    cameraStatus.failures = 0;
+		    cameraStatus.status = status;
+		    cameraStatus.interval = changed ? detectionStatusMinPollInterval : Math.min(detectionStatusMaxPollInterval, Math.max(detectionStatusMinPollInterval, cameraStatus.interval * 2));
+
+		}
+
+		cameraStatus.nextPoll = now + cameraStatus.interval;
+
+	    }
+
+	    if (changed) {
+
+		if (debugMode)
+		    printDebugMessage("DetectionStatusMonitor", "camera " + cameraID + " status: " + status);
+
+		notifyStatusChanged(cameraID);
+
+	    }
+
+	}
+
+	/*
+	 * records a status change made by this MotionComm, which notifies it by
+	 * itself
+	 */
+	private void setStatus(String cameraID, String status) {
+
+	    CameraStatus cameraStatus = cameras.get(cameraID);
+
+	    if (cameraStatus == null)
+		return;
+
+	    synchronized (cameraStatus) {
+
+		cameraStatus.version++;
+		cameraStatus.status = status;
+		cameraStatus.failures = 0;
+		cameraStatus.interval = detectionStatusMinPollInterval;
+		cameraStatus.nextPoll = System.currentTimeMillis() + detectionStatusMinPollInterval;
+
+	    }
+
+	}
+
+	private String getStatus(String cameraID) {
+
+	    CameraStatus cameraStatus = cameras.get(cameraID);
+
+	    if (cameraStatus == null)
+		return null;
+
+	    synchronized (cameraStatus) {
+		return cameraStatus.status;
+	    }
+
+	}
+
+    }
+
+    /* getters and setters */
+
+    private String host;
+    private int port;
+    private String owner;
+    private boolean debugMode = false;
+    private int streamMinChunkSize = DEFAULT_STREAM_MIN_CHUNK_SIZE;
+    private int streamMaxFlushDelay = DEFAULT_STREAM_MAX_FLUSH_DELAY_MS;
+    private int streamBufferSize = DEFAULT_STREAM_BUFFER_SIZE;
+    private StreamOverrunPolicy streamOverrunPolicy = StreamOverrunPolicy.SKIP_TO_FRAME_BOUNDARY;
+    private volatile long streamKeepWarm = DEFAULT_STREAM_KEEP_WARM_MS;
+    private volatile long streamReconnectMinDelay = DEFAULT_STREAM_RECONNECT_MIN_DELAY_MS;
+    private volatile long streamReconnectMaxDelay = DEFAULT_STREAM_RECONNECT_MAX_DELAY_MS;
+    private volatile int streamMaxReconnectAttempts = DEFAULT_STREAM_MAX_RECONNECT_ATTEMPTS;
+    private FrameScaler frameScaler = FrameScalers.DECODE_SUBSAMPLING;
+    private float jpegQuality = DEFAULT_JPEG_QUALITY;
+    private volatile long latestFrameKeepWarm = DEFAULT_LATEST_FRAME_KEEP_WARM_MS;
+    private volatile long latestFrameMaxAge = DEFAULT_LATEST_FRAME_MAX_AGE_MS;
+    private volatile FrameBufferPool frameBufferPool = new FrameBufferPool(false, DEFAULT_FRAME_BUFFER_POOL_SIZE);
+    private volatile long detectionStatusMinPollInterval = DEFAULT_DETECTION_STATUS_MIN_POLL_INTERVAL_MS;
+    private volatile long detectionStatusMaxPollInterval = DEFAULT_DETECTION_STATUS_MAX_POLL_INTERVAL_MS;
+    private ConcurrentHashMap<String, Long> destinationsMinFrameIntervals = new ConcurrentHashMap<String, Long>();
+
+    public String getHost() {
+	return host;
+    }
+
+    public void setHost(String host) {
+	this.host = host;
+    }
+
+    public String getOwner() {
+	return owner;
+    }
+
+    public int getPort() {
+	return port;
+    }
+
+    public void setPort(int port) {
+	this.port = port;
+    }
+
+    public void setDebugMode(boolean value) {
+	debugMode = value;
+    }
+
+    public int getStreamMinChunkSize() {
+	return streamMinChunkSize;
+    }
+
+    /*
+     * Sets the minimum number of bytes that the camera data streamers buffer
+     * before forwarding data to their users. Applies to the streams started
+     * after the call.
+     */
+    public void setStreamMinChunkSize(int bytes) {
+	if (bytes < 1)
+	    throw new IllegalArgumentException("Minimum chunk size must be positive");
+	streamMinChunkSize = bytes;
+    }
+
+    public int getStreamMaxFlushDelay() {
+	return streamMaxFlushDelay;
+    }
+
+    /*
+     * Sets the maximum time, in milliseconds, that buffered stream data may
+     * wait for the minimum chunk size to be reached before being forwarded
+     * anyway. Applies to the streams started after the call.
+     */
+    public void setStreamMaxFlushDelay(int millis) {
+	if (millis < 1)
+	    throw new IllegalArgumentException("Maximum flush delay must be positive");
+	streamMaxFlushDelay = millis;
+    }
+
+    public int getStreamBufferSize() {
+	return streamBufferSize;
+    }
+
+    /*
+     * Sets the size, in bytes, of the ring buffer shared by all the users of a
+     * camera stream. The size is rounded up to the next power of two. Applies
+     * to the streams started after the call.
+     */
+    public void setStreamBufferSize(int bytes) {
+	if (bytes < 2)
+	    throw new IllegalArgumentException("Stream buffer size must be at least 2 bytes");
+	streamBufferSize = bytes;
+    }
+
+    public StreamOverrunPolicy getStreamOverrunPolicy() {
+	return streamOverrunPolicy;
+    }
+
+    /*
+     * Sets what happens to a stream user which falls behind by more than the
+     * stream buffer size. Applies to the users added after the call.
+     */
+    public void setStreamOverrunPolicy(StreamOverrunPolicy policy) {
+	if (policy == null)
+	    throw new IllegalArgumentException("Overrun policy cannot be null");
+	streamOverrunPolicy = policy;
+    }
+
+    public long getStreamKeepWarm() {
+	return streamKeepWarm;
+    }
+
+    /*
+     * Sets how long, in milliseconds, the stream of a camera is kept open
+     * after its last user has left, so that the next users find it already
+     * open. With 0, the stream is closed as soon as the last user leaves.
+     */
+    public void setStreamKeepWarm(long millis) {
+	if (millis < 0)
+	    throw new IllegalArgumentException("Keep-warm time cannot be negative");
+	streamKeepWarm = millis;
+    }
+
+    public long getStreamReconnectMinDelay() {
+	return streamReconnectMinDelay;
+    }
+
+    public long getStreamReconnectMaxDelay() {
+	return streamReconnectMaxDelay;
+    }
+
+    /*
+     * Sets the delay, in milliseconds, before a lost stream is opened again:
+     * the minimum delay doubles at each attempt receiving no data, up to the
+     * maximum delay.
+     */
+    public void setStreamReconnectDelay(long minMillis, long maxMillis) {
+	if (minMillis < 1 || maxMillis < minMillis)
+	    throw new IllegalArgumentException("Reconnection delays must be positive, with the minimum not above the maximum");
+	streamReconnectMinDelay = minMillis;
+	streamReconnectMaxDelay = maxMillis;
+    }
+
+    public int getStreamMaxReconnectAttempts() {
+	return streamMaxReconnectAttempts;
+    }
+
+    /*
+     * Sets how many attempts in a row to open a lost stream may receive no
+     * data, before the stream is given up and its users get end-of-stream
+     */
+    public void setStreamMaxReconnectAttempts(int attempts) {
+	if (attempts < 0)
+	    throw new IllegalArgumentException("Reconnection attempts cannot be negative");
+	streamMaxReconnectAttempts = attempts;
+    }
+
+    public FrameScaler getFrameScaler() {
+	return frameScaler;
+    }
+
+    /*
+     * Sets the strategy used to decode and resize the captured frames, see
+     * FrameScalers for the built-in ones. Applies to the frame capturers
+     * created after the call.
+     */
+    public void setFrameScaler(FrameScaler scaler) {
+	if (scaler == null)
+	    throw new IllegalArgumentException("Frame scaler cannot be null");
+	frameScaler = scaler;
+    }
+
+    public long getParameterCacheTtl() {
+	return parameterCache.getTtl();
+    }
+
+    /*
+     * Sets how long, in milliseconds, the values of the Motion configuration
+     * parameters are cached. Zero disables the cache.
+     */
+    public void setParameterCacheTtl(long millis) {
+	if (millis < 0)
+	    throw new IllegalArgumentException("Parameter cache TTL cannot be negative");
+	parameterCache.setTtl(millis);
+    }
+
+    public int getParameterCacheSize() {
+	return parameterCache.getMaxEntries();
+    }
+
+    /*
+     * Sets the maximum number of (camera, parameter) values cached. The least
+     * recently used values are evicted first.
+     */
+    public void setParameterCacheSize(int entries) {
+	if (entries < 1)
+	    throw new IllegalArgumentException("Parameter cache size must be positive");
+	parameterCache.setMaxEntries(entries);
+    }
+
+    public long getParameterCacheHits() {
+	return parameterCache.getHits();
+    }
+
+    public long getParameterCacheMisses() {
+	return parameterCache.getMisses();
+    }
+
+    public long getParameterCacheEvictions() {
+	return parameterCache.getEvictions();
+    }
+
+    /*
+     * Discards the cached parameters of the given camera, for instance after
+     * changing its configuration by other means than setParameter()
+     */
+    public void invalidateParameterCache(String cameraID) {
+	parameterCache.invalidateCamera(cameraID);
+    }
+
+    public void invalidateParameterCache() {
+	parameterCache.invalidateAll();
+    }
+
+    public int getControlConnectTimeout() {
+	return controlClient.getConnectTimeout();
+    }
+
+    /*
+     * Sets the connect timeout, in milliseconds, of the requests to the Motion
+     * control port
+     */
+    public void setControlConnectTimeout(int millis) {
+	if (millis < 1)
+	    throw new IllegalArgumentException("Control connect timeout must be positive");
+	controlClient.setConnectTimeout(millis);
+    }
+
+    public int getControlReadTimeout() {
+	return controlClient.getReadTimeout();
+    }
+
+    /*
+     * Sets the read timeout, in milliseconds, of the requests to the Motion
+     * control port
+     */
+    public void setControlReadTimeout(int millis) {
+	if (millis < 1)
+	    throw new IllegalArgumentException("Control read timeout must be positive");
+	controlClient.setReadTimeout(millis);
+    }
+
+    public int getControlMaxInFlight() {
+	return controlClient.getMaxInFlight();
+    }
+
+    /*
+     * Sets the maximum number of requests in flight to the Motion control
+     * port, 64 by default. The other requests wait for a free slot, up to the
+     * sum of the connect and read timeouts, and then fail with
+     * ControlBusyException. The limit should stay above the requests issued
+     * at once by the bulk operations, such as getCameraInventory(), which
+     * sends four requests per camera.
+     */
+    public void setControlMaxInFlight(int requests) {
+	if (requests < 1)
+	    throw new IllegalArgumentException("Control requests in flight must be positive");
+	controlClient.setMaxInFlight(requests);
+    }
+
+    /*
+     * Returns the latencies of the requests to the Motion control port, by
+     * endpoint (for instance "config/get" or "detection/status")
+     */
+    public Map<String, LatencyHistogram> getControlLatencies() {
+	return controlClient.getLatencies();
+    }
+
+    /*
+     * Limits the rate of the frames delivered to the given destination, for
+     * any camera. The frames beyond the limit are skipped before being
+     * decoded. A maxFps which is not positive removes the limit.
+     */
+    public void setDestinationMaxFrameRate(String destination, double maxFps) {
+	if (Double.isNaN(maxFps))
+	    throw new IllegalArgumentException("Max frame rate must be a number");
+	if (maxFps > 0)
+	    destinationsMinFrameIntervals.put(destination, (long) (1e9 / maxFps));
+	else
+	    destinationsMinFrameIntervals.remove(destination);
+    }
+
+    /*
+     * returns the maximum frame rate of the given destination, or 0 if not
+     * limited
+     */
+    public double getDestinationMaxFrameRate(String destination) {
+	Long interval = destinationsMinFrameIntervals.get(destination);
+	return interval == null ? 0d : 1e9 / interval;
+    }
+
+    private long getDestinationMinFrameInterval(String destination) {
+	Long interval = destinationsMinFrameIntervals.get(destination);
+	return interval == null ? 0L : interval;
+    }
+
+    public long getDetectionStatusMinPollInterval() {
+	return detectionStatusMinPollInterval;
+    }
+
+    public long getDetectionStatusMaxPollInterval() {
+	return detectionStatusMaxPollInterval;
+    }
+
+    /*
+     * Sets the range, in milliseconds, of the intervals between two polls of
+     * the detection status of a camera by the detection status monitor. The
+     * minimum applies from the next start of the monitor.
+     */
+    public void setDetectionStatusPollInterval(long minMillis, long maxMillis) {
+	if (minMillis < 1 || maxMillis < minMillis)
+	    throw new IllegalArgumentException("Poll intervals must be positive, with the minimum not above the maximum");
+	detectionStatusMinPollInterval = minMillis;
+	detectionStatusMaxPollInterval = maxMillis;
+    }
+
+    public boolean isDirectFrameBuffers() {
+	return frameBufferPool.isDirect();
+    }
+
+    public long getFrameBufferPoolSize() {
+	return frameBufferPool.getMaxPooledBytes();
+    }
+
+    /*
+     * Sets whether the frames delivered to a MotionCommFrameBufferListener
+     * are held in direct buffers, and the maximum size, in bytes, of the free
+     * buffers kept for reuse. Applies to the frame captures started after the
+     * call.
+     */
+    public void setFrameBufferPool(boolean direct, long maxPooledBytes) {
+	if (maxPooledBytes < 0)
+	    throw new IllegalArgumentException("Frame buffer pool size cannot be negative");
+	frameBufferPool = new FrameBufferPool(direct, maxPooledBytes);
+    }
+
+    /*
+     * returns the number of frame buffers allocated because none was free in
+     * the pool
+     */
+    public long getFrameBufferAllocations() {
+	return frameBufferPool.getAllocations();
+    }
+
+    public float getJpegQuality() {
+	return jpegQuality;
+    }
+
+    /*
+     * Sets the quality, between 0 and 1, of the frames re-encoded as
+     * FrameFormat.JPEG. Applies to the frame capturers created after the call.
+     */
+    public void setJpegQuality(float quality) {
+	if (quality < 0f || quality > 1f)
+	    throw new IllegalArgumentException("JPEG quality must be between 0 and 1");
+	jpegQuality = quality;
+    }
+
+    public long getLatestFrameKeepWarm() {
+	return latestFrameKeepWarm;
+    }
+
+    /*
+     * Sets how long, in milliseconds, the stream of a camera is kept open
+     * after the last call to getLatestFrame() for it. With 0, the stream is
+     * closed as soon as the frame has been fetched.
+     */
+    public void setLatestFrameKeepWarm(long millis) {
+	if (millis < 0)
+	    throw new IllegalArgumentException("Keep-warm time cannot be negative");
+	latestFrameKeepWarm = millis;
+    }
+
+    public long getLatestFrameMaxAge() {
+	return latestFrameMaxAge;
+    }
+
+    /*
+     * Sets the maximum age, in milliseconds, of the frame returned by
+     * getLatestFrame(). An older frame, such as the last one received before
+     * the stream was lost, is not returned: a newer one is waited for.
+     */
+    public void setLatestFrameMaxAge(long millis) {
+	if (millis < 0)
+	    throw new IllegalArgumentException("Maximum frame age cannot be negative");
+	latestFrameMaxAge = millis;
+    }
+
+    /* control */
+    private String baseRequestURL;
+    private MotionControlClient controlClient;
+    private ParameterCache parameterCache = new ParameterCache(DEFAULT_PARAMETER_CACHE_TTL_MS, DEFAULT_PARAMETER_CACHE_SIZE);
+    private MotionCommListener motionCommListener;
+    private DetectionStatusMonitor detectionStatusMonitor = new DetectionStatusMonitor();
+    private ConcurrentHashMap<String, CompletableFuture<String>> detectionStatusRequests = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+    private ConcurrentHashMap<String, CameraDataStreamer> camerasDataStreamers = new ConcurrentHashMap<String, CameraDataStreamer>();
+    private ConcurrentHashMap<String, FrameCapturer> camerasFrameCapturers = new ConcurrentHashMap<String, FrameCapturer>();
+    private ConcurrentHashMap<String, CameraFramePipeline> camerasFramePipelines = new ConcurrentHashMap<String, CameraFramePipeline>();
+    private ConcurrentHashMap<String, PreEventFrameCapturer> camerasPreEventBuffers = new ConcurrentHashMap<String, PreEventFrameCapturer>();
+    private ConcurrentHashMap<String, LatestFrameCapturer> camerasLatestFrames = new ConcurrentHashMap<String, LatestFrameCapturer>();
+    private AtomicLong streamUsersSequence = new AtomicLong();
+    private AtomicLong subscriptionsSequence = new AtomicLong();
+
+    private volatile ExecutorService executor = MotionCommExecutors.newWorkerExecutor("MotionComm", MotionCommExecutors.DEFAULT_MAX_WORKER_THREADS);
+    private volatile ScheduledExecutorService scheduler = MotionCommExecutors.newScheduler("MotionComm");
+    private volatile ExecutorService controlExecutor = MotionCommExecutors.newControlExecutor("MotionComm", MotionCommExecutors.DEFAULT_CONTROL_THREADS);
+    private boolean ownsExecutor = true;
+    private boolean ownsScheduler = true;
+    private boolean ownsControlExecutor = true;
+    private AtomicInteger scheduledTasksCount = new AtomicInteger();
+    private final MotionCommMetrics metrics = new MotionCommMetrics(this::getStreamUsers, () -> controlClient.getLatencies());
+    private ObjectName metricsObjectName;
+    private AtomicLong streamReconnectionsCount = new AtomicLong();
+    private volatile boolean shuttingDown = false;
+
+    /* constructors */
+
+    public MotionComm(String host, String owner, int port) {
+
+	this.host = host;
+	this.port = port;
+	this.owner = owner;
+
+	baseRequestURL = new StringBuilder().append("http://").append(host).append(":").append(port).toString();
+	controlClient = new MotionControlClient(baseRequestURL, DEFAULT_CONTROL_CONNECT_TIMEOUT_MS, DEFAULT_CONTROL_READ_TIMEOUT_MS, DEFAULT_CONTROL_MAX_IN_FLIGHT);
+
+    }
+
+    /* interface */
+
+    /* methods */
+
+    public void setListener(MotionCommListener listener) {
+	motionCommListener = listener;
+    }
+
+    /*
+     * Sets the executor which runs the camera streams and the frame
+     * pipelines. Each camera being captured keeps two tasks running for as
+     * long as its frames are requested. If not set, a default executor is
+     * used: virtual threads where the JVM supports them, or else a pool of at
+     * most MotionCommExecutors.DEFAULT_MAX_WORKER_THREADS daemon threads.
+     * Applies to the tasks started after the call; an injected executor is
+     * never shut down by MotionComm.
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+
+	if (executor == null)
+	    throw new IllegalArgumentException("Executor cannot be null");
+
+	if (ownsExecutor)
+	    this.executor.shutdown();
+
+	this.executor = executor;
+	ownsExecutor = false;
+
+    }
+
+    /*
+     * Sets the scheduler which runs the delayed tasks, such as the end of the
+     * motion events requested by requestMotionEvent(). If not set, a single
+     * daemon thread scheduler is used. An injected scheduler is never shut
+     * down by MotionComm.
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+
+	if (scheduler == null)
+	    throw new IllegalArgumentException("Scheduler cannot be null");
+
+	if (ownsScheduler)
+	    this.scheduler.shutdown();
+
+	this.scheduler = scheduler;
+	ownsScheduler = false;
+
+    }
+
+    /*
+     * Sets the executor which runs the requests to the Motion control port
+     * issued in parallel, for instance by getCameraInventory() and the
+     * asynchronous methods such as startModetAsync(). If not set, virtual
+     * threads are used where the JVM supports them, or else a pool of
+     * MotionCommExecutors.DEFAULT_CONTROL_THREADS daemon threads. An injected
+     * executor is never shut down by MotionComm.
+     */
+    public synchronized void setControlExecutor(ExecutorService executor) {
+
+	if (executor == null)
+	    throw new IllegalArgumentException("Control executor cannot be null");
+
+	if (ownsControlExecutor)
+	    this.controlExecutor.shutdown();
+
+	this.controlExecutor = executor;
+	ownsControlExecutor = false;
+
+    }
+
+    /*
+     * Stops all the frame captures and camera streams, and shuts down the
+     * default executors and scheduler, if they are in use. The delayed tasks
+     * already scheduled on the default scheduler are still run. The event
+     * file indexes are left open, being shared by all the MotionComm
+     * instances: they are closed at the exit of the JVM, or by
+     * EventFileIndex.closeAll().
+     */
+    public synchronized void shutdown() {
+
+	shuttingDown = true;
+	detectionStatusMonitor.stop();
+	unregisterMetricsMBean();
+
+	// the streams kept warm are closed now, the others once their users leave
+	camerasDataStreamers.forEach((cameraID, cameraDataStreamer) -> retireIdleCameraDataStreamer(cameraID, cameraDataStreamer, 0L));
+
+	camerasFramePipelines.forEach((cameraID, cameraFramePipeline) -> {
+
+	    camerasFramePipelines.computeIfPresent(cameraID, (id, current) -> {
+		current.stopPipeline();
+		return null;
+	    });
+
+	});
+
+	if (ownsExecutor)
+	    executor.shutdown();
+
+	if (ownsScheduler)
+	    scheduler.shutdown();
+
+	if (ownsControlExecutor)
+	    controlExecutor.shutdown();
+
+    }
+
+    /*
+     * returns the number of cameras whose stream is open
+     */
+    public int getActiveStreamersCount() {
+	return camerasDataStreamers.size();
+    }
+
+    /*
+     * returns the state of the connection to the stream of the given camera
+     */
+    public StreamHealth getStreamHealth(String cameraID) {
+
+	CameraDataStreamer cameraDataStreamer = camerasDataStreamers.get(cameraID);
+	return cameraDataStreamer == null ? StreamHealth.STOPPED : cameraDataStreamer.getHealth();
+
+    }
+
+    /*
+     * returns the state of the connections to the streams which are open
+     */
+    public Map<String, StreamHealth> getStreamsHealth() {
+
+	HashMap<String, StreamHealth> streamsHealth = new HashMap<String, StreamHealth>();
+	camerasDataStreamers.forEach((cameraID, cameraDataStreamer) -> streamsHealth.put(cameraID, cameraDataStreamer.getHealth()));
+	return streamsHealth;
+
+    }
+
+    /*
+     * returns the number of users of each open camera stream
+     */
+    private Map<String, Integer> getStreamUsers() {
+
+	HashMap<String, Integer> streamUsers = new HashMap<String, Integer>();
+	camerasDataStreamers.forEach((cameraID, cameraDataStreamer) -> streamUsers.put(cameraID, cameraDataStreamer.getUsersCount()));
+	return streamUsers;
+
+    }
+
+    public MotionCommMetrics getMetrics() {
+	return metrics;
+    }
+
+    /*
+     * Registers the metrics in the platform MBean server, under the name
+     * apps.java.loref:type=MotionComm,name="owner@host:port", and returns the
+     * name. The metrics are unregistered by shutdown().
+     */
+    public synchronized ObjectName registerMetricsMBean() throws JMException {
+
+	if (metricsObjectName == null) {
+
+	    ObjectName objectName = new ObjectName("apps.java.loref:type=MotionComm,name=" + ObjectName.quote(owner + "@" + host + ":" + port));
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+	    metricsObjectName = objectName;
+
+	}
+
+	return metricsObjectName;
+
+    }
+
+    public synchronized void unregisterMetricsMBean() {
+
+	if (metricsObjectName == null)
+	    return;
+
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsObjectName);
+	} catch (JMException e) {
+	    if (debugMode)
+		printDebugErrorMessage("MotionComm", e);
+	}
+
+	metricsObjectName = null;
+
+    }
+
+    /*
+     * returns the number of times a lost camera stream has been opened again
+     */
+    public long getStreamReconnectionsCount() {
+	return streamReconnectionsCount.get();
+    }
+
+    /*
+     * returns the number of cameras whose frames are being parsed
+     */
+    public int getActiveFramePipelinesCount() {
+	return camerasFramePipelines.size();
+    }
+
+    /*
+     * returns the number of (camera, destination) frame captures in progress
+     */
+    public int getActiveFrameCapturersCount() {
+	return camerasFrameCapturers.size();
+    }
+
+    /*
+     * returns the number of delayed tasks waiting to be run
+     */
+    public int getScheduledTasksCount() {
+	return scheduledTasksCount.get();
+    }
+
+    /*
+     * returns the number of frames skipped to keep the destinations within
+     * their maximum frame rate
+     */
+    public long getSkippedFramesCount() {
+	return metrics.getFramesSkipped();
+    }
+
+    /*
+     * returns the number of frames dropped because the listener was still
+     * busy with the previous ones
+     */
+    public long getDroppedFramesCount() {
+	return metrics.getFramesDropped();
+    }
+
+    public int getNOfThreads() {
+
+	/*
+	 * restituisce il numero di thread attivi corrispondenti ad una
+	 * videocamera
+	 * 
+	 * ad esempio, questa è la risposta di motion con 2 videocamere:
+	 * 
+	 * Motion 4.0 Running [3] Cameras
+	 * 0
+	 * 1
+	 * 2
+	 * 
+	 * la funzione restituisce 2, ovvero il numero di righe della
+	 * risposta
+	 * -2, in quanto la prima riga è la risposta ed il thread 0 è sempre
+	 * il
+	 * thread principale
+	 * 
+	 */
+
+	String[] responseLines = controlClient.get("threads", "").getLines();
+
+	return responseLines.length - 2;
+
+    }
+
+    /*
+     * Returns a String array with the thread ids of the current motion
+     * instance.
+     * 
      * For instance, if the reply to the HTTP call
      * "http://{server_address}:{control_port} is the following:
      * 
@@ -530,279 +2567,704 @@ public class MotionComm {
      * 1
      * 2
      * 
-     * Then this function will return {"1","2"}
+     * Then this function will return {"1","2"}
+     * 
+     */
+    public String[] getThreadsIDs() {
+
+	return parseThreadsIDs(controlClient.get("threads", ""));
+
+    }
+
+    private static String[] parseThreadsIDs(ControlResponse response) {
+
+	String[] responseLines = response.getLines();
+
+	String[] out = new String[Math.max(0, responseLines.length - 2)];
+	for (int i = 0; i < responseLines.length - 2; i++) {
+	    out[i] = responseLines[i + 2];
+	}
+	return out;
+
+    }
+
+    public static boolean isHTMLOutputEnabled(String host, int port) {
+
+	String httpResponse = parseHttpRequest(host + ":" + port);
+	return httpResponse.charAt(0) == '<';
+
+    }
+
+    public boolean isHTMLOutputEnabled() {
+
+	String httpResponse = controlClient.get("threads", "").getBody();
+	return !httpResponse.isEmpty() && httpResponse.charAt(0) == '<';
+
+    }
+
+    public boolean requestShot(String threadID) {
+	// http://{server_name}:{control_port}/{thread_ID}/action/snapshot
+
+	return controlClient.get("action/snapshot", "/" + threadID + "/action/snapshot").isDone();
+
+    }
+
+    public boolean requestVideo(String threadID) {
+
+	return controlClient.get("action/makemovie", "/" + threadID + "/action/makemovie").isDone();
+
+    }
+
+    public static boolean isMotionInstalled() {
+
+	try {
+	    parseShellCommand("motion -h");
+	    return true;
+
+	} catch (IOException | InterruptedException e) {
+	    System.out.println(e.getMessage());
+	    return false;
+
+	}
+
+    }
+
+    public String getThreadMoDetStatus(String threadID) {
+
+	String[] responseLines = controlClient.get("detection/status", "/" + threadID + "/detection/status").getBody().split(" ");
+
+	if (responseLines.length == 5) {
+
+	    return responseLines[4].replaceAll("\n", "");
+
+	} else {
+
+	    return "";
+
+	}
+
+    }
+
+    public HashMap<String, Object> getCameraInfo(String cameraID) {
+
+	/* retrieve the information of the i-th thread */
+	HashMap<String, Object> cameraInfo = new HashMap<String, Object>();
+	cameraInfo.put("MoDetStatus", getThreadMoDetStatus(cameraID));
+	cameraInfo.put("OwnerDevice", owner);
+	cameraInfo.put("ThreadID", cameraID);
+	cameraInfo.put("CameraName", getParameter(cameraID, "camera_name"));
+	cameraInfo.put("StreamFPS", getCameraStreamFPS(cameraID));
+
+	return cameraInfo;
+
+    }
+
+    public String getCamerasList() {
+	return getCamerasList(";");
+    }
+
+    public String getCamerasList(String regex) {
+
+	/*
+	 * Restituisce una lista, separata dalla sequenza di caratteri
+	 * _regex,
+	 * contenente gli id dei thread corrispondenti alle videocamere
+	 * 
+	 * ad esempio, se questa è la risposta di motion con 2 videocamere:
+	 * 
+	 * Motion 4.0 Running [3] Cameras
+	 * 0
+	 * 1
+	 * 2
+	 * 
+	 * la funzione restituisce "1{_regex}2"
+	 * 
+	 */
+
+	return String.join(regex, getThreadsIDs());
+
+    }
+
+    public String getCamerasNames() {
+
+	return getCamerasNames(";");
+
+    }
+
+    public String getCamerasNames(String regex) {
+
+	try {
+	    return String.join(regex, getCameraInventory().getCameraNames());
+	} catch (UncheckedIOException e) {
+	    return "";
+	}
+
+    }
+
+    /*
+     * Returns a snapshot of the cameras of this Motion instance. The thread
+     * IDs are read with a single request, then the parameters and the
+     * detection status of all the cameras are read in parallel on the control
+     * executor, so the call takes about as long as two sequential requests,
+     * whatever the number of cameras. Throws ControlBusyException if the
+     * requests cannot all be sent (see setControlMaxInFlight()), and
+     * UncheckedIOException if Motion does not reply with the thread IDs, so
+     * that an unreachable instance is not taken for one without cameras.
+     */
+    public CameraInventory getCameraInventory() {
+
+	long timestamp = System.currentTimeMillis();
+
+	ControlResponse threads = controlClient.get("threads", "");
+	if (!threads.isSuccessful())
+	    throw new UncheckedIOException(new IOException("No reply from the Motion control port of " + owner));
+
+	String[] threadIDs = parseThreadsIDs(threads);
+
+	List<CompletableFuture<CameraInventory.Camera>> cameras = new ArrayList<CompletableFuture<CameraInventory.Camera>>(threadIDs.length);
+	for (String threadID : threadIDs)
+	    cameras.add(fetchInventoryCamera(threadID));
+
+	List<CameraInventory.Camera> inventory = new ArrayList<CameraInventory.Camera>(threadIDs.length);
+
+	try {
+
+	    for (CompletableFuture<CameraInventory.Camera> camera : cameras)
+		inventory.add(camera.join());
+
+	} catch (CompletionException e) {
+
+	    if (e.getCause() instanceof ControlBusyException)
+		throw (ControlBusyException) e.getCause();
+
+	    throw e;
+
+	}
+
+	return new CameraInventory(owner, timestamp, inventory);
+
+    }
+
+    private CompletableFuture<CameraInventory.Camera> fetchInventoryCamera(String threadID) {
+
+	CompletableFuture<String> cameraName = CompletableFuture.supplyAsync(() -> getParameter(threadID, "camera_name"), controlExecutor);
+	CompletableFuture<String> streamPort = CompletableFuture.supplyAsync(() -> getStreamPort(threadID), controlExecutor);
+	CompletableFuture<String> streamMaxRate = CompletableFuture.supplyAsync(() -> getParameter(threadID, "stream_maxrate"), controlExecutor);
+	CompletableFuture<String> detectionStatus = CompletableFuture.supplyAsync(() -> getThreadMoDetStatus(threadID), controlExecutor);
+
+	return CompletableFuture.allOf(cameraName, streamPort, streamMaxRate, detectionStatus).thenApply(done -> {
+
+	    int maxRate;
+
+	    try {
+		maxRate = Integer.parseInt(streamMaxRate.join());
+	    } catch (NumberFormatException e) {
+		maxRate = -1;
+	    }
+
+	    return new CameraInventory.Camera(threadID, cameraName.join(), streamPort.join(), maxRate, detectionStatus.join());
+
+	});
+
+    }
+
+    public void captureFrames(String cameraID, int framesToCapture, String destination) {
+
+	captureFrames(cameraID, framesToCapture, destination, FrameCapturer.DEFAULT_FRAME_WIDTH, FrameCapturer.DEFAULT_FRAME_HEIGHT, FrameFormat.GIF);
+
+    }
+
+    /*
+     * Captures frames from the given camera and delivers them to the listener
+     * scaled to frameWidth x frameHeight and encoded in frameFormat. A
+     * frameWidth or frameHeight which is not positive means no resize: with
+     * FrameFormat.JPEG the JPEG frames of the camera are then delivered as
+     * they are, without being decoded.
+     * 
+     * If frames are already being captured for the same camera and
+     * destination, the requested frames are added to the ones of the running
+     * capture, which keeps its size and format.
+     */
+    public void captureFrames(String cameraID, int framesToCapture, String destination, int frameWidth, int frameHeight, FrameFormat frameFormat) {
+
+	if (frameFormat == null)
+	    throw new IllegalArgumentException("Frame format cannot be null");
+
+	String frameCapturerID = cameraID + "_" + destination;
+
+	/*
+	 * Definisce il FrameCapturer.
+	 * Cerca un FrameCapturer attivo per il cameraID passato in argomento.
+	 * Se c'è un FrameCapturer attivo per il cameraID passato in argomento,
+	 * aumenta il numero di fotogrammi da catturare. Altrimenti, crea un
+	 * nuovo FrameCapturer
+	 * 
+	 * The lookup and the creation are atomic with respect to other calls
+	 * for the same frameCapturerID, and to the retirement of the
+	 * FrameCapturer once its frames have been captured.
+	 * 
+	 */
+
+	camerasFrameCapturers.compute(frameCapturerID, (id, frameCapturer) -> {
+
+	    if (frameCapturer != null) {
+
+		// esiste un FrameCapturer attivo per il cameraID passato in
+		// argomento
+		frameCapturer.addFramesToCapture(framesToCapture);
+
+		if (debugMode)
+		    System.out.println("MotionComm - FrameCapturer TROVATO per cameraID: " + cameraID);
+
+		return frameCapturer;
+
+	    }
+
+	    // crea un nuovo FrameCapturer per il cameraID passato in argomento
+	    frameCapturer = new FrameCapturer(cameraID, destination, frameWidth, frameHeight, frameFormat);
+	    frameCapturer.setFramesToBeCaptured(framesToCapture);
+	    frameCapturer.startFrameCapture();
+
+	    if (debugMode)
+		System.out.println("MotionComm - FrameCapturer CREATO per cameraID: " + cameraID);
+
+	    return frameCapturer;
+
+	});
+
+    }
+
+    public FrameSubscription subscribeFrames(String cameraID, String destination, FrameSubscriber subscriber) {
+
+	return subscribeFrames(cameraID, destination, FrameCapturer.DEFAULT_FRAME_WIDTH, FrameCapturer.DEFAULT_FRAME_HEIGHT, FrameFormat.GIF, subscriber);
+
+    }
+
+    /*
+     * Subscribes to the frames of the given camera, scaled and encoded as in
+     * captureFrames(), until the subscription is cancelled or the camera
+     * stream ends. The subscriber receives the subscription in onSubscribe(),
+     * before the camera stream is opened, and gets frames only as long as it
+     * has requested them with FrameSubscription.request(). While there is no
+     * demand, the frames are not decoded.
      * 
+     * Unlike captureFrames(), each call creates a separate subscription, even
+     * for the same camera and destination. The maximum frame rate of the
+     * destination applies.
      */
-    public String[] getThreadsIDs() {
+    public FrameSubscription subscribeFrames(String cameraID, String destination, int frameWidth, int frameHeight, FrameFormat frameFormat, FrameSubscriber subscriber) {
+
+	if (frameFormat == null)
+	    throw new IllegalArgumentException("Frame format cannot be null");
+
+	if (subscriber == null)
+	    throw new IllegalArgumentException("Subscriber cannot be null");
+
+	SubscriptionFrameCapturer subscription = new SubscriptionFrameCapturer(cameraID, destination, frameWidth, frameHeight, frameFormat, subscriber);
+	subscriber.onSubscribe(subscription);
+
+	camerasFrameCapturers.compute(subscription.getFrameCapturerID(), (id, frameCapturer) -> {
+
+	    subscription.startFrameCapture();
+	    return subscription;
+
+	});
+
+	// cancelled by onSubscribe(), before being registered
+	if (subscription.isCancelled())
+	    subscription.cancel();
+
+	return subscription;
+
+    }
+
+    /*
+     * Starts keeping the frames of the given camera received in the last
+     * durationMillis milliseconds, as they come from the camera stream, in an
+     * off-heap buffer of maxBytes bytes. The oldest frames are evicted when
+     * the buffer is full. A buffer already kept for the camera is replaced.
+     * The camera stream stays open until stopPreEventBuffer() is called.
+     */
+    public void startPreEventBuffer(String cameraID, long durationMillis, int maxBytes) {
+
+	PreEventFrameCapturer preEventFrameCapturer = new PreEventFrameCapturer(cameraID, new PreEventFrameRing(maxBytes, durationMillis));
+
+	PreEventFrameCapturer previous = camerasPreEventBuffers.put(cameraID, preEventFrameCapturer);
+	if (previous != null)
+	    previous.stop();
+
+	camerasFrameCapturers.compute(preEventFrameCapturer.getFrameCapturerID(), (id, frameCapturer) -> {
+
+	    preEventFrameCapturer.startFrameCapture();
+	    return preEventFrameCapturer;
+
+	});
+
+    }
+
+    public void stopPreEventBuffer(String cameraID) {
+
+	PreEventFrameCapturer preEventFrameCapturer = camerasPreEventBuffers.remove(cameraID);
+
+	if (preEventFrameCapturer != null)
+	    preEventFrameCapturer.stop();
+
+    }
+
+    public boolean isPreEventBufferRunning(String cameraID) {
+
+	return camerasPreEventBuffers.containsKey(cameraID);
+
+    }
+
+    /*
+     * returns copies of the JPEG frames kept for the given camera, oldest
+     * first, or an empty list if no pre-event buffer is kept for it
+     */
+    public List<byte[]> getPreEventFrames(String cameraID) {
+
+	PreEventFrameCapturer preEventFrameCapturer = camerasPreEventBuffers.get(cameraID);
+
+	if (preEventFrameCapturer == null)
+	    return new ArrayList<byte[]>();
+
+	return preEventFrameCapturer.getFrameRing().copyFrames(System.nanoTime());
+
+    }
+
+    /*
+     * Delivers at once the JPEG frames kept for the given camera to the
+     * listener, oldest first, for the given destination. The listener is
+     * called by the calling thread. Returns the number of frames delivered.
+     */
+    public int dumpPreEventFrames(String cameraID, String destination) {
+
+	MotionCommListener listener = motionCommListener;
+
+	if (listener == null)
+	    return 0;
+
+	List<byte[]> frames = getPreEventFrames(cameraID);
+
+	for (byte[] frame : frames) {
+
+	    try {
+
+		if (listener instanceof MotionCommFrameBufferListener) {
+
+		    FrameBuffer frameData = frameBufferPool.copyOf(frame, 0, frame.length);
+
+		    try {
+			((MotionCommFrameBufferListener) listener).onNewFrame(cameraID, frameData, destination);
+		    } finally {
+			frameData.release();
+		    }
+
+		} else {
+
+		    listener.onNewFrame(cameraID, frame, destination);
+
+		}
+
+	    } catch (RuntimeException e) {
+
+		if (debugMode)
+		    printDebugErrorMessage("MotionComm", e);
+
+	    }
+
+	}
+
+	return frames.size();
+
+    }
+
+    /*
+     * Writes the JPEG frames kept for the given camera to the given file, as
+     * an MJPEG stream in the same format as the stream of Motion. Returns the
+     * number of frames written.
+     */
+    public int writePreEventFrames(String cameraID, String fileName) throws IOException {
+
+	List<byte[]> frames = getPreEventFrames(cameraID);
 
-	String httpResponse = parseHttpRequest(baseRequestURL);
-	String[] responseLines = httpResponse.split("\n");
+	try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName))) {
 
-	String[] out = new String[responseLines.length - 2];
-	for (int i = 0; i < responseLines.length - 2; i++) {
-	    out[i] = responseLines[i + 2];
-	}
-	return out;
+	    for (byte[] frame : frames) {
 
-    }
+		out.write((MOTION_STREAM_BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + frame.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		out.write(frame);
+		out.write('\r');
+		out.write('\n');
 
-    public static boolean isHTMLOutputEnabled(String host, int port) {
+	    }
 
-	String httpResponse = parseHttpRequest(host + ":" + port);
-	return httpResponse.charAt(0) == '<';
+	}
+
+	return frames.size();
 
     }
 
-    public boolean isHTMLOutputEnabled() {
+    public byte[] getLatestFrame(String cameraID) {
 
-	String httpResponse = parseHttpRequest(host + ":" + port);
-	return httpResponse.charAt(0) == '<';
+	return getLatestFrame(cameraID, DEFAULT_LATEST_FRAME_TIMEOUT_MS);
 
     }
 
-    public boolean requestShot(String threadID) {
-	// http://{server_name}:{control_port}/{thread_ID}/action/snapshot
+    /*
+     * Returns the most recent JPEG frame of the given camera, as it comes from
+     * the camera stream. While the stream is warm, the frame is returned at
+     * once, unless older than the maximum age (see setLatestFrameMaxAge()).
+     * Otherwise the stream is opened, or joined if already open for other
+     * frame captures, and a new frame is waited for, at most for the given
+     * time; the stream is then kept open for the keep-warm time. Returns null
+     * if no frame has been received in time.
+     */
+    public byte[] getLatestFrame(String cameraID, long timeoutMillis) {
 
-	String request = new StringBuilder().append(baseRequestURL).append("/").append(threadID).append("/action/snapshot").toString();
+	LatestFrameCapturer latestFrameCapturer = camerasLatestFrames.get(cameraID);
 
-	String[] responseLines = parseHttpRequest(request).split("\n");
+	if (latestFrameCapturer != null) {
 
-	if (responseLines.length == 2) {
+	    byte[] frame = latestFrameCapturer.getLatestFrame();
 
-	    return responseLines[1].equals("Done");
+	    if (frame != null)
+		return frame;
 
-	} else {
+	}
 
-	    return false;
+	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
 
-	}
+	while (true) {
 
-    }
+	    latestFrameCapturer = camerasLatestFrames.compute(cameraID, (id, current) -> {
 
-    public boolean requestVideo(String threadID) {
+		if (current != null && !current.isDone())
+		    return current;
 
-	String request = new StringBuilder().append(baseRequestURL).append("/").append(threadID).append("/action/makemovie").toString();
+		LatestFrameCapturer newFrameCapturer = new LatestFrameCapturer(cameraID);
 
-	String[] responseLines = parseHttpRequest(request).split("\n");
+		camerasFrameCapturers.compute(newFrameCapturer.getFrameCapturerID(), (frameCapturerID, frameCapturer) -> {
 
-	if (responseLines.length == 2) {
+		    newFrameCapturer.startFrameCapture();
+		    return newFrameCapturer;
 
-	    return responseLines[1].equals("Done");
+		});
 
-	} else {
+		return newFrameCapturer;
 
-	    return false;
+	    });
 
-	}
+	    byte[] frame;
 
-    }
+	    try {
 
-    public static boolean isMotionInstalled() {
+		frame = latestFrameCapturer.awaitLatestFrame(Math.max(0L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
 
-	try {
-	    parseShellCommand("motion -h");
-	    return true;
+	    } catch (InterruptedException e) {
 
-	} catch (IOException | InterruptedException e) {
-	    System.out.println(e.getMessage());
-	    return false;
+		Thread.currentThread().interrupt();
+		return null;
 
-	}
+	    }
 
-    }
+	    // retired as idle just before being waited for: the stream is
+	    // opened again, as long as there is time left
+	    if (frame != null || !latestFrameCapturer.isRetired() || System.nanoTime() >= deadline)
+		return frame;
 
-    public String getThreadMoDetStatus(String threadID) {
+	}
 
-	String request = new StringBuilder().append(baseRequestURL).append("/").append(threadID).append("/detection/status").toString();
+    }
 
-	String[] responseLines = parseHttpRequest(request).split(" ");
+    /*
+     * Returns the running CameraDataStreamer of the given camera, creating and
+     * starting a new one if needed, and adds the given user to it. The lookup,
+     * the creation and the user registration are atomic with respect to
+     * releaseCameraDataStreamer(), so a user is never added to a streamer
+     * which is being torn down.
+     */
+    private CameraDataStreamer acquireCameraDataStreamer(String cameraID, String userID) {
 
-	if (responseLines.length == 5) {
+	return camerasDataStreamers.compute(cameraID, (id, cameraDataStreamer) -> {
 
-	    return responseLines[4].replaceAll("\n", "");
+	    if (cameraDataStreamer == null || !cameraDataStreamer.isRunning()) {
 
-	} else {
+		cameraDataStreamer = new CameraDataStreamer(cameraID);
+		cameraDataStreamer.startStreaming();
 
-	    return "";
+		if (debugMode)
+		    System.out.println("MotionComm - CameraDataStreamer CREATO per cameraID: " + cameraID);
 
-	}
+	    } else if (debugMode) {
 
-    }
+		System.out.println("MotionComm - CameraDataStreamer TROVATO per cameraID: " + cameraID);
 
-    public HashMap<String, Object> getCameraInfo(String cameraID) {
+	    }
 
-	/* retrieve the information of the i-th thread */
-	HashMap<String, Object> cameraInfo = new HashMap<String, Object>();
-	cameraInfo.put("MoDetStatus", getThreadMoDetStatus(cameraID));
-	cameraInfo.put("OwnerDevice", owner);
-	cameraInfo.put("ThreadID", cameraID);
-	cameraInfo.put("CameraName", getParameter(cameraID, "camera_name"));
-	cameraInfo.put("StreamFPS", getCameraStreamFPS(cameraID));
+	    cameraDataStreamer.addUser(userID);
+	    return cameraDataStreamer;
 
-	return cameraInfo;
+	});
 
     }
 
-    public String getCamerasList() {
-	return getCamerasList(";");
-    }
+    /*
+     * Returns the running CameraFramePipeline of the given camera, creating
+     * and starting a new one if needed, and adds the given FrameCapturer to
+     * it. Atomic with respect to releaseCameraFramePipeline() and to the end
+     * of the pipeline thread.
+     */
+    private CameraFramePipeline acquireCameraFramePipeline(String cameraID, FrameCapturer frameCapturer) {
 
-    public String getCamerasList(String regex) {
+	return camerasFramePipelines.compute(cameraID, (id, cameraFramePipeline) -> {
 
-	/*
-	 * Restituisce una lista, separata dalla sequenza di caratteri
-	 * _regex,
-	 * contenente gli id dei thread corrispondenti alle videocamere
-	 * 
-	 * ad esempio, se questa  la risposta di motion con 2 videocamere:
-	 * 
-	 * Motion 4.0 Running [3] Cameras
-	 * 0
-	 * 1
-	 * 2
-	 * 
-	 * la funzione restituisce "1{_regex}2"
-	 * 
-	 */
+	    if (cameraFramePipeline == null || !cameraFramePipeline.isRunning()) {
 
-	String[] IDs = getThreadsIDs();
+		cameraFramePipeline = new CameraFramePipeline(cameraID);
+		cameraFramePipeline.startPipeline();
 
-	StringBuilder out = new StringBuilder();
-	for (int i = 0; i < IDs.length; i++) {
-	    out.append(IDs[i]);
+		if (debugMode)
+		    System.out.println("MotionComm - CameraFramePipeline CREATA per cameraID: " + cameraID);
 
-	    if (i < getNOfThreads() - 1)
-		out.append(regex);
+	    }
 
-	}
+	    cameraFramePipeline.addFrameCapturer(frameCapturer);
+	    return cameraFramePipeline;
 
-	return out.toString();
+	});
 
     }
 
-    public String getCamerasNames() {
+    /*
+     * Removes the given FrameCapturer from the given CameraFramePipeline. When
+     * the last FrameCapturer leaves, the pipeline is stopped and unregistered.
+     */
+    private void releaseCameraFramePipeline(String cameraID, CameraFramePipeline cameraFramePipeline, FrameCapturer frameCapturer) {
 
-	return getCamerasNames(";");
+	camerasFramePipelines.compute(cameraID, (id, current) -> {
 
-    }
+	    cameraFramePipeline.removeFrameCapturer(frameCapturer);
 
-    public String getCamerasNames(String regex) {
+	    if (cameraFramePipeline.getFrameCapturersCount() < 1) {
 
-	String[] IDs = getThreadsIDs();
+		cameraFramePipeline.stopPipeline();
 
-	StringBuilder out = new StringBuilder();
-	for (int i = 0; i < IDs.length; i++) {
-	    out.append(getParameter(IDs[i], "camera_name"));
+		if (current == cameraFramePipeline)
+		    return null;
 
-	    if (i < getNOfThreads() - 1)
-		out.append(regex);
+	    }
 
-	}
+	    return current;
 
-	return out.toString();
+	});
 
     }
 
-    public void captureFrames(String cameraID, int framesToCapture, String destination) {
+    /*
+     * Removes the given user from the given CameraDataStreamer. When the last
+     * user leaves, the streamer is kept open for the keep-warm time, and then
+     * stopped and unregistered unless a new user has come.
+     */
+    private void releaseCameraDataStreamer(String cameraID, CameraDataStreamer cameraDataStreamer, String userID) {
 
-	FrameCapturer frameCapturer;
-	String frameCapturerID = cameraID + "_" + destination;
+	camerasDataStreamers.compute(cameraID, (id, current) -> {
 
-	/*
-	 * Definisce il FrameCapturer.
-	 * Cerca un FrameCapturer attivo per il cameraID passato in argomento.
-	 * Se c' un FrameCapturer attivo per il cameraID passato in argomento,
-	 * aumenta il numero di fotogrammi da catturare. Altrimenti, crea un
-	 * nuovo FrameCapturer
-	 * 
-	 */
+	    cameraDataStreamer.removeUser(userID);
 
-	if (camerasFrameCapturers.containsKey(frameCapturerID)) {
+	    if (cameraDataStreamer.getUsersCount() < 1) {
 
-	    // esiste un FrameCapturer attivo per il cameraID passato in
-	    // argomento
-	    frameCapturer = camerasFrameCapturers.get(frameCapturerID);
-	    frameCapturer.addFramesToCapture(framesToCapture);
+		long keepWarm = streamKeepWarm;
 
-	    if (debugMode)
-		System.out.println("MotionComm - FrameCapturer TROVATO per cameraID: " + cameraID);
+		if (keepWarm > 0 && current == cameraDataStreamer && cameraDataStreamer.isRunning() && !shuttingDown) {
 
-	} else {
+		    scheduledTasksCount.incrementAndGet();
+
+		    try {
 
-	    // non esiste un FrameCapturer attivo per il cameraID passato in
-	    // argomento
+			scheduler.schedule(() -> {
 
-	    CameraDataStreamer cameraDataStreamer;
+			    try {
+				retireIdleCameraDataStreamer(cameraID, cameraDataStreamer, keepWarm);
+			    } finally {
+				scheduledTasksCount.decrementAndGet();
+			    }
 
-	    /*
-	     * Definisce il CameraDataStreamer.
-	     * Cerca un CameraDataStreamer attivo per il cameraID passato in
-	     * argomento. Se esiste un CameraDataStreamer attivo per il cameraID
-	     * passato in argomento, lo imposta come InputStream, altrimenti ne
-	     * crea uno nuovo.
-	     * 
-	     */
+			}, keepWarm, TimeUnit.MILLISECONDS);
 
-	    if (camerasDataStreamers.containsKey(cameraID)) {
+			return current;
 
-		// esiste un CameraDataStreamer attivo per il cameraID passato
-		// in argomento
-		cameraDataStreamer = camerasDataStreamers.get(cameraID);
+		    } catch (RejectedExecutionException e) {
 
-		if (debugMode)
-		    System.out.println("MotionComm - CameraDataStreamer TROVATO per cameraID: " + cameraID);
+			// no scheduler: the stream is not kept warm
+			scheduledTasksCount.decrementAndGet();
 
-	    } else {
+		    }
 
-		// non esiste un CameraDataStreamer attivo per il cameraID
-		// passato in argomento
+		}
 
-		// crea un nuovo CameraDataStreamer per il cameraID passato in
-		// argomento
-		cameraDataStreamer = new CameraDataStreamer(cameraID);
-		camerasDataStreamers.put(cameraID, cameraDataStreamer);
-		cameraDataStreamer.startStreaming();
+		cameraDataStreamer.stopStreaming();
 
-		if (debugMode)
-		    System.out.println("MotionComm - CameraDataStreamer CREATO per cameraID: " + cameraID);
+		if (current == cameraDataStreamer)
+		    return null;
 
 	    }
 
-	    // crea un nuovo FrameCapturer per il cameraID passato in argomento
-	    frameCapturer = new FrameCapturer(cameraID, cameraDataStreamer, destination);
-	    camerasFrameCapturers.put(frameCapturerID, frameCapturer);
+	    return current;
 
-	    frameCapturer.setFramesToBeCaptured(framesToCapture);
-	    frameCapturer.startFrameCapture();
+	});
 
-	    if (debugMode)
-		System.out.println("MotionComm - FrameCapturer CREATO per cameraID: " + cameraID);
+    }
 
-	}
+    /*
+     * Stops and unregisters the given CameraDataStreamer if it has had no
+     * users for at least the given time
+     */
+    private void retireIdleCameraDataStreamer(String cameraID, CameraDataStreamer cameraDataStreamer, long idleMillis) {
+
+	camerasDataStreamers.computeIfPresent(cameraID, (id, current) -> {
+
+	    if (current != cameraDataStreamer || cameraDataStreamer.getUsersCount() > 0)
+		return current;
+
+	    // left again after a new user came: a later task retires it
+	    if (System.nanoTime() - cameraDataStreamer.idleSince < idleMillis * 1000000L)
+		return current;
+
+	    cameraDataStreamer.stopStreaming();
+	    return null;
+
+	});
 
     }
 
+    /*
+     * Returns the value of a Motion configuration parameter from the parameter
+     * cache, reading it from Motion on a cache miss. Empty values, which
+     * denote a failed request, are not cached.
+     */
     private String getParameter(String cameraID, String parameterID) {
 
-	String request = String.format("%s/%s/config/get?query=%s", baseRequestURL, cameraID, parameterID);
+	// read before the cache, so that a write racing with the fetch wins
+	long generation = parameterCache.getGeneration();
+	String value = parameterCache.get(cameraID, parameterID);
 
-	String[] responseLines = parseHttpRequest(request).split("\n");
+	if (value == null) {
 
-	if (responseLines.length == 2) {
+	    value = fetchParameter(cameraID, parameterID);
 
-	    String reply[] = responseLines[0].replaceAll(" ", "").split("=");
+	    if (!value.isEmpty())
+		parameterCache.putIfUnchanged(cameraID, parameterID, generation, value);
 
-	    if (reply.length == 2) {
-		return reply[1];
-	    } else {
-		return "";
-	    }
+	}
 
-	} else {
+	return value;
 
-	    return "";
+    }
 
-	}
+    private String fetchParameter(String cameraID, String parameterID) {
+
+	return controlClient.get("config/get", "/" + cameraID + "/config/get?query=" + parameterID).getParameterValue();
 
     }
 
@@ -814,7 +3276,7 @@ public class MotionComm {
 
     /*
      * Restituisce l'indirizzo completo del flusso video della camera il cui ID
-     *  passato in argomento
+     * è passato in argomento
      * Ad esempio:
      * 
      */
@@ -832,15 +3294,10 @@ public class MotionComm {
 
     public boolean startModet(String cameraID) {
 
-	String request = String.format("%s/%s/detection/start", baseRequestURL, cameraID);
-
-	String[] responseLines = parseHttpRequest(request).split("\n");
+	if (controlClient.get("detection/start", "/" + cameraID + "/detection/start").isDone()) {
 
-	if (responseLines.length == 2 && responseLines[1].equals("Done")) {
-
-	    if (motionCommListener != null) {
-		motionCommListener.statusChanged(cameraID);
-	    }
+	    detectionStatusMonitor.setStatus(cameraID, DETECTION_STATUS_ACTIVE);
+	    notifyStatusChanged(cameraID);
 
 	    return true;
 
@@ -854,15 +3311,10 @@ public class MotionComm {
 
     public boolean stopModet(String cameraID) {
 
-	String request = String.format("%s/%s/detection/pause", baseRequestURL, cameraID);
+	if (controlClient.get("detection/pause", "/" + cameraID + "/detection/pause").isDone()) {
 
-	String[] responseLines = parseHttpRequest(request).split("\n");
-
-	if (responseLines.length == 2 && responseLines[1].equals("Done")) {
-
-	    if (motionCommListener != null) {
-		motionCommListener.statusChanged(cameraID);
-	    }
+	    detectionStatusMonitor.setStatus(cameraID, DETECTION_STATUS_PAUSE);
+	    notifyStatusChanged(cameraID);
 
 	    return true;
 
@@ -877,22 +3329,183 @@ public class MotionComm {
     public boolean setParameter(String cameraID, String parameter, String value) {
 	// http://10.42.0.10:8080/0/config/set?emulate_motion=off
 
-	String request = String.format("%s/%s/config/set?%s=%s", baseRequestURL, cameraID, parameter, value);
+	ControlResponse response = controlClient.get("config/set", "/" + cameraID + "/config/set?" + parameter + "=" + value);
+
+	boolean done = response.isDone() && response.getLines()[0].equals(parameter + " = " + value);
 
-	String[] responseLines = parseHttpRequest(request).split("\n");
+	// write-through: same normalization as getParameter()
+	if (done)
+	    parameterCache.put(cameraID, parameter, value.replaceAll(" ", ""));
+	else
+	    parameterCache.invalidate(cameraID, parameter);
 
-	if (responseLines.length == 2) {
+	return done;
 
-	    String reply = responseLines[0];
+    }
 
-	    return reply.equals(String.format("%s = %s", parameter, value)) && responseLines[1].equals("Done");
+    /*
+     * Asynchronous variants of the control methods. They run on the control
+     * executor (see setControlExecutor()) and complete with the same result
+     * the synchronous methods return.
+     */
 
-	} else {
+    public CompletableFuture<Boolean> startModetAsync(String cameraID) {
+	return CompletableFuture.supplyAsync(() -> startModet(cameraID), controlExecutor);
+    }
 
-	    return false;
+    public CompletableFuture<Boolean> stopModetAsync(String cameraID) {
+	return CompletableFuture.supplyAsync(() -> stopModet(cameraID), controlExecutor);
+    }
+
+    public CompletableFuture<Boolean> requestShotAsync(String threadID) {
+	return CompletableFuture.supplyAsync(() -> requestShot(threadID), controlExecutor);
+    }
+
+    public CompletableFuture<Boolean> requestVideoAsync(String threadID) {
+	return CompletableFuture.supplyAsync(() -> requestVideo(threadID), controlExecutor);
+    }
+
+    public CompletableFuture<Boolean> setParameterAsync(String cameraID, String parameter, String value) {
+	return CompletableFuture.supplyAsync(() -> setParameter(cameraID, parameter, value), controlExecutor);
+    }
+
+    /*
+     * Concurrent calls for the same camera share a single request to Motion
+     */
+    public CompletableFuture<String> getThreadMoDetStatusAsync(String threadID) {
+
+	CompletableFuture<String> request = new CompletableFuture<String>();
+	CompletableFuture<String> pending = detectionStatusRequests.putIfAbsent(threadID, request);
+
+	if (pending == null) {
+
+	    pending = request;
+
+	    try {
+
+		CompletableFuture.supplyAsync(() -> getThreadMoDetStatus(threadID), controlExecutor).whenComplete((status, e) -> {
+
+		    // removed first, so that the later calls send a new request
+		    detectionStatusRequests.remove(threadID, request);
+
+		    if (e == null)
+			request.complete(status);
+		    else
+			request.completeExceptionally(e);
+
+		});
+
+	    } catch (RejectedExecutionException e) {
+
+		detectionStatusRequests.remove(threadID, request);
+		request.completeExceptionally(e);
+
+	    }
 
 	}
 
+	// a copy, so that a caller cannot complete the shared request
+	return pending.thenApply(Function.identity());
+
+    }
+
+    /*
+     * Starts polling the detection status of all the cameras, notifying
+     * MotionCommListener.statusChanged() of the changes, including the ones
+     * made by other Motion clients. See setDetectionStatusPollInterval().
+     */
+    public void startDetectionStatusMonitor() {
+	detectionStatusMonitor.start();
+    }
+
+    public void stopDetectionStatusMonitor() {
+	detectionStatusMonitor.stop();
+    }
+
+    public boolean isDetectionStatusMonitorRunning() {
+	return detectionStatusMonitor.isRunning();
+    }
+
+    /*
+     * Returns the last detection status read by the detection status monitor
+     * for the given camera, or null if not known
+     */
+    public String getMonitoredDetectionStatus(String cameraID) {
+	return detectionStatusMonitor.getStatus(cameraID);
+    }
+
+    /*
+     * Unlike getCameraInfo(), requests the detection status, the camera name
+     * and the stream rate concurrently
+     */
+    public CompletableFuture<HashMap<String, Object>> getCameraInfoAsync(String cameraID) {
+
+	CompletableFuture<String> detectionStatus = getThreadMoDetStatusAsync(cameraID);
+	CompletableFuture<String> cameraName = CompletableFuture.supplyAsync(() -> getParameter(cameraID, "camera_name"), controlExecutor);
+	CompletableFuture<Integer> streamFPS = CompletableFuture.supplyAsync(() -> getCameraStreamFPS(cameraID), controlExecutor);
+
+	return CompletableFuture.allOf(detectionStatus, cameraName, streamFPS).thenApply(done -> {
+
+	    HashMap<String, Object> cameraInfo = new HashMap<String, Object>();
+	    cameraInfo.put("MoDetStatus", detectionStatus.join());
+	    cameraInfo.put("OwnerDevice", owner);
+	    cameraInfo.put("ThreadID", cameraID);
+	    cameraInfo.put("CameraName", cameraName.join());
+	    cameraInfo.put("StreamFPS", streamFPS.join());
+
+	    return cameraInfo;
+
+	});
+
+    }
+
+    /*
+     * Applies an operation to each of the given cameras concurrently, on the
+     * control executor. The resulting map follows the order of the cameras.
+     * An operation throwing an exception completes the returned future
+     * exceptionally, once all the others are over.
+     * 
+     * For instance, to pause the detection on some cameras:
+     * 
+     * applyToCamerasAsync(cameraIDs, motionComm::stopModet)
+     * 
+     * The wall time is the one of the slowest call, as long as the control
+     * executor threads and the control requests in flight (see
+     * setControlMaxInFlight()) are not fewer than the cameras; a request
+     * which finds no free slot in time fails with ControlBusyException.
+     */
+    public <T> CompletableFuture<Map<String, T>> applyToCamerasAsync(Collection<String> cameraIDs, Function<String, T> operation) {
+
+	LinkedHashMap<String, CompletableFuture<T>> results = new LinkedHashMap<String, CompletableFuture<T>>();
+
+	for (String cameraID : cameraIDs)
+	    results.put(cameraID, CompletableFuture.supplyAsync(() -> operation.apply(cameraID), controlExecutor));
+
+	return CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+
+	    LinkedHashMap<String, T> out = new LinkedHashMap<String, T>();
+	    results.forEach((cameraID, result) -> out.put(cameraID, result.join()));
+	    return out;
+
+	});
+
+    }
+
+    /*
+     * applies an operation to all the cameras returned by getThreadsIDs()
+     */
+    public <T> CompletableFuture<Map<String, T>> applyToAllCamerasAsync(Function<String, T> operation) {
+
+	return CompletableFuture.supplyAsync(this::getThreadsIDs, controlExecutor).thenCompose(threadIDs -> applyToCamerasAsync(Arrays.asList(threadIDs), operation));
+
+    }
+
+    public CompletableFuture<Map<String, Boolean>> startModetAllAsync() {
+	return applyToAllCamerasAsync(this::startModet);
+    }
+
+    public CompletableFuture<Map<String, Boolean>> stopModetAllAsync() {
+	return applyToAllCamerasAsync(this::stopModet);
     }
 
     public void requestMotionEvent(String cameraID, int durationSecs) {
@@ -901,7 +3514,14 @@ public class MotionComm {
 	if (setParameter(cameraID, "emulate_motion", "on")) {
 
 	    long delay = durationSecs * 1000;
-	    new Timer().schedule(new StopMotionEmulation(cameraID), delay);
+	    scheduledTasksCount.incrementAndGet();
+
+	    try {
+		scheduler.schedule(new StopMotionEmulation(cameraID), delay, TimeUnit.MILLISECONDS);
+	    } catch (RejectedExecutionException e) {
+		scheduledTasksCount.decrementAndGet();
+		throw e;
+	    }
 
 	}
 
@@ -947,51 +3567,67 @@ public class MotionComm {
 	return getParameter(cameraID, "camera_name");
     }
 
+    /*
+     * Sets the directory where the indexes of the Motion target directories,
+     * used by getEventJpegFileName(), are persisted between runs, or null to
+     * keep them in memory only. See EventFileIndex.
+     */
+    public static void setEventIndexDirectory(String directory) {
+	EventFileIndex.setPersistenceDirectory(directory);
+    }
+
     public static String getEventJpegFileName(String aviFileName) {
 
 	/*
 	 * given the filename of the .avi file returns the filename of the
 	 * relevant jpeg shot
 	 * .avi file name shall be in the format xx-yyyyMMddhhmmss.avi
-	 * this method will return the first occurrence of xx-yyyyMMdd*.jpg, in
-	 * order to locate the jpeg shot file generated by motion daemon, which
-	 * is in the form xx-yyyyMMddhhmmss-ff.jpg
+	 * this method will return the xx-yyyyMMdd*.jpg shot generated by motion
+	 * daemon, which is in the form xx-yyyyMMddhhmmss-ff.jpg, closest to the
+	 * start of the event, see EventFileIndex.getEventSnapshot().
 	 * 
 	 * null is returned is .avi file name is not in the expected format, or
 	 * if no file named xx-yyyyMMdd*.jpg is found.
 	 * 
+	 * The files of the directory are looked up in an EventFileIndex, built
+	 * on the first call for the directory and then kept current.
+	 * 
 	 */
 
 	File file = new File(aviFileName);
+	String directory = file.getParent() != null ? file.getParent() : ".";
 
-	String[] shortName = file.getName().split("-");
-
-	if (shortName.length < 2)
+	try {
+	    return EventFileIndex.forDirectory(directory).getEventSnapshot(file.getName());
+	} catch (IOException e) {
 	    return null;
+	}
+
+    }
 
-	String datePart = shortName[1].substring(0, 8);
+    public int getCameraStreamFPS(String cameraID) {
 
-	FilenameFilter filter = new FilenameFilter() {
+	return Integer.parseInt(getParameter(cameraID, "stream_maxrate"));
 
-	    @Override
-	    public boolean accept(File dir, String name) {
-		return name.toLowerCase().startsWith(shortName[0] + "-" + datePart) && name.toLowerCase().endsWith("jpg");
-	    }
+    }
 
-	};
+    private void notifyStatusChanged(String cameraID) {
+
+	MotionCommListener listener = motionCommListener;
+
+	if (listener == null)
+	    return;
 
-	File localCmdDirectory = new File(file.getParent());
 	try {
-	    return localCmdDirectory.listFiles(filter)[0].getAbsolutePath();
-	} catch (IndexOutOfBoundsException e) {
-	    return null;
-	}
 
-    }
+	    listener.statusChanged(cameraID);
 
-    public int getCameraStreamFPS(String cameraID) {
+	} catch (RuntimeException e) {
 
-	return Integer.parseInt(getParameter(cameraID, "stream_maxrate"));
+	    if (debugMode)
+		printDebugErrorMessage("MotionComm", e);
+
+	}
 
     }
 
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.BiFunction;
+
+/*
+ * Facade over the MotionComm instances of several Motion daemons (the
+ * nodes), identified by their owner.
+ * 
+ * The cameras of the cluster are named "owner/threadID", for instance
+ * "garage/1"; the calls naming a camera are routed to the node of its owner,
+ * while the inventory and the status queries run on all the nodes in
+ * parallel. The listener set on the cluster receives the events of all the
+ * nodes with the cluster camera IDs; a MotionCommFrameBufferListener receives
+ * the pooled FrameBuffers of the nodes.
+ */
+public class MotionCommCluster {
+
+    /* constants */
+    public final static char CAMERA_ID_SEPARATOR = '/';
+
+    /* subclasses */
+    private class NodeListener implements MotionCommListener {
+
+	final String owner;
+
+	NodeListener(String owner) {
+	    this.owner = owner;
+	}
+
+	@Override
+	public void onNewFrame(String cameraID, byte[] frameImageData, String destination) {
+
+	    MotionCommListener clusterListener = listener;
+
+	    if (clusterListener != null)
+		clusterListener.onNewFrame(getCameraID(owner, cameraID), frameImageData, destination);
+
+	}
+
+	@Override
+	public void statusChanged(String cameraID) {
+
+	    MotionCommListener clusterListener = listener;
+
+	    if (clusterListener != null)
+		clusterListener.statusChanged(getCameraID(owner, cameraID));
+
+	}
+
+    }
+
+    /*
+     * installed on the nodes while the cluster listener is a
+     * MotionCommFrameBufferListener, so that the nodes deliver FrameBuffers
+     */
+    private class FrameBufferNodeListener extends NodeListener implements MotionCommFrameBufferListener {
+
+	FrameBufferNodeListener(String owner) {
+	    super(owner);
+	}
+
+	@Override
+	public void onNewFrame(String cameraID, FrameBuffer frame, String destination) {
+
+	    MotionCommListener clusterListener = listener;
+
+	    if (clusterListener instanceof MotionCommFrameBufferListener)
+		((MotionCommFrameBufferListener) clusterListener).onNewFrame(getCameraID(owner, cameraID), frame, destination);
+	    else if (clusterListener != null)
+		clusterListener.onNewFrame(getCameraID(owner, cameraID), frame.toByteArray(), destination);
+
+	}
+
+    }
+
+    private final ConcurrentHashMap<String, MotionComm> nodes = new ConcurrentHashMap<String, MotionComm>();
+    private volatile MotionCommListener listener;
+    private volatile ExecutorService executor = MotionCommExecutors.newControlExecutor("MotionCommCluster", MotionCommExecutors.DEFAULT_CONTROL_THREADS);
+    private boolean ownsExecutor = true;
+
+    /* getters and setters */
+
+    public synchronized void setListener(MotionCommListener listener) {
+
+	this.listener = listener;
+
+	// the nodes deliver FrameBuffers only to the listeners asking for them
+	nodes.forEach((owner, node) -> node.setListener(newNodeListener(owner)));
+
+    }
+
+    /*
+     * Sets the executor which queries the nodes in parallel. If not set,
+     * virtual threads are used where the JVM supports them, or else a pool of
+     * MotionCommExecutors.DEFAULT_CONTROL_THREADS daemon threads. An injected
+     * executor is never shut down by MotionCommCluster.
+     */
+    public synchronized void setExecutor(ExecutorService executor) {
+
+	if (executor == null)
+	    throw new IllegalArgumentException("Executor cannot be null");
+
+	if (ownsExecutor)
+	    this.executor.shutdown();
+
+	this.executor = executor;
+	ownsExecutor = false;
+
+    }
+
+    /* methods */
+
+    public static String getCameraID(String owner, String threadID) {
+	return owner + CAMERA_ID_SEPARATOR + threadID;
+    }
+
+    public static String getOwner(String cameraID) {
+	return cameraID.substring(0, separatorIndex(cameraID));
+    }
+
+    public static String getThreadID(String cameraID) {
+	return cameraID.substring(separatorIndex(cameraID) + 1);
+    }
+
+    private static int separatorIndex(String cameraID) {
+
+	// the thread IDs are numbers, so the owner is what precedes the last separator
+	int index = cameraID.lastIndexOf(CAMERA_ID_SEPARATOR);
+
+	if (index < 1 || index == cameraID.length() - 1)
+	    throw new IllegalArgumentException("Camera ID must be in the form owner/threadID: " + cameraID);
+
+	return index;
+
+    }
+
+    /*
+     * creates and adds the node for a Motion daemon
+     */
+    public MotionComm addNode(String host, String owner, int port) {
+
+	MotionComm node = new MotionComm(host, owner, port);
+	addNode(node);
+	return node;
+
+    }
+
+    /*
+     * Adds a node. Its listener is replaced by the one of the cluster. The
+     * owners must be unique in the cluster.
+     */
+    public synchronized void addNode(MotionComm node) {
+
+	String owner = node.getOwner();
+
+	if (owner == null || owner.isEmpty())
+	    throw new IllegalArgumentException("Node owner cannot be empty");
+
+	if (nodes.putIfAbsent(owner, node) != null)
+	    throw new IllegalArgumentException("A node with owner " + owner + " already exists");
+
+	node.setListener(newNodeListener(owner));
+
+    }
+
+    private NodeListener newNodeListener(String owner) {
+
+	if (listener instanceof MotionCommFrameBufferListener)
+	    return new FrameBufferNodeListener(owner);
+
+	return new NodeListener(owner);
+
+    }
+
+    /*
+     * Removes a node, without shutting it down, and returns it, or null if
+     * not found
+     */
+    public synchronized MotionComm removeNode(String owner) {
+
+	MotionComm node = nodes.remove(owner);
+
+	if (node != null)
+	    node.setListener(null);
+
+	return node;
+
+    }
+
+    /*
+     * returns the node with the given owner, or null
+     */
+    public MotionComm getNode(String owner) {
+	return nodes.get(owner);
+    }
+
+    /*
+     * returns the nodes, sorted by owner
+     */
+    public List<MotionComm> getNodes() {
+	return new ArrayList<MotionComm>(new TreeMap<String, MotionComm>(nodes).values());
+    }
+
+    /*
+     * returns the node of the given camera, or throws IllegalArgumentException
+     */
+    public MotionComm route(String cameraID) {
+
+	String owner = getOwner(cameraID);
+	MotionComm node = nodes.get(owner);
+
+	if (node == null)
+	    throw new IllegalArgumentException("Unknown node: " + owner);
+
+	return node;
+
+    }
+
+    public void captureFrames(String cameraID, int framesToCapture, String destination) {
+	route(cameraID).captureFrames(getThreadID(cameraID), framesToCapture, destination);
+    }
+
+    public void captureFrames(String cameraID, int framesToCapture, String destination, int frameWidth, int frameHeight, FrameFormat frameFormat) {
+	route(cameraID).captureFrames(getThreadID(cameraID), framesToCapture, destination, frameWidth, frameHeight, frameFormat);
+    }
+
+    public boolean startModet(String cameraID) {
+	return route(cameraID).startModet(getThreadID(cameraID));
+    }
+
+    public boolean stopModet(String cameraID) {
+	return route(cameraID).stopModet(getThreadID(cameraID));
+    }
+
+    public CompletableFuture<Boolean> startModetAsync(String cameraID) {
+	return route(cameraID).startModetAsync(getThreadID(cameraID));
+    }
+
+    public CompletableFuture<Boolean> stopModetAsync(String cameraID) {
+	return route(cameraID).stopModetAsync(getThreadID(cameraID));
+    }
+
+    public boolean requestShot(String cameraID) {
+	return route(cameraID).requestShot(getThreadID(cameraID));
+    }
+
+    public boolean requestVideo(String cameraID) {
+	return route(cameraID).requestVideo(getThreadID(cameraID));
+    }
+
+    public void requestMotionEvent(String cameraID, int durationSecs) {
+	route(cameraID).requestMotionEvent(getThreadID(cameraID), durationSecs);
+    }
+
+    public boolean setParameter(String cameraID, String parameter, String value) {
+	return route(cameraID).setParameter(getThreadID(cameraID), parameter, value);
+    }
+
+    public String getThreadMoDetStatus(String cameraID) {
+	return route(cameraID).getThreadMoDetStatus(getThreadID(cameraID));
+    }
+
+    public HashMap<String, Object> getCameraInfo(String cameraID) {
+	return route(cameraID).getCameraInfo(getThreadID(cameraID));
+    }
+
+    public String getStreamFullURL(String cameraID) {
+	return route(cameraID).getStreamFullURL(getThreadID(cameraID));
+    }
+
+    /*
+     * Reads the inventories of all the nodes in parallel, and returns them by
+     * owner. The nodes whose inventory fails, for instance because they are
+     * down, are left out.
+     */
+    public CompletableFuture<Map<String, CameraInventory>> getCameraInventoryAsync() {
+
+	Map<String, CompletableFuture<CameraInventory>> inventories = new TreeMap<String, CompletableFuture<CameraInventory>>();
+
+	nodes.forEach((owner, node) -> inventories.put(owner, CompletableFuture.supplyAsync(node::getCameraInventory, executor).handle((inventory, e) -> inventory)));
+
+	return CompletableFuture.allOf(inventories.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+
+	    Map<String, CameraInventory> out = new TreeMap<String, CameraInventory>();
+
+	    inventories.forEach((owner, inventory) -> {
+
+		if (inventory.join() != null)
+		    out.put(owner, inventory.join());
+
+	    });
+
+	    return Collections.unmodifiableMap(out);
+
+	});
+
+    }
+
+    public Map<String, CameraInventory> getCameraInventory() {
+	return getCameraInventoryAsync().join();
+    }
+
+    /*
+     * returns the IDs of all the cameras of the cluster, sorted by owner
+     */
+    public List<String> getCameraIDs() {
+
+	List<String> cameraIDs = new ArrayList<String>();
+
+	getCameraInventory().forEach((owner, inventory) -> {
+
+	    for (String threadID : inventory.getThreadIDs())
+		cameraIDs.add(getCameraID(owner, threadID));
+
+	});
+
+	return cameraIDs;
+
+    }
+
+    /*
+     * Applies an operation to all the cameras of all the nodes concurrently,
+     * and returns the results by camera ID, sorted by owner. The nodes whose
+     * camera list or operations fail are left out.
+     * 
+     * For instance, to pause the detection on all the cameras:
+     * 
+     * applyToAllCamerasAsync(MotionComm::stopModet)
+     */
+    public <T> CompletableFuture<Map<String, T>> applyToAllCamerasAsync(BiFunction<MotionComm, String, T> operation) {
+
+	Map<String, CompletableFuture<Map<String, T>>> results = new TreeMap<String, CompletableFuture<Map<String, T>>>();
+
+	nodes.forEach((owner, node) -> results.put(owner, node.applyToAllCamerasAsync(threadID -> operation.apply(node, threadID)).handle((result, e) -> result)));
+
+	return CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+
+	    Map<String, T> out = new LinkedHashMap<String, T>();
+
+	    results.forEach((owner, result) -> {
+
+		if (result.join() != null)
+		    result.join().forEach((threadID, value) -> out.put(getCameraID(owner, threadID), value));
+
+	    });
+
+	    return Collections.unmodifiableMap(out);
+
+	});
+
+    }
+
+    /*
+     * returns the detection status of all the cameras, by camera ID
+     */
+    public CompletableFuture<Map<String, String>> getDetectionStatusesAsync() {
+	return applyToAllCamerasAsync(MotionComm::getThreadMoDetStatus);
+    }
+
+    public CompletableFuture<Map<String, Boolean>> startModetAllAsync() {
+	return applyToAllCamerasAsync(MotionComm::startModet);
+    }
+
+    public CompletableFuture<Map<String, Boolean>> stopModetAllAsync() {
+	return applyToAllCamerasAsync(MotionComm::stopModet);
+    }
+
+    /*
+     * Shuts down all the nodes and the default executor, if in use. The
+     * nodes stay in the cluster.
+     */
+    public synchronized void shutdown() {
+
+	for (MotionComm node : nodes.values())
+	    node.shutdown();
+
+	if (ownsExecutor)
+	    executor.shutdown();
+
+    }
+
+}
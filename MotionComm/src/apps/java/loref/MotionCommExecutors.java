@@ -0,0 +1,138 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Factories for the default executors used by MotionComm when none is
+ * injected.
+ */
+final class MotionCommExecutors {
+
+    /* constants */
+    final static int DEFAULT_MAX_WORKER_THREADS = 256;
+    final static int DEFAULT_CONTROL_THREADS = 16;
+    private final static long WORKER_KEEP_ALIVE_SECONDS = 60L;
+
+    private MotionCommExecutors() {
+    }
+
+    /*
+     * Returns an executor which runs each task in a new virtual thread when
+     * the JVM supports them (Java 21 and later), or else a pool of at most
+     * maxThreads daemon platform threads. Since the stream tasks run for as
+     * long as the streams are open, the pool does not queue tasks: when all
+     * its threads are busy, new tasks are rejected with a
+     * RejectedExecutionException.
+     */
+    static ExecutorService newWorkerExecutor(String name, int maxThreads) {
+
+	ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+
+	if (virtualThreadExecutor != null)
+	    return virtualThreadExecutor;
+
+	return new ThreadPoolExecutor(0, maxThreads, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), newDaemonThreadFactory(name + "-worker"));
+
+    }
+
+    /*
+     * Returns an executor for short, blocking control requests: virtual threads
+     * when the JVM supports them, or else a fixed pool of daemon platform
+     * threads which queues the tasks exceeding the pool size.
+     */
+    static ExecutorService newControlExecutor(String name, int threads) {
+
+	ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+
+	if (virtualThreadExecutor != null)
+	    return virtualThreadExecutor;
+
+	return Executors.newFixedThreadPool(threads, newDaemonThreadFactory(name + "-control"));
+
+    }
+
+    /*
+     * Returns a single thread scheduler whose cancelled tasks are removed from
+     * the queue at once.
+     */
+    static ScheduledExecutorService newScheduler(String name) {
+
+	ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, newDaemonThreadFactory(name + "-scheduler"));
+	scheduler.setRemoveOnCancelPolicy(true);
+	return scheduler;
+
+    }
+
+    static ThreadFactory newDaemonThreadFactory(String prefix) {
+
+	AtomicInteger threadsCount = new AtomicInteger();
+
+	return runnable -> {
+
+	    Thread thread = new Thread(runnable, prefix + "-" + threadsCount.incrementAndGet());
+	    thread.setDaemon(true);
+	    return thread;
+
+	};
+
+    }
+
+    /*
+     * Executors.newVirtualThreadPerTaskExecutor() is looked up by reflection,
+     * as the project targets Java 8
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+
+	try {
+
+	    Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+	    return (ExecutorService) factory.invoke(null);
+
+	} catch (ReflectiveOperationException | RuntimeException e) {
+
+	    return null;
+
+	}
+
+    }
+
+}
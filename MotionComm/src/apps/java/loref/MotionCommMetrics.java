@@ -0,0 +1,352 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+ * Metrics of a MotionComm: frame counters for each camera, latency of each
+ * stage of the frame processing, users of the camera streams and latency of
+ * the requests to the Motion control port.
+ * 
+ * The counters are LongAdders and the latencies are recorded in
+ * LatencyHistograms, so that recording costs a few uncontended atomic
+ * operations and the metrics can be left on. The metrics are read through
+ * this class, or through JMX once MotionComm.registerMetricsMBean() is
+ * called.
+ */
+public class MotionCommMetrics implements MotionCommMetricsMXBean {
+
+    /* constants */
+    public final static String BYTES_IN = "bytesIn";
+    public final static String FRAMES_PARSED = "framesParsed";
+    public final static String FRAMES_DECODED = "framesDecoded";
+    public final static String FRAMES_ENCODED = "framesEncoded";
+    public final static String FRAMES_DELIVERED = "framesDelivered";
+    public final static String FRAMES_SKIPPED = "framesSkipped";
+    public final static String FRAMES_DROPPED = "framesDropped";
+
+    /* subclasses */
+
+    /*
+     * the counters of a camera
+     */
+    public static class CameraMetrics {
+
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder framesParsed = new LongAdder();
+	private final LongAdder framesDecoded = new LongAdder();
+	private final LongAdder framesEncoded = new LongAdder();
+	private final LongAdder framesDelivered = new LongAdder();
+	private final LongAdder framesSkipped = new LongAdder();
+	private final LongAdder framesDropped = new LongAdder();
+
+	/* getters */
+
+	/*
+	 * returns the number of bytes read from the camera stream
+	 */
+	public long getBytesIn() {
+	    return bytesIn.sum();
+	}
+
+	public long getFramesParsed() {
+	    return framesParsed.sum();
+	}
+
+	public long getFramesDecoded() {
+	    return framesDecoded.sum();
+	}
+
+	public long getFramesEncoded() {
+	    return framesEncoded.sum();
+	}
+
+	/*
+	 * returns the number of frames handed over to the listener or to the
+	 * subscribers
+	 */
+	public long getFramesDelivered() {
+	    return framesDelivered.sum();
+	}
+
+	/*
+	 * returns the number of frames skipped to keep the destinations within
+	 * their maximum frame rate
+	 */
+	public long getFramesSkipped() {
+	    return framesSkipped.sum();
+	}
+
+	/*
+	 * returns the number of frames dropped because the listener was still
+	 * busy with the previous ones
+	 */
+	public long getFramesDropped() {
+	    return framesDropped.sum();
+	}
+
+	/* methods */
+
+	private Map<String, Long> getCounters() {
+
+	    TreeMap<String, Long> counters = new TreeMap<String, Long>();
+	    counters.put(BYTES_IN, getBytesIn());
+	    counters.put(FRAMES_PARSED, getFramesParsed());
+	    counters.put(FRAMES_DECODED, getFramesDecoded());
+	    counters.put(FRAMES_ENCODED, getFramesEncoded());
+	    counters.put(FRAMES_DELIVERED, getFramesDelivered());
+	    counters.put(FRAMES_SKIPPED, getFramesSkipped());
+	    counters.put(FRAMES_DROPPED, getFramesDropped());
+	    return counters;
+
+	}
+
+	private void reset() {
+
+	    bytesIn.reset();
+	    framesParsed.reset();
+	    framesDecoded.reset();
+	    framesEncoded.reset();
+	    framesDelivered.reset();
+	    framesSkipped.reset();
+	    framesDropped.reset();
+
+	}
+
+    }
+
+    private final ConcurrentHashMap<String, CameraMetrics> camerasMetrics = new ConcurrentHashMap<String, CameraMetrics>();
+    private final LatencyHistogram parseLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LatencyHistogram scaleLatency = new LatencyHistogram();
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+    private final LatencyHistogram listenerLatency = new LatencyHistogram();
+    private final Supplier<Map<String, Integer>> streamUsers;
+    private final Supplier<Map<String, LatencyHistogram>> controlLatencies;
+
+    /* constructors */
+
+    MotionCommMetrics(Supplier<Map<String, Integer>> streamUsers, Supplier<Map<String, LatencyHistogram>> controlLatencies) {
+
+	this.streamUsers = streamUsers;
+	this.controlLatencies = controlLatencies;
+
+    }
+
+    /* getters */
+
+    public Set<String> getCameraIDs() {
+	return new TreeSet<String>(camerasMetrics.keySet());
+    }
+
+    /*
+     * returns the counters of the given camera, or null if nothing has been
+     * recorded for it
+     */
+    public CameraMetrics getCameraMetrics(String cameraID) {
+	return camerasMetrics.get(cameraID);
+    }
+
+    /*
+     * returns the time spent finding the frames in the camera streams,
+     * excluding the wait for the data
+     */
+    public LatencyHistogram getParseLatency() {
+	return parseLatency;
+    }
+
+    public LatencyHistogram getDecodeLatency() {
+	return decodeLatency;
+    }
+
+    public LatencyHistogram getScaleLatency() {
+	return scaleLatency;
+    }
+
+    public LatencyHistogram getEncodeLatency() {
+	return encodeLatency;
+    }
+
+    /*
+     * returns the time spent by the listener, or by the subscribers, on each
+     * frame
+     */
+    public LatencyHistogram getListenerLatency() {
+	return listenerLatency;
+    }
+
+    public long getFramesSkipped() {
+
+	long sum = 0;
+	for (CameraMetrics cameraMetrics : camerasMetrics.values())
+	    sum += cameraMetrics.getFramesSkipped();
+	return sum;
+
+    }
+
+    public long getFramesDropped() {
+
+	long sum = 0;
+	for (CameraMetrics cameraMetrics : camerasMetrics.values())
+	    sum += cameraMetrics.getFramesDropped();
+	return sum;
+
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+
+	TreeMap<String, Long> counters = new TreeMap<String, Long>();
+
+	for (CameraMetrics cameraMetrics : camerasMetrics.values())
+	    cameraMetrics.getCounters().forEach((name, value) -> counters.merge(name, value, Long::sum));
+
+	return counters;
+
+    }
+
+    @Override
+    public Map<String, Long> getCameraCounters() {
+
+	TreeMap<String, Long> counters = new TreeMap<String, Long>();
+	camerasMetrics.forEach((cameraID, cameraMetrics) -> cameraMetrics.getCounters().forEach((name, value) -> counters.put(cameraID + "/" + name, value)));
+	return counters;
+
+    }
+
+    @Override
+    public Map<String, Double> getStageLatencies() {
+
+	TreeMap<String, Double> latencies = new TreeMap<String, Double>();
+	putStatistics(latencies, "parse", parseLatency);
+	putStatistics(latencies, "decode", decodeLatency);
+	putStatistics(latencies, "scale", scaleLatency);
+	putStatistics(latencies, "encode", encodeLatency);
+	putStatistics(latencies, "listener", listenerLatency);
+	return latencies;
+
+    }
+
+    @Override
+    public Map<String, Double> getControlLatencies() {
+
+	TreeMap<String, Double> latencies = new TreeMap<String, Double>();
+	controlLatencies.get().forEach((endpoint, latency) -> putStatistics(latencies, endpoint, latency));
+	return latencies;
+
+    }
+
+    @Override
+    public Map<String, Integer> getStreamUsers() {
+	return new TreeMap<String, Integer>(streamUsers.get());
+    }
+
+    /* methods */
+
+    /*
+     * Resets the counters and the latencies. The latencies of the requests to
+     * the control port are reset as well.
+     */
+    @Override
+    public void reset() {
+
+	camerasMetrics.values().forEach(CameraMetrics::reset);
+	parseLatency.reset();
+	decodeLatency.reset();
+	scaleLatency.reset();
+	encodeLatency.reset();
+	listenerLatency.reset();
+	controlLatencies.get().values().forEach(LatencyHistogram::reset);
+
+    }
+
+    /*
+     * returns the counters of the given camera, creating them if needed. The
+     * recording components look them up once, not for each frame.
+     */
+    CameraMetrics forCamera(String cameraID) {
+	return camerasMetrics.computeIfAbsent(cameraID, id -> new CameraMetrics());
+    }
+
+    void addBytesIn(CameraMetrics cameraMetrics, long bytes) {
+	cameraMetrics.bytesIn.add(bytes);
+    }
+
+    void recordParse(CameraMetrics cameraMetrics, long nanos) {
+	cameraMetrics.framesParsed.increment();
+	parseLatency.record(nanos);
+    }
+
+    void recordDecode(CameraMetrics cameraMetrics, long nanos) {
+	cameraMetrics.framesDecoded.increment();
+	decodeLatency.record(nanos);
+    }
+
+    void recordScale(long nanos) {
+	scaleLatency.record(nanos);
+    }
+
+    void recordEncode(CameraMetrics cameraMetrics, long nanos) {
+	cameraMetrics.framesEncoded.increment();
+	encodeLatency.record(nanos);
+    }
+
+    void recordDelivery(CameraMetrics cameraMetrics, long nanos) {
+	cameraMetrics.framesDelivered.increment();
+	listenerLatency.record(nanos);
+    }
+
+    void recordSkip(CameraMetrics cameraMetrics) {
+	cameraMetrics.framesSkipped.increment();
+    }
+
+    void recordDrop(CameraMetrics cameraMetrics) {
+	cameraMetrics.framesDropped.increment();
+    }
+
+    private static void putStatistics(Map<String, Double> statistics, String name, LatencyHistogram latency) {
+
+	statistics.put(name + "/count", (double) latency.getCount());
+	statistics.put(name + "/mean", latency.getMeanMillis());
+	statistics.put(name + "/p50", latency.getPercentileMillis(50));
+	statistics.put(name + "/p99", latency.getPercentileMillis(99));
+	statistics.put(name + "/max", latency.getMaxMillis());
+
+    }
+
+}
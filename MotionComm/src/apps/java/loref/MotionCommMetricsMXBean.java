@@ -0,0 +1,71 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.util.Map;
+
+/*
+ * JMX view of the metrics of a MotionComm, see MotionCommMetrics. The values
+ * are flattened into maps, so that any JMX console can show them.
+ */
+public interface MotionCommMetricsMXBean {
+
+    /*
+     * returns the frame counters summed over all the cameras, by name
+     */
+    Map<String, Long> getCounters();
+
+    /*
+     * returns the frame counters of each camera, by "cameraID/name"
+     */
+    Map<String, Long> getCameraCounters();
+
+    /*
+     * returns the count, mean, 50th and 99th percentile and maximum, in
+     * milliseconds, of the latency of each stage of the frame processing, by
+     * "stage/statistic"
+     */
+    Map<String, Double> getStageLatencies();
+
+    /*
+     * returns the same statistics for each kind of request to the Motion
+     * control port, by "endpoint/statistic"
+     */
+    Map<String, Double> getControlLatencies();
+
+    /*
+     * returns the number of users of each open camera stream
+     */
+    Map<String, Integer> getStreamUsers();
+
+    void reset();
+
+}
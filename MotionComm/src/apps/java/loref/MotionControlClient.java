@@ -0,0 +1,214 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * HTTP client for the control port of a Motion instance.
+ * 
+ * Requests are sent with HttpURLConnection, whose keep-alive cache reuses the
+ * connections left open by the server once a reply has been fully read (up to
+ * "http.maxConnections" idle connections per host, 5 by default). The number
+ * of requests in flight is bounded, the connections have connect and read
+ * timeouts, and the latency of each endpoint is recorded in a
+ * LatencyHistogram.
+ * 
+ * Failed requests, including timeouts, are reported as
+ * ControlResponse.failed() rather than with exceptions, as the callers treat
+ * an unexpected reply and a missing one in the same way. A request which is
+ * not sent at all, for want of a free slot, is not a reply of Motion: it
+ * throws ControlBusyException instead.
+ */
+class MotionControlClient {
+
+    /* constants */
+    private final static int BUFFER_SIZE = 1024;
+
+    private final String baseURL;
+    private volatile int connectTimeout;
+    private volatile int readTimeout;
+    private volatile Semaphore inFlight;
+    private volatile int maxInFlight;
+
+    private final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /* constructors */
+
+    MotionControlClient(String baseURL, int connectTimeout, int readTimeout, int maxInFlight) {
+
+	this.baseURL = baseURL;
+	this.connectTimeout = connectTimeout;
+	this.readTimeout = readTimeout;
+	this.maxInFlight = maxInFlight;
+	this.inFlight = new Semaphore(maxInFlight, true);
+
+    }
+
+    /* getters and setters */
+
+    int getConnectTimeout() {
+	return connectTimeout;
+    }
+
+    void setConnectTimeout(int millis) {
+	connectTimeout = millis;
+    }
+
+    int getReadTimeout() {
+	return readTimeout;
+    }
+
+    void setReadTimeout(int millis) {
+	readTimeout = millis;
+    }
+
+    int getMaxInFlight() {
+	return maxInFlight;
+    }
+
+    /*
+     * the requests already waiting keep the previous limit
+     */
+    void setMaxInFlight(int requests) {
+	maxInFlight = requests;
+	inFlight = new Semaphore(requests, true);
+    }
+
+    /*
+     * returns the latency histograms, by endpoint
+     */
+    Map<String, LatencyHistogram> getLatencies() {
+	return Collections.unmodifiableMap(latencies);
+    }
+
+    /* methods */
+
+    /*
+     * Sends a GET request for the given path, which must start with "/" (or be
+     * empty for the root). The endpoint names the kind of request in the
+     * latency histograms, for instance "config/get".
+     */
+    ControlResponse get(String endpoint, String path) {
+
+	Semaphore permits = inFlight;
+	int timeout = connectTimeout + readTimeout;
+
+	try {
+
+	    if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+		throw new ControlBusyException(maxInFlight, timeout);
+
+	} catch (InterruptedException e) {
+
+	    Thread.currentThread().interrupt();
+	    return ControlResponse.failed();
+
+	}
+
+	long start = System.nanoTime();
+
+	try {
+
+	    return send(path);
+
+	} finally {
+
+	    permits.release();
+	    latencies.computeIfAbsent(endpoint, name -> new LatencyHistogram()).record(System.nanoTime() - start);
+
+	}
+
+    }
+
+    private ControlResponse send(String path) {
+
+	HttpURLConnection connection = null;
+
+	try {
+
+	    connection = (HttpURLConnection) new URL(baseURL + path).openConnection();
+	    connection.setConnectTimeout(connectTimeout);
+	    connection.setReadTimeout(readTimeout);
+	    connection.setUseCaches(false);
+
+	    int statusCode = connection.getResponseCode();
+
+	    // the body must be fully read and closed for the connection to be reused
+	    InputStream body = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+	    String text = body != null ? readFully(body) : "";
+
+	    return new ControlResponse(statusCode, text);
+
+	} catch (IOException | ClassCastException e) {
+
+	    // a broken connection must not go back to the keep-alive cache
+	    if (connection != null)
+		connection.disconnect();
+
+	    return ControlResponse.failed();
+
+	}
+
+    }
+
+    private static String readFully(InputStream in) throws IOException {
+
+	try {
+
+	    ByteArrayOutputStream out = new ByteArrayOutputStream(BUFFER_SIZE);
+	    byte[] buffer = new byte[BUFFER_SIZE];
+	    int read;
+
+	    while ((read = in.read(buffer)) >= 0)
+		out.write(buffer, 0, read);
+
+	    return new String(out.toByteArray(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+
+	} finally {
+
+	    in.close();
+
+	}
+
+    }
+
+}
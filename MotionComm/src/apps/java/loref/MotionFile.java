@@ -0,0 +1,274 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.nio.file.Path;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/*
+ * A snapshot or movie file written by Motion, with the fields of its name
+ * parsed once.
+ * 
+ * The names accepted are cc-yyyyMMddhhmmss[-ff].ext and
+ * cc-ee-yyyyMMddhhmmss[-ff].ext, where cc is the camera, ee the event number
+ * and ff the frame within the second; the extension tells the type of the
+ * file. The time is the one of the name, in the time zone given to parse().
+ */
+public final class MotionFile {
+
+    /* constants */
+    public enum Type {
+	SNAPSHOT, MOVIE
+    }
+
+    private final static String SNAPSHOT_EXTENSION = "jpg";
+    private final static String[] MOVIE_EXTENSIONS = { "avi", "mp4", "mkv", "mov", "swf", "flv", "webm", "3gp" };
+    private final static int TIMESTAMP_LENGTH = 14;
+    private final static int MAX_FRAME_LENGTH = 3;
+    private final static int MAX_EVENT_LENGTH = 9;
+
+    private final Path directory;
+    private final String name;
+    private final String cameraID;
+    private final int event;
+    private final long timestamp;
+    private final long time;
+    private final int frame;
+    private final Type type;
+
+    /* constructors */
+
+    private MotionFile(Path directory, String name, String cameraID, int event, long timestamp, long time, int frame, Type type) {
+
+	this.directory = directory;
+	this.name = name;
+	this.cameraID = cameraID;
+	this.event = event;
+	this.timestamp = timestamp;
+	this.time = time;
+	this.frame = frame;
+	this.type = type;
+
+    }
+
+    /* getters */
+
+    public Path getDirectory() {
+	return directory;
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    public Path getPath() {
+	return directory.resolve(name);
+    }
+
+    public String getCameraID() {
+	return cameraID;
+    }
+
+    /*
+     * returns the event number, or -1 if not in the name
+     */
+    public int getEvent() {
+	return event;
+    }
+
+    /*
+     * returns the time of the name as the number yyyyMMddhhmmss, which sorts
+     * as the time
+     */
+    public long getTimestamp() {
+	return timestamp;
+    }
+
+    /*
+     * returns the time, in milliseconds since the epoch
+     */
+    public long getTime() {
+	return time;
+    }
+
+    /*
+     * returns the frame within the second, or -1 if not in the name
+     */
+    public int getFrame() {
+	return frame;
+    }
+
+    public Type getType() {
+	return type;
+    }
+
+    /* methods */
+
+    /*
+     * Parses the name of a file of the given directory. Returns null if the
+     * name is not the one of a Motion snapshot or movie.
+     */
+    public static MotionFile parse(Path directory, String name, ZoneId zone) {
+
+	int dot = name.lastIndexOf('.');
+
+	if (dot < 0)
+	    return null;
+
+	Type type = getType(name, dot + 1);
+
+	if (type == null)
+	    return null;
+
+	int cameraEnd = name.indexOf('-');
+
+	if (cameraEnd < 1)
+	    return null;
+
+	// cc-yyyyMMddhhmmss or cc-ee-yyyyMMddhhmmss
+	int event = -1;
+	int timestampStart = cameraEnd + 1;
+	int eventEnd = name.indexOf('-', timestampStart);
+
+	if (eventEnd > timestampStart && eventEnd - timestampStart < TIMESTAMP_LENGTH) {
+
+	    if (eventEnd - timestampStart > MAX_EVENT_LENGTH)
+		return null;
+
+	    event = (int) parseDigits(name, timestampStart, eventEnd);
+
+	    if (event < 0)
+		return null;
+
+	    timestampStart = eventEnd + 1;
+
+	}
+
+	int timestampEnd = timestampStart + TIMESTAMP_LENGTH;
+
+	if (timestampEnd > dot)
+	    return null;
+
+	long timestamp = parseDigits(name, timestampStart, timestampEnd);
+
+	if (timestamp < 0)
+	    return null;
+
+	int frame = -1;
+
+	if (timestampEnd < dot) {
+
+	    if (name.charAt(timestampEnd) != '-' || dot - timestampEnd - 1 > MAX_FRAME_LENGTH)
+		return null;
+
+	    frame = (int) parseDigits(name, timestampEnd + 1, dot);
+
+	    if (frame < 0)
+		return null;
+
+	}
+
+	long time;
+
+	try {
+
+	    time = LocalDateTime.of((int) (timestamp / 10000000000L), (int) (timestamp / 100000000L % 100), (int) (timestamp / 1000000L % 100), (int) (timestamp / 10000L % 100), (int) (timestamp / 100L % 100), (int) (timestamp % 100)).atZone(zone).toInstant().toEpochMilli();
+
+	} catch (DateTimeException e) {
+
+	    return null;
+
+	}
+
+	return new MotionFile(directory, name, name.substring(0, cameraEnd), event, timestamp, time, frame, type);
+
+    }
+
+    /*
+     * the extension is compared in place, since most of the names of a
+     * target directory are parsed only to be counted or skipped
+     */
+    private static Type getType(String name, int extensionStart) {
+
+	if (hasExtension(name, extensionStart, SNAPSHOT_EXTENSION))
+	    return Type.SNAPSHOT;
+
+	for (String extension : MOVIE_EXTENSIONS) {
+
+	    if (hasExtension(name, extensionStart, extension))
+		return Type.MOVIE;
+
+	}
+
+	return null;
+
+    }
+
+    private static boolean hasExtension(String name, int extensionStart, String extension) {
+
+	return name.length() - extensionStart == extension.length() && name.regionMatches(true, extensionStart, extension, 0, extension.length());
+
+    }
+
+    /*
+     * returns the value of the digits from start to end, or -1 if there are
+     * none or a character is not a digit
+     */
+    private static long parseDigits(String s, int start, int end) {
+
+	if (start >= end)
+	    return -1;
+
+	long value = 0;
+
+	for (int i = start; i < end; i++) {
+
+	    char c = s.charAt(i);
+
+	    if (c < '0' || c > '9')
+		return -1;
+
+	    value = value * 10 + (c - '0');
+
+	}
+
+	return value;
+
+    }
+
+    @Override
+    public String toString() {
+	return name;
+    }
+
+}
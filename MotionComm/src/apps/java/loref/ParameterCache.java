@@ -0,0 +1,321 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Cache of the Motion configuration parameters of the cameras.
+ * 
+ * Entries expire after a time-to-live and, when the cache is full, the least
+ * recently used entry is evicted. A time-to-live of zero disables the cache.
+ * 
+ * Every write and invalidation takes a new generation. A value fetched from
+ * Motion is stored with putIfUnchanged() and the generation read before the
+ * fetch, so that a fetch overtaken by a write or an invalidation of the same
+ * parameter does not replace it with the older value.
+ */
+class ParameterCache {
+
+    /*
+     * subclasses
+     */
+    private static final class CachedValue {
+
+	private final String value;
+	private final long expiration;
+
+	CachedValue(String value, long expiration) {
+	    this.value = value;
+	    this.expiration = expiration;
+	}
+
+    }
+
+    private final LinkedHashMap<String, CachedValue> entries = new LinkedHashMap<String, CachedValue>(64, 0.75f, true) {
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+
+	    if (size() > maxEntries) {
+		evictions.incrementAndGet();
+		return true;
+	    }
+
+	    return false;
+
+	}
+
+    };
+
+    /*
+     * generation of the last write or invalidation of the recent keys, in
+     * the order of the generations. The generations of the keys no longer
+     * tracked are at most forgottenGeneration.
+     */
+    private final LinkedHashMap<String, Long> keyGenerations = new LinkedHashMap<String, Long>() {
+
+	@Override
+	protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+
+	    if (size() > maxEntries) {
+		forgottenGeneration = eldest.getValue();
+		return true;
+	    }
+
+	    return false;
+
+	}
+
+    };
+
+    private final HashMap<String, Long> cameraGenerations = new HashMap<String, Long>();
+    private long generation = 0;
+    private long forgottenGeneration = 0;
+
+    private volatile long ttlMillis;
+    private volatile int maxEntries;
+
+    /* statistics */
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /* constructors */
+
+    ParameterCache(long ttlMillis, int maxEntries) {
+
+	this.ttlMillis = ttlMillis;
+	this.maxEntries = maxEntries;
+
+    }
+
+    /* getters and setters */
+
+    long getTtl() {
+	return ttlMillis;
+    }
+
+    void setTtl(long ttlMillis) {
+
+	this.ttlMillis = ttlMillis;
+
+	if (ttlMillis <= 0)
+	    invalidateAll();
+
+    }
+
+    int getMaxEntries() {
+	return maxEntries;
+    }
+
+    synchronized void setMaxEntries(int maxEntries) {
+
+	this.maxEntries = maxEntries;
+
+	Iterator<String> eldest = entries.keySet().iterator();
+	while (entries.size() > maxEntries && eldest.hasNext()) {
+
+	    eldest.next();
+	    eldest.remove();
+	    evictions.incrementAndGet();
+
+	}
+
+    }
+
+    long getHits() {
+	return hits.get();
+    }
+
+    long getMisses() {
+	return misses.get();
+    }
+
+    long getEvictions() {
+	return evictions.get();
+    }
+
+    synchronized int size() {
+	return entries.size();
+    }
+
+    /* methods */
+
+    /*
+     * Returns the cached value, or null if the parameter is not cached or has
+     * expired
+     */
+    String get(String cameraID, String parameter) {
+
+	if (ttlMillis <= 0) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+
+	String key = key(cameraID, parameter);
+	CachedValue entry;
+
+	synchronized (this) {
+
+	    entry = entries.get(key);
+
+	    if (entry != null && entry.expiration <= System.currentTimeMillis()) {
+		entries.remove(key);
+		entry = null;
+	    }
+
+	}
+
+	if (entry == null) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+
+	hits.incrementAndGet();
+	return entry.value;
+
+    }
+
+    /*
+     * Returns the current generation, to be passed to putIfUnchanged()
+     */
+    synchronized long getGeneration() {
+	return generation;
+    }
+
+    void put(String cameraID, String parameter, String value) {
+
+	String key = key(cameraID, parameter);
+	CachedValue entry = newEntry(value);
+
+	synchronized (this) {
+
+	    touch(key);
+
+	    if (entry != null)
+		entries.put(key, entry);
+
+	}
+
+    }
+
+    /*
+     * Stores the value unless the parameter has been written or invalidated
+     * after the given generation. Returns true if the value has been stored.
+     */
+    boolean putIfUnchanged(String cameraID, String parameter, long seenGeneration, String value) {
+
+	String key = key(cameraID, parameter);
+	CachedValue entry = newEntry(value);
+
+	if (entry == null)
+	    return false;
+
+	synchronized (this) {
+
+	    Long keyGeneration = keyGenerations.get(key);
+	    Long cameraGeneration = cameraGenerations.get(cameraID);
+
+	    if ((keyGeneration != null ? keyGeneration : forgottenGeneration) > seenGeneration)
+		return false;
+
+	    if (cameraGeneration != null && cameraGeneration > seenGeneration)
+		return false;
+
+	    entries.put(key, entry);
+	    return true;
+
+	}
+
+    }
+
+    synchronized void invalidate(String cameraID, String parameter) {
+
+	String key = key(cameraID, parameter);
+
+	touch(key);
+	entries.remove(key);
+
+    }
+
+    synchronized void invalidateCamera(String cameraID) {
+
+	String prefix = cameraID + "/";
+	entries.keySet().removeIf(key -> key.startsWith(prefix));
+
+	cameraGenerations.put(cameraID, ++generation);
+
+    }
+
+    synchronized void invalidateAll() {
+
+	entries.clear();
+
+	// a single generation covers all the keys
+	keyGenerations.clear();
+	cameraGenerations.clear();
+	forgottenGeneration = ++generation;
+
+    }
+
+    private CachedValue newEntry(String value) {
+
+	long ttl = ttlMillis;
+
+	if (ttl <= 0)
+	    return null;
+
+	return new CachedValue(value, System.currentTimeMillis() + ttl);
+
+    }
+
+    /*
+     * gives a new generation to the key, moving it to the end of the order
+     */
+    private void touch(String key) {
+
+	keyGenerations.remove(key);
+	keyGenerations.put(key, ++generation);
+
+    }
+
+    private static String key(String cameraID, String parameter) {
+
+	return cameraID + "/" + parameter;
+
+    }
+
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Keeps the JPEG frames of a camera received in the last period of time, so
+ * that the frames preceding an event are at hand as soon as the event comes.
+ * 
+ * The frames are stored one after another in a direct buffer of fixed size,
+ * which wraps around: the oldest frames are evicted when they are older than
+ * the period, or when their room is needed for a new frame. The memory used
+ * is therefore bounded by the size of the buffer, and is kept off the heap.
+ */
+class PreEventFrameRing {
+
+    /* constants */
+    private final static int INITIAL_INDEX_SIZE = 64;
+
+    /* data */
+    private final ByteBuffer storage;
+    private final long maxAgeNanos;
+    private int writePosition = 0;
+
+    /* frame index: a circular queue of the stored frames, oldest first */
+    private long[] times = new long[INITIAL_INDEX_SIZE];
+    private int[] offsets = new int[INITIAL_INDEX_SIZE];
+    private int[] lengths = new int[INITIAL_INDEX_SIZE];
+    private int first = 0;
+    private int count = 0;
+    private long storedBytes = 0L;
+
+    /* constructors */
+
+    PreEventFrameRing(int capacity, long maxAgeMillis) {
+
+	if (capacity < 1)
+	    throw new IllegalArgumentException("Capacity must be positive");
+
+	if (maxAgeMillis < 1)
+	    throw new IllegalArgumentException("Duration must be positive");
+
+	this.storage = ByteBuffer.allocateDirect(capacity);
+	this.maxAgeNanos = maxAgeMillis * 1000000L;
+
+    }
+
+    /* getters */
+
+    int getCapacity() {
+	return storage.capacity();
+    }
+
+    long getMaxAgeMillis() {
+	return maxAgeNanos / 1000000L;
+    }
+
+    synchronized int getFramesCount() {
+	return count;
+    }
+
+    synchronized long getStoredBytes() {
+	return storedBytes;
+    }
+
+    /* methods */
+
+    /*
+     * Stores a frame received at the given System.nanoTime(). A frame larger
+     * than the whole buffer is not stored.
+     */
+    synchronized void add(byte[] data, int offset, int length, long now) {
+
+	evictExpired(now);
+
+	if (length > storage.capacity() || length < 1)
+	    return;
+
+	int position;
+
+	while ((position = findRoom(length)) < 0)
+	    evictOldest();
+
+	storage.position(position);
+	storage.put(data, offset, length);
+	writePosition = position + length;
+
+	if (count == times.length)
+	    growIndex();
+
+	int index = (first + count) % times.length;
+	times[index] = now;
+	offsets[index] = position;
+	lengths[index] = length;
+	count++;
+	storedBytes += length;
+
+    }
+
+    /*
+     * Returns copies of the frames received in the period before the given
+     * System.nanoTime(), oldest first.
+     */
+    synchronized List<byte[]> copyFrames(long now) {
+
+	evictExpired(now);
+
+	ArrayList<byte[]> frames = new ArrayList<byte[]>(count);
+
+	for (int i = 0; i < count; i++) {
+
+	    int index = (first + i) % times.length;
+	    byte[] frame = new byte[lengths[index]];
+
+	    storage.position(offsets[index]);
+	    storage.get(frame);
+	    frames.add(frame);
+
+	}
+
+	return frames;
+
+    }
+
+    synchronized void clear() {
+
+	first = 0;
+	count = 0;
+	writePosition = 0;
+	storedBytes = 0L;
+
+    }
+
+    /*
+     * Returns the position the given number of bytes can be written at
+     * without overwriting a stored frame, or -1 if there is no such room.
+     */
+    private int findRoom(int length) {
+
+	if (count == 0)
+	    return 0;
+
+	int oldest = offsets[first];
+
+	if (writePosition > oldest) {
+
+	    // the frames lie in [oldest, writePosition): the room is at the end, or at the start
+	    if (storage.capacity() - writePosition >= length)
+		return writePosition;
+
+	    return oldest >= length ? 0 : -1;
+
+	}
+
+	// wrapped around: the room is in [writePosition, oldest)
+	return oldest - writePosition >= length ? writePosition : -1;
+
+    }
+
+    private void evictExpired(long now) {
+
+	while (count > 0 && now - times[first] > maxAgeNanos)
+	    evictOldest();
+
+    }
+
+    private void evictOldest() {
+
+	storedBytes -= lengths[first];
+	first = (first + 1) % times.length;
+	count--;
+
+	if (count == 0) {
+
+	    first = 0;
+	    writePosition = 0;
+
+	}
+
+    }
+
+    private void growIndex() {
+
+	int size = times.length;
+	long[] newTimes = new long[size * 2];
+	int[] newOffsets = new int[size * 2];
+	int[] newLengths = new int[size * 2];
+
+	for (int i = 0; i < count; i++) {
+
+	    int index = (first + i) % size;
+	    newTimes[i] = times[index];
+	    newOffsets[i] = offsets[index];
+	    newLengths[i] = lengths[index];
+
+	}
+
+	times = newTimes;
+	offsets = newOffsets;
+	lengths = newLengths;
+	first = 0;
+
+    }
+
+}
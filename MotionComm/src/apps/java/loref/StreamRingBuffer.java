@@ -0,0 +1,434 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Single producer, multiple consumer byte ring buffer.
+ * 
+ * The producer writes each chunk of stream data once; every consumer reads
+ * it through its own Cursor, which is an InputStream. Positions are absolute
+ * byte counts since the buffer was created, so the ring index of a position
+ * is (position & mask).
+ * 
+ * The producer never waits for the consumers. Before overwriting a region it
+ * moves forward, with a compare-and-set, the cursors still pointing into that
+ * region, according to their StreamOverrunPolicy. A consumer copies the data
+ * first and then advances its own position with a compare-and-set: if the
+ * producer has moved the cursor in the meantime the copy is discarded, so a
+ * consumer never returns bytes that have been overwritten while it was
+ * copying them.
+ * 
+ * In order to support StreamOverrunPolicy.SKIP_TO_FRAME_BOUNDARY the producer
+ * scans the written data for the MJPEG boundary marker, and keeps track of the
+ * positions of the most recent boundaries.
+ */
+class StreamRingBuffer {
+
+    /* constants */
+    private final static int RECENT_BOUNDARIES = 64;
+
+    /* data */
+    private final byte[] data;
+    private final int mask;
+    private volatile long writePosition = 0L;
+    private volatile boolean closed = false;
+
+    /* consumers */
+    private final CopyOnWriteArrayList<Cursor> cursors = new CopyOnWriteArrayList<Cursor>();
+    private final ReentrantLock signalLock = new ReentrantLock();
+    private final Condition signal = signalLock.newCondition();
+    private final AtomicInteger waitingReaders = new AtomicInteger();
+
+    /* frame boundaries, accessed by the producer only */
+    private final byte[] boundaryMarker;
+    private final int[] boundaryFailure;
+    private int boundaryMatched = 0;
+    private final long[] boundaries = new long[RECENT_BOUNDARIES];
+    private int boundariesCount = 0;
+
+    /*
+     * subclasses
+     */
+    class Cursor extends InputStream {
+
+	private final AtomicLong position;
+	private final StreamOverrunPolicy overrunPolicy;
+	private final AtomicLong droppedBytes = new AtomicLong();
+	private final byte[] single = new byte[1];
+	private volatile boolean cursorClosed = false;
+
+	private Cursor(long startPosition, StreamOverrunPolicy overrunPolicy) {
+	    this.position = new AtomicLong(startPosition);
+	    this.overrunPolicy = overrunPolicy;
+	}
+
+	/*
+	 * returns the number of bytes this cursor has lost because of overruns
+	 */
+	public long getDroppedBytes() {
+	    return droppedBytes.get();
+	}
+
+	@Override
+	public int read() throws IOException {
+
+	    int n = read(single, 0, 1);
+	    return n < 0 ? -1 : single[0] & 0xFF;
+
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+
+	    if (len == 0)
+		return 0;
+
+	    while (true) {
+
+		if (cursorClosed)
+		    return -1;
+
+		long start = position.get();
+		long available = writePosition - start;
+
+		if (available > 0) {
+
+		    int n = (int) Math.min(len, available);
+		    copyOut(start, b, off, n);
+
+		    if (position.compareAndSet(start, start + n))
+			return n;
+
+		    // overrun while copying: the copied data is not valid
+		    continue;
+
+		}
+
+		if (closed)
+		    return -1;
+
+		awaitData(start);
+
+	    }
+
+	}
+
+	@Override
+	public int available() {
+
+	    return (int) Math.max(0L, Math.min(writePosition - position.get(), data.length));
+
+	}
+
+	@Override
+	public void close() {
+
+	    cursorClosed = true;
+	    cursors.remove(this);
+	    wakeUpReaders();
+
+	}
+
+	private void awaitData(long from) throws IOException {
+
+	    waitingReaders.incrementAndGet();
+
+	    try {
+
+		// a lock rather than a monitor, which would pin a virtual thread
+		signalLock.lock();
+
+		try {
+
+		    while (writePosition <= from && position.get() == from && !closed && !cursorClosed) {
+			signal.await();
+		    }
+
+		} finally {
+
+		    signalLock.unlock();
+
+		}
+
+	    } catch (InterruptedException e) {
+
+		Thread.currentThread().interrupt();
+		throw new IOException("Interrupted while waiting for stream data");
+
+	    } finally {
+
+		waitingReaders.decrementAndGet();
+
+	    }
+
+	}
+
+	/*
+	 * called by the producer when the region starting at the cursor
+	 * position is about to be overwritten
+	 */
+	private void overrun(long oldestValidPosition) {
+
+	    long target = oldestValidPosition;
+
+	    if (overrunPolicy == StreamOverrunPolicy.SKIP_TO_FRAME_BOUNDARY) {
+		target = firstBoundaryFrom(oldestValidPosition);
+	    }
+
+	    long current;
+	    while ((current = position.get()) < oldestValidPosition) {
+
+		if (position.compareAndSet(current, target)) {
+		    droppedBytes.addAndGet(target - current);
+		    return;
+		}
+
+	    }
+
+	}
+
+    }
+
+    /* constructors */
+
+    /*
+     * capacity is rounded up to the next power of two. boundaryMarker is the
+     * MJPEG multipart boundary used to resync the readers which use
+     * StreamOverrunPolicy.SKIP_TO_FRAME_BOUNDARY
+     */
+    StreamRingBuffer(int capacity, byte[] boundaryMarker) {
+
+	if (capacity < 2)
+	    throw new IllegalArgumentException("Ring buffer capacity must be at least 2 bytes");
+
+	int size = Integer.highestOneBit(capacity);
+	if (size < capacity)
+	    size <<= 1;
+
+	this.data = new byte[size];
+	this.mask = size - 1;
+	this.boundaryMarker = boundaryMarker.clone();
+	this.boundaryFailure = failureFunction(this.boundaryMarker);
+
+    }
+
+    /* methods */
+
+    int getCapacity() {
+	return data.length;
+    }
+
+    long getWritePosition() {
+	return writePosition;
+    }
+
+    /*
+     * Creates a new reader which starts reading from the data written after
+     * the call.
+     */
+    Cursor newCursor(StreamOverrunPolicy overrunPolicy) {
+
+	Cursor cursor = new Cursor(writePosition, overrunPolicy);
+	cursors.add(cursor);
+
+	if (closed)
+	    cursor.cursorClosed = true;
+
+	return cursor;
+
+    }
+
+    /*
+     * Appends data to the buffer. Must be called by a single producer thread.
+     */
+    void write(byte[] src, int offset, int length) {
+
+	while (length > 0) {
+
+	    int n = Math.min(length, data.length);
+	    writeChunk(src, offset, n);
+	    offset += n;
+	    length -= n;
+
+	}
+
+	wakeUpReaders();
+
+    }
+
+    /*
+     * Marks the end of the stream: the readers get end-of-stream once they
+     * have consumed the data already written.
+     */
+    void close() {
+
+	closed = true;
+	wakeUpReaders();
+
+    }
+
+    boolean isClosed() {
+	return closed;
+    }
+
+    private void writeChunk(byte[] src, int offset, int length) {
+
+	long start = writePosition;
+	long end = start + length;
+
+	scanBoundaries(src, offset, length, start);
+
+	// moves away the cursors which point into the region being overwritten
+	long oldestValidPosition = end - data.length;
+	if (oldestValidPosition > 0) {
+
+	    for (Cursor cursor : cursors) {
+
+		if (cursor.position.get() < oldestValidPosition)
+		    cursor.overrun(oldestValidPosition);
+
+	    }
+
+	}
+
+	int index = (int) (start & mask);
+	int firstPart = Math.min(length, data.length - index);
+	System.arraycopy(src, offset, data, index, firstPart);
+	System.arraycopy(src, offset + firstPart, data, 0, length - firstPart);
+
+	writePosition = end;
+
+    }
+
+    private void copyOut(long from, byte[] b, int off, int n) {
+
+	int index = (int) (from & mask);
+	int firstPart = Math.min(n, data.length - index);
+	System.arraycopy(data, index, b, off, firstPart);
+	System.arraycopy(data, 0, b, off + firstPart, n - firstPart);
+
+    }
+
+    private void wakeUpReaders() {
+
+	if (waitingReaders.get() > 0) {
+
+	    signalLock.lock();
+
+	    try {
+		signal.signalAll();
+	    } finally {
+		signalLock.unlock();
+	    }
+
+	}
+
+    }
+
+    /*
+     * Records the positions where the boundary marker starts. The match state
+     * is kept across calls, so markers split between two writes are found.
+     */
+    private void scanBoundaries(byte[] src, int offset, int length, long startPosition) {
+
+	for (int i = 0; i < length; i++) {
+
+	    byte b = src[offset + i];
+
+	    while (boundaryMatched > 0 && boundaryMarker[boundaryMatched] != b)
+		boundaryMatched = boundaryFailure[boundaryMatched - 1];
+
+	    if (boundaryMarker[boundaryMatched] == b)
+		boundaryMatched++;
+
+	    if (boundaryMatched == boundaryMarker.length) {
+
+		boundaries[boundariesCount % RECENT_BOUNDARIES] = startPosition + i + 1 - boundaryMarker.length;
+		boundariesCount++;
+		boundaryMatched = boundaryFailure[boundaryMatched - 1];
+
+	    }
+
+	}
+
+    }
+
+    /*
+     * Returns the position of the first known boundary at or after the given
+     * position, or the given position itself if no such boundary is known.
+     */
+    private long firstBoundaryFrom(long from) {
+
+	int known = Math.min(boundariesCount, RECENT_BOUNDARIES);
+
+	for (int i = known; i > 0; i--) {
+
+	    long boundary = boundaries[(boundariesCount - i) % RECENT_BOUNDARIES];
+
+	    if (boundary >= from)
+		return boundary;
+
+	}
+
+	return from;
+
+    }
+
+    private static int[] failureFunction(byte[] pattern) {
+
+	int[] failure = new int[pattern.length];
+	int k = 0;
+
+	for (int i = 1; i < pattern.length; i++) {
+
+	    while (k > 0 && pattern[k] != pattern[i])
+		k = failure[k - 1];
+
+	    if (pattern[k] == pattern[i])
+		k++;
+
+	    failure[i] = k;
+
+	}
+
+	return failure;
+
+    }
+
+}
@@ -0,0 +1,287 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * The files of a Motion target directory with the same time and frame, of
+ * different events or with different extensions, are all indexed, and
+ * survive a reload of the persisted index. The index files are checkpointed
+ * when closed and while their directories are quiet, and reconciled with the
+ * directories changed in the meantime.
+ */
+public class EventFileIndexTest {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private static final LocalDateTime FROM = LocalDateTime.of(2026, 1, 1, 12, 0, 0);
+    private static final LocalDateTime TO = FROM.plusMinutes(1);
+
+    private static final String[] SNAPSHOTS = { "01-20260101120000-00.jpg", "01-2-20260101120000-00.jpg", "01-3-20260101120000-00.jpg", "01-20260101120000.jpg" };
+    private static final String[] MOVIES = { "01-20260101120000.avi", "01-20260101120000.mp4", "01-4-20260101120000.avi" };
+
+    private Path directory;
+    private Path persistence;
+
+    @Before
+    public void setUp() throws IOException {
+
+	directory = Files.createTempDirectory("motion-events");
+	persistence = Files.createTempDirectory("motion-indexes");
+
+	for (String name : SNAPSHOTS)
+	    Files.createFile(directory.resolve(name));
+
+	for (String name : MOVIES)
+	    Files.createFile(directory.resolve(name));
+
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+	EventFileIndex.closeAll();
+	EventFileIndex.setPersistenceDirectory(null);
+	EventFileIndex.setCheckpointInterval(60000L);
+
+	deleteTree(directory);
+	deleteTree(persistence);
+
+    }
+
+    @Test
+    public void filesWithTheSameTimeAreAllIndexed() throws Exception {
+
+	EventFileIndex index = EventFileIndex.forDirectory(directory.toString());
+
+	try {
+
+	    assertEquals(SNAPSHOTS.length + MOVIES.length, index.size());
+	    assertEquals(SNAPSHOTS.length, index.getSnapshots("01", FROM, TO).size());
+	    assertEquals(MOVIES.length, index.getMovies("01", FROM, TO).size());
+
+	    String snapshot = index.getEventSnapshot("01-20260101120000.avi");
+	    assertTrue(snapshot, snapshot.endsWith(".jpg"));
+
+	    // removing one of the files with the same time leaves the others
+	    Files.delete(directory.resolve(MOVIES[1]));
+	    awaitCondition(() -> index.getMovies("01", FROM, TO).size() == MOVIES.length - 1);
+
+	    assertEquals(directory.resolve(MOVIES[0]).toAbsolutePath().toString(), index.getMovies("01", FROM, TO).get(0));
+
+	} finally {
+
+	    index.close();
+
+	}
+
+    }
+
+    @Test
+    public void persistedIndexKeepsTheFilesWithTheSameTime() throws Exception {
+
+	EventFileIndex.setPersistenceDirectory(persistence.toString());
+
+	EventFileIndex index = EventFileIndex.forDirectory(directory.toString());
+	List<String> snapshots = index.getSnapshots("01", FROM, TO);
+	List<String> movies = index.getMovies("01", FROM, TO);
+	index.close();
+
+	EventFileIndex reloaded = EventFileIndex.forDirectory(directory.toString());
+
+	try {
+
+	    assertEquals(snapshots, reloaded.getSnapshots("01", FROM, TO));
+	    assertEquals(movies, reloaded.getMovies("01", FROM, TO));
+
+	} finally {
+
+	    reloaded.close();
+
+	}
+
+    }
+
+    @Test
+    public void closeAllCheckpointsTheIndexes() throws Exception {
+
+	EventFileIndex.setPersistenceDirectory(persistence.toString());
+	EventFileIndex index = EventFileIndex.forDirectory(directory.toString());
+
+	assertFalse(isIndexFileClean());
+
+	EventFileIndex.closeAll();
+
+	assertTrue(index.isClosed());
+	assertTrue(isIndexFileClean());
+
+    }
+
+    @Test
+    public void quietDirectoriesAreCheckpointedPeriodically() throws Exception {
+
+	EventFileIndex.setPersistenceDirectory(persistence.toString());
+	EventFileIndex.setCheckpointInterval(50L);
+
+	EventFileIndex index = EventFileIndex.forDirectory(directory.toString());
+
+	try {
+
+	    awaitCondition(this::isIndexFileClean);
+
+	    // a change is persisted, and checkpointed once the directory is quiet again
+	    Files.createFile(directory.resolve("01-20260101120030-00.jpg"));
+	    awaitCondition(() -> index.getSnapshots("01", FROM, TO).size() == SNAPSHOTS.length + 1);
+	    awaitCondition(() -> isIndexFileClean() && indexFileModifiedTime() == directoryModifiedTime());
+
+	} finally {
+
+	    index.close();
+
+	}
+
+    }
+
+    @Test
+    public void changesWhileClosedAreReconciled() throws Exception {
+
+	EventFileIndex.setPersistenceDirectory(persistence.toString());
+	EventFileIndex.forDirectory(directory.toString()).close();
+
+	Files.delete(directory.resolve(SNAPSHOTS[1]));
+	Files.createFile(directory.resolve("01-5-20260101120010-00.jpg"));
+
+	EventFileIndex index = EventFileIndex.forDirectory(directory.toString());
+
+	try {
+
+	    List<String> snapshots = index.getSnapshots("01", FROM, TO);
+
+	    assertEquals(SNAPSHOTS.length, snapshots.size());
+	    assertFalse(snapshots.contains(directory.resolve(SNAPSHOTS[1]).toAbsolutePath().toString()));
+	    assertTrue(snapshots.contains(directory.resolve("01-5-20260101120010-00.jpg").toAbsolutePath().toString()));
+
+	} finally {
+
+	    index.close();
+
+	}
+
+    }
+
+    /*
+     * reads the header of the only index file, alongside the open index
+     */
+    private boolean isIndexFileClean() {
+
+	try (EventIndexFile file = new EventIndexFile(getIndexFile())) {
+	    return file.isClean();
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+
+    }
+
+    private long indexFileModifiedTime() {
+
+	try (EventIndexFile file = new EventIndexFile(getIndexFile())) {
+	    return file.getDirectoryModifiedTime();
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+
+    }
+
+    private long directoryModifiedTime() {
+
+	try {
+	    return Files.getLastModifiedTime(directory).toMillis();
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+
+    }
+
+    private Path getIndexFile() throws IOException {
+
+	try (Stream<Path> files = Files.list(persistence)) {
+	    return files.filter(file -> file.toString().endsWith(".idx")).findFirst().get();
+	}
+
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+
+	long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+	while (!condition.getAsBoolean()) {
+
+	    if (System.currentTimeMillis() > deadline)
+		throw new AssertionError("condition not met within " + TIMEOUT_MS + " ms");
+
+	    Thread.sleep(10);
+
+	}
+
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+
+	List<Path> paths = new ArrayList<>();
+
+	try (Stream<Path> tree = Files.walk(root)) {
+	    tree.sorted(Comparator.reverseOrder()).forEach(paths::add);
+	}
+
+	for (Path path : paths)
+	    Files.deleteIfExists(path);
+
+    }
+
+}
@@ -0,0 +1,494 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Local stand-in of a Motion server, for the tests.
+ * 
+ * Answers the webcontrol requests used by MotionComm on the control port, and
+ * serves an endless MJPEG stream of generated JPEG frames on a separate stream
+ * port for each camera, as Motion does.
+ */
+public class FakeMotionServer implements Closeable {
+
+    /* constants */
+
+    private static final String BOUNDARY = "BoundaryString";
+    private static final int N_OF_FRAMES = 8;
+
+    /* subclasses */
+
+    private class CameraStream implements Runnable {
+
+	private final String cameraID;
+	private final ServerSocket serverSocket;
+	private final AtomicInteger connectionsCount = new AtomicInteger();
+
+	CameraStream(String cameraID) throws IOException {
+
+	    this.cameraID = cameraID;
+	    serverSocket = new ServerSocket(0, 50);
+
+	}
+
+	@Override
+	public void run() {
+
+	    while (!serverSocket.isClosed()) {
+
+		Socket socket;
+
+		try {
+		    socket = serverSocket.accept();
+		} catch (IOException e) {
+		    return;
+		}
+
+		connectionsCount.incrementAndGet();
+
+		if (refuseStreams) {
+		    closeQuietly(socket);
+		    continue;
+		}
+
+		workers.execute(() -> serveStream(socket));
+
+	    }
+
+	}
+
+	private void serveStream(Socket socket) {
+
+	    try {
+
+		skipRequestHeaders(socket.getInputStream());
+
+		if (headerDelay > 0)
+		    Thread.sleep(headerDelay);
+
+		OutputStream out = socket.getOutputStream();
+		out.write(("HTTP/1.0 200 OK\r\nContent-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+		int cuts = cutsCount.get();
+
+		for (int i = 0; !serverSocket.isClosed(); i++) {
+
+		    byte[] frame = frames[i % frames.length];
+		    out.write(("--" + BOUNDARY + "\r\nContent-type: image/jpeg\r\nContent-Length: " + frame.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+		    if (cutsCount.get() != cuts) {
+
+			// the connection is lost in the middle of the frame
+			out.write(frame, 0, frame.length / 2);
+			out.flush();
+			return;
+
+		    }
+
+		    out.write(frame);
+		    out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+		    out.flush();
+
+		    Thread.sleep(1000 / framesPerSecond);
+
+		}
+
+	    } catch (IOException | InterruptedException e) {
+		// client gone, or server closed
+	    } finally {
+		closeQuietly(socket);
+	    }
+
+	}
+
+	int getPort() {
+	    return serverSocket.getLocalPort();
+	}
+
+	int getConnectionsCount() {
+	    return connectionsCount.get();
+	}
+
+	void close() {
+	    closeQuietly(serverSocket);
+	}
+
+	@Override
+	public String toString() {
+	    return "camera " + cameraID + " on port " + getPort();
+	}
+
+    }
+
+    /* fields */
+
+    private final HttpServer controlServer;
+    private final List<CameraStream> cameraStreams = new ArrayList<>();
+    private final ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+
+	Thread thread = new Thread(runnable, "FakeMotionServer");
+	thread.setDaemon(true);
+	return thread;
+
+    });
+
+    private final byte[][] frames;
+    private final int framesPerSecond;
+
+    private final AtomicInteger controlRequestsCount = new AtomicInteger();
+    private final AtomicInteger cutsCount = new AtomicInteger();
+
+    private volatile String detectionStatus = "ACTIVE";
+    private volatile boolean refuseStreams = false;
+    private volatile int headerDelay = 0;
+    private volatile int controlDelay = 0;
+    private volatile int configGetDelay = 0;
+
+    /* parameters set through config/set, by camera/parameter */
+    private final Map<String, String> config = new ConcurrentHashMap<>();
+
+    /* constructors */
+
+    /*
+     * Starts a server with the given number of cameras, whose thread IDs are
+     * "1" to "nOfCameras", streaming framesPerSecond frames per second of
+     * frameWidth x frameHeight.
+     */
+    public FakeMotionServer(int nOfCameras, int framesPerSecond, int frameWidth, int frameHeight) throws IOException {
+	this(nOfCameras, framesPerSecond, frameWidth, frameHeight, false);
+    }
+
+    /*
+     * as above, with an EXIF thumbnail in each frame when thumbnails is true
+     */
+    public FakeMotionServer(int nOfCameras, int framesPerSecond, int frameWidth, int frameHeight, boolean thumbnails) throws IOException {
+
+	this.framesPerSecond = framesPerSecond;
+	frames = generateFrames(frameWidth, frameHeight);
+
+	if (thumbnails) {
+
+	    byte[][] thumbnailFrames = generateFrames(32, 24);
+	    for (int i = 0; i < N_OF_FRAMES; i++)
+		frames[i] = addThumbnail(frames[i], thumbnailFrames[i]);
+
+	}
+
+	for (int i = 1; i <= nOfCameras; i++) {
+
+	    CameraStream cameraStream = new CameraStream(String.valueOf(i));
+	    cameraStreams.add(cameraStream);
+	    workers.execute(cameraStream);
+
+	}
+
+	controlServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+	controlServer.setExecutor(workers);
+	controlServer.createContext("/", this::handleControlRequest);
+	controlServer.start();
+
+    }
+
+    /* getters and setters */
+
+    public int getControlPort() {
+	return controlServer.getAddress().getPort();
+    }
+
+    public int getStreamPort(String cameraID) {
+	return getCameraStream(cameraID).getPort();
+    }
+
+    /*
+     * number of stream connections accepted for the given camera so far
+     */
+    public int getStreamConnectionsCount(String cameraID) {
+	return getCameraStream(cameraID).getConnectionsCount();
+    }
+
+    public int getControlRequestsCount() {
+	return controlRequestsCount.get();
+    }
+
+    public byte[] getFrame(int index) {
+	return frames[index % frames.length].clone();
+    }
+
+    public void setDetectionStatus(String status) {
+	detectionStatus = status;
+    }
+
+    /*
+     * when set, the stream connections are closed as soon as accepted
+     */
+    public void setRefuseStreams(boolean value) {
+	refuseStreams = value;
+    }
+
+    /*
+     * delay before the response headers of the streams are sent
+     */
+    public void setHeaderDelay(int millis) {
+	headerDelay = millis;
+    }
+
+    /*
+     * delay before each control response is sent
+     */
+    public void setControlDelay(int millis) {
+	controlDelay = millis;
+    }
+
+    /*
+     * further delay before each config/get response is sent. The value is
+     * read when the request arrives.
+     */
+    public void setConfigGetDelay(int millis) {
+	configGetDelay = millis;
+    }
+
+    /*
+     * number of different frames served, in turn, by the streams
+     */
+    public int getFramesCount() {
+	return frames.length;
+    }
+
+    /* methods */
+
+    /*
+     * closes all the open streams in the middle of their next frame
+     */
+    public void cutStreams() {
+	cutsCount.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+
+	controlServer.stop(0);
+
+	for (CameraStream cameraStream : cameraStreams)
+	    cameraStream.close();
+
+	workers.shutdownNow();
+
+    }
+
+    private CameraStream getCameraStream(String cameraID) {
+	return cameraStreams.get(Integer.parseInt(cameraID) - 1);
+    }
+
+    private void handleControlRequest(HttpExchange exchange) throws IOException {
+
+	controlRequestsCount.incrementAndGet();
+
+	String path = exchange.getRequestURI().toString();
+	String[] parts = path.split("/");
+	String response;
+
+	if (path.equals("/")) {
+
+	    StringBuilder list = new StringBuilder("Motion 4.0 Running [" + (cameraStreams.size() + 1) + "] Cameras\n0\n");
+	    for (int i = 1; i <= cameraStreams.size(); i++)
+		list.append(i).append("\n");
+
+	    response = list.toString();
+
+	} else if (path.contains("/config/get?query=")) {
+
+	    String parameter = path.substring(path.indexOf("query=") + 6);
+	    String value = config.get(parts[1] + "/" + parameter);
+
+	    if (value == null) {
+
+		switch (parameter) {
+
+		case "stream_port":
+		    value = String.valueOf(getStreamPort(parts[1]));
+		    break;
+
+		case "stream_maxrate":
+		    value = String.valueOf(framesPerSecond);
+		    break;
+
+		case "camera_name":
+		    value = "camera" + parts[1];
+		    break;
+
+		default:
+		    value = "0";
+
+		}
+
+	    }
+
+	    response = parameter + " = " + value + "\nDone\n";
+
+	    sleep(configGetDelay);
+
+	} else if (path.contains("/config/set?")) {
+
+	    String assignment = path.substring(path.indexOf('?') + 1);
+	    int equals = assignment.indexOf('=');
+
+	    if (equals > 0)
+		config.put(parts[1] + "/" + assignment.substring(0, equals), assignment.substring(equals + 1));
+
+	    response = assignment.replace("=", " = ") + "\nDone\n";
+
+	} else if (path.endsWith("/detection/status")) {
+
+	    response = "Camera " + parts[1] + " Detection status " + detectionStatus + "\n";
+
+	} else {
+
+	    response = "Done\n";
+
+	}
+
+	sleep(controlDelay);
+
+	byte[] body = response.getBytes(StandardCharsets.US_ASCII);
+	exchange.sendResponseHeaders(200, body.length);
+
+	try (OutputStream out = exchange.getResponseBody()) {
+	    out.write(body);
+	}
+
+    }
+
+    private static void sleep(int millis) {
+
+	try {
+
+	    if (millis > 0)
+		Thread.sleep(millis);
+
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+
+    }
+
+    private static byte[][] generateFrames(int frameWidth, int frameHeight) throws IOException {
+
+	byte[][] frames = new byte[N_OF_FRAMES][];
+
+	for (int i = 0; i < N_OF_FRAMES; i++) {
+
+	    BufferedImage image = new BufferedImage(frameWidth, frameHeight, BufferedImage.TYPE_INT_RGB);
+
+	    Graphics2D graphics = image.createGraphics();
+	    graphics.setColor(Color.WHITE);
+	    graphics.fillRect(0, 0, (i + 1) * frameWidth / N_OF_FRAMES, frameHeight / 2);
+	    graphics.dispose();
+
+	    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+	    ImageIO.write(image, "jpg", jpeg);
+	    frames[i] = jpeg.toByteArray();
+
+	}
+
+	return frames;
+
+    }
+
+    /*
+     * inserts an EXIF APP1 segment holding the thumbnail after the
+     * start-of-image marker, as cameras do
+     */
+    private static byte[] addThumbnail(byte[] jpeg, byte[] thumbnail) {
+
+	byte[] exifHeader = { 'E', 'x', 'i', 'f', 0, 0 };
+	int segmentLength = 2 + exifHeader.length + thumbnail.length;
+
+	ByteArrayOutputStream result = new ByteArrayOutputStream();
+	result.write(jpeg, 0, 2);
+	result.write(0xFF);
+	result.write(0xE1);
+	result.write(segmentLength >> 8);
+	result.write(segmentLength & 0xFF);
+	result.write(exifHeader, 0, exifHeader.length);
+	result.write(thumbnail, 0, thumbnail.length);
+	result.write(jpeg, 2, jpeg.length - 2);
+
+	return result.toByteArray();
+
+    }
+
+    private static void skipRequestHeaders(InputStream in) throws IOException {
+
+	// reads up to the empty line closing the request headers
+	int matched = 0;
+	int b;
+
+	while (matched < 4 && (b = in.read()) != -1)
+	    matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+
+	try {
+	    closeable.close();
+	} catch (IOException e) {
+	    // nothing to do
+	}
+
+    }
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/*
+ * The pooled frames are copied to an array only when asked to, and the
+ * frames of a pool keeping no free buffers are copied once, to the array
+ * returned by toByteArray().
+ */
+public class FrameBufferPoolTest {
+
+    private static byte[] frame(int length) {
+
+	byte[] frame = new byte[length];
+	for (int i = 0; i < length; i++)
+	    frame[i] = (byte) i;
+
+	return frame;
+
+    }
+
+    @Test
+    public void unpooledFramesShareTheirArray() {
+
+	byte[] data = frame(10000);
+	FrameBuffer frameBuffer = FrameBufferPool.UNPOOLED.copyOf(data, 100, 5000);
+
+	byte[] array = frameBuffer.toByteArray();
+	assertArrayEquals(Arrays.copyOfRange(data, 100, 5100), array);
+	assertSame(array, frameBuffer.toByteArray());
+
+	ByteBuffer view = frameBuffer.getData();
+	assertEquals(5000, view.remaining());
+	assertEquals(data[100], view.get(0));
+
+	frameBuffer.release();
+	assertSame(array, frameBuffer.toByteArray());
+
+    }
+
+    @Test
+    public void pooledFramesAreCopiedOnceToArrays() {
+
+	FrameBufferPool pool = new FrameBufferPool(false, 1 << 20);
+	byte[] data = frame(5000);
+
+	FrameBuffer frameBuffer = pool.copyOf(data, 0, data.length);
+	byte[] array = frameBuffer.toByteArray();
+
+	assertArrayEquals(data, array);
+	assertNotSame(data, array);
+	assertSame(array, frameBuffer.toByteArray());
+
+	frameBuffer.release();
+
+    }
+
+    @Test
+    public void releasedBuffersAreReused() {
+
+	FrameBufferPool pool = new FrameBufferPool(false, 1 << 20);
+
+	for (int i = 0; i < 10; i++)
+	    pool.copyOf(frame(5000), 0, 5000).release();
+
+	assertEquals(1, pool.getAllocations());
+
+	for (int i = 0; i < 10; i++)
+	    FrameBufferPool.UNPOOLED.copyOf(frame(5000), 0, 5000).release();
+
+    }
+
+}
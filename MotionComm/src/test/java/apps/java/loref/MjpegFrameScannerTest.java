@@ -0,0 +1,341 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class MjpegFrameScannerTest {
+
+    /*
+     * returns at most the given number of bytes per read, cycling through the
+     * chunk sizes
+     */
+    private static class ChunkedInputStream extends InputStream {
+
+	private final byte[] data;
+	private final int[] chunkSizes;
+	private int position = 0;
+	private int reads = 0;
+
+	ChunkedInputStream(byte[] data, int... chunkSizes) {
+	    this.data = data;
+	    this.chunkSizes = chunkSizes;
+	}
+
+	@Override
+	public int read() throws IOException {
+	    return position < data.length ? data[position++] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+
+	    if (position >= data.length)
+		return -1;
+
+	    int n = Math.min(Math.min(len, chunkSizes[reads++ % chunkSizes.length]), data.length - position);
+	    System.arraycopy(data, position, b, off, n);
+	    position += n;
+
+	    return n;
+
+	}
+
+    }
+
+    @Test
+    public void extractsConsecutiveFrames() throws IOException {
+
+	byte[][] frames = { jpeg(64, 48, 1), jpeg(64, 48, 2), jpeg(64, 48, 3) };
+
+	assertFrames(frames, scanAll(new MjpegFrameScanner(new ByteArrayInputStream(multipart(frames)))));
+
+    }
+
+    @Test
+    public void embeddedThumbnailIsNotTakenForTheFrame() throws IOException {
+
+	byte[] thumbnail = jpeg(16, 12, 7);
+	byte[][] frames = { withThumbnail(jpeg(64, 48, 1), thumbnail), withThumbnail(jpeg(64, 48, 2), thumbnail) };
+
+	List<byte[]> scanned = scanAll(new MjpegFrameScanner(new ByteArrayInputStream(multipart(frames))));
+
+	assertFrames(frames, scanned);
+
+    }
+
+    @Test
+    public void framesSplitInSmallChunks() throws IOException {
+
+	byte[][] frames = { jpeg(64, 48, 1), withThumbnail(jpeg(64, 48, 2), jpeg(16, 12, 3)), jpeg(64, 48, 4) };
+
+	MjpegFrameScanner scanner = new MjpegFrameScanner(new ChunkedInputStream(multipart(frames), 1, 7, 2, 13, 3, 64, 1, 1), 1024);
+
+	assertFrames(frames, scanAll(scanner));
+
+    }
+
+    @Test
+    public void markersAcrossReadBoundaries() throws IOException {
+
+	// every position of the stream, hence every marker, is split once
+	byte[][] frames = { withThumbnail(jpeg(16, 12, 1), jpeg(8, 8, 2)), jpeg(16, 12, 3) };
+	byte[] stream = multipart(frames);
+
+	for (int split = 1; split < stream.length; split++) {
+
+	    MjpegFrameScanner scanner = new MjpegFrameScanner(new ChunkedInputStream(stream, split, stream.length), 1024);
+	    assertFrames(frames, scanAll(scanner));
+
+	}
+
+    }
+
+    @Test
+    public void framesLargerThanTheBuffer() throws IOException {
+
+	byte[][] frames = { noise(640, 480, 1), noise(640, 480, 2) };
+	assertTrue(frames[0].length > 1024);
+
+	MjpegFrameScanner scanner = new MjpegFrameScanner(new ChunkedInputStream(multipart(frames), 1000), 1024);
+
+	assertFrames(frames, scanAll(scanner));
+
+    }
+
+    @Test
+    public void frameCutInTheEntropyDataIsDropped() throws IOException {
+
+	byte[] cutFrame = jpeg(64, 48, 1);
+	byte[][] frames = { jpeg(64, 48, 2), jpeg(64, 48, 3) };
+
+	int startOfScan = indexOf(cutFrame, (byte) 0xFF, (byte) 0xDA);
+	byte[] truncated = Arrays.copyOf(cutFrame, startOfScan + (cutFrame.length - startOfScan) / 2);
+
+	byte[] stream = concat(multipartHeader(cutFrame.length), truncated, multipart(frames));
+
+	assertFrames(frames, scanAll(new MjpegFrameScanner(new ByteArrayInputStream(stream))));
+
+    }
+
+    @Test
+    public void frameCutInTheHeaderSegmentsIsDropped() throws IOException {
+
+	/*
+	 * A cut within the length of a segment makes the walk skip up to 64 KB
+	 * of what follows, so frames larger than that are lost at most one
+	 */
+	byte[] cutFrame = jpeg(64, 48, 1);
+	byte[][] frames = { noise(400, 300, 2), noise(400, 300, 3), noise(400, 300, 4) };
+	assertTrue(frames[0].length > 65536);
+
+	byte[] following = multipart(frames);
+
+	for (int cut = 3; cut < indexOf(cutFrame, (byte) 0xFF, (byte) 0xDA); cut++) {
+
+	    byte[] stream = concat(multipartHeader(cutFrame.length), Arrays.copyOf(cutFrame, cut), following);
+	    List<byte[]> scanned = scanAll(new MjpegFrameScanner(new ByteArrayInputStream(stream)));
+
+	    assertTrue("cut at " + cut, scanned.size() >= frames.length - 1);
+	    assertFrames(Arrays.copyOfRange(frames, frames.length - scanned.size(), frames.length), scanned);
+
+	}
+
+    }
+
+    @Test
+    public void partLongerThanItsFrame() throws IOException {
+
+	byte[] frame = jpeg(64, 48, 1);
+	byte[] padding = new byte[16];
+
+	byte[] stream = concat(multipartHeader(frame.length + padding.length), frame, padding, multipart(new byte[][] { frame }));
+
+	assertFrames(new byte[][] { frame, frame }, scanAll(new MjpegFrameScanner(new ByteArrayInputStream(stream))));
+
+    }
+
+    @Test
+    public void streamEndingInsideAFrame() throws IOException {
+
+	byte[] frame = jpeg(64, 48, 1);
+	byte[] stream = concat(multipart(new byte[][] { frame }), multipartHeader(frame.length), Arrays.copyOf(frame, frame.length - 10));
+
+	MjpegFrameScanner scanner = new MjpegFrameScanner(new ByteArrayInputStream(stream));
+
+	assertTrue(scanner.nextFrame());
+	assertArrayEquals(frame, currentFrame(scanner));
+	assertFalse(scanner.nextFrame());
+
+    }
+
+    /* helpers */
+
+    private static List<byte[]> scanAll(MjpegFrameScanner scanner) throws IOException {
+
+	List<byte[]> frames = new ArrayList<>();
+
+	while (scanner.nextFrame())
+	    frames.add(currentFrame(scanner));
+
+	return frames;
+
+    }
+
+    private static byte[] currentFrame(MjpegFrameScanner scanner) {
+	return Arrays.copyOfRange(scanner.getFrameBuffer(), scanner.getFrameOffset(), scanner.getFrameOffset() + scanner.getFrameLength());
+    }
+
+    private static void assertFrames(byte[][] expected, List<byte[]> scanned) {
+
+	assertEquals("frames", expected.length, scanned.size());
+
+	for (int i = 0; i < expected.length; i++)
+	    assertArrayEquals("frame " + i, expected[i], scanned.get(i));
+
+    }
+
+    private static byte[] jpeg(int width, int height, int seed) throws IOException {
+
+	BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+	Graphics2D graphics = image.createGraphics();
+	graphics.setColor(new Color(seed * 40 % 256, seed * 90 % 256, seed * 20 % 256));
+	graphics.fillRect(0, 0, width * seed / 8 + 1, height / 2);
+	graphics.dispose();
+
+	return encode(image);
+
+    }
+
+    private static byte[] noise(int width, int height, int seed) throws IOException {
+
+	BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	Random random = new Random(seed);
+
+	for (int y = 0; y < height; y++)
+	    for (int x = 0; x < width; x++)
+		image.setRGB(x, y, random.nextInt());
+
+	return encode(image);
+
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+
+	ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+	ImageIO.write(image, "jpg", jpeg);
+	return jpeg.toByteArray();
+
+    }
+
+    /*
+     * inserts an EXIF APP1 segment holding the thumbnail just after the
+     * start-of-image marker, as cameras do
+     */
+    private static byte[] withThumbnail(byte[] jpeg, byte[] thumbnail) {
+
+	byte[] exifHeader = { 'E', 'x', 'i', 'f', 0, 0 };
+	int segmentLength = 2 + exifHeader.length + thumbnail.length;
+
+	byte[] app1 = concat(new byte[] { (byte) 0xFF, (byte) 0xE1, (byte) (segmentLength >> 8), (byte) segmentLength }, exifHeader, thumbnail);
+
+	return concat(Arrays.copyOf(jpeg, 2), app1, Arrays.copyOfRange(jpeg, 2, jpeg.length));
+
+    }
+
+    private static byte[] multipartHeader(int contentLength) {
+	return ("--BoundaryString\r\nContent-type: image/jpeg\r\nContent-Length: " + contentLength + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] multipart(byte[][] frames) {
+
+	ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+	for (byte[] frame : frames) {
+
+	    byte[] header = multipartHeader(frame.length);
+	    stream.write(header, 0, header.length);
+	    stream.write(frame, 0, frame.length);
+	    stream.write('\r');
+	    stream.write('\n');
+
+	}
+
+	return stream.toByteArray();
+
+    }
+
+    private static byte[] concat(byte[]... parts) {
+
+	ByteArrayOutputStream result = new ByteArrayOutputStream();
+
+	for (byte[] part : parts)
+	    result.write(part, 0, part.length);
+
+	return result.toByteArray();
+
+    }
+
+    private static int indexOf(byte[] data, byte first, byte second) {
+
+	for (int i = 0; i < data.length - 1; i++) {
+
+	    if (data[i] == first && data[i + 1] == second)
+		return i;
+
+	}
+
+	return -1;
+
+    }
+
+}
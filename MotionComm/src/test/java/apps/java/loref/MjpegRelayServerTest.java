@@ -0,0 +1,222 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/*
+ * The relay serves hundreds of HTTP clients of a camera with a single
+ * stream connection to Motion, so the load of Motion does not grow with the
+ * clients, and releases its socket when closed, even if never started.
+ */
+public class MjpegRelayServerTest {
+
+    private static final int CLIENTS = 200;
+    private static final int FRAMES_PER_CLIENT = 5;
+    private static final long TIMEOUT_MS = 30000;
+
+    private static final byte[] PART_TYPE = "Content-Type: image/jpeg".getBytes(StandardCharsets.US_ASCII);
+
+    private final List<AutoCloseable> resources = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+
+	for (int i = resources.size() - 1; i >= 0; i--)
+	    resources.get(i).close();
+
+    }
+
+    @Test
+    public void closeReleasesTheSocketOfAServerNeverStarted() throws IOException {
+
+	FakeMotionServer motionServer = new FakeMotionServer(1, 25, 64, 48);
+	resources.add(motionServer);
+
+	MotionComm motionComm = new MotionComm("127.0.0.1", "test", motionServer.getControlPort());
+	resources.add(motionComm::shutdown);
+
+	MjpegRelayServer relay = new MjpegRelayServer(motionComm, 0);
+	int port = relay.getPort();
+	relay.close();
+
+	try (ServerSocket socket = new ServerSocket()) {
+	    socket.bind(new InetSocketAddress(port));
+	}
+
+	try {
+
+	    relay.start();
+	    throw new AssertionError("closed relay server started");
+
+	} catch (IllegalStateException e) {
+	    // expected
+	}
+
+    }
+
+    @Test(timeout = 120000)
+    public void motionServesOneStreamWhateverTheClients() throws Exception {
+
+	int[] single = relayToClients(1);
+	int[] many = relayToClients(CLIENTS);
+
+	// stream connections and control requests of the Motion side
+	assertEquals(1, many[0]);
+	assertEquals(single[0], many[0]);
+	assertEquals(single[1], many[1]);
+
+    }
+
+    /*
+     * Connects the given number of clients to the relay of a new Motion
+     * server, waits for all of them to receive some frames, and returns the
+     * stream connections and the control requests served by Motion.
+     */
+    private int[] relayToClients(int nOfClients) throws Exception {
+
+	FakeMotionServer motionServer = new FakeMotionServer(1, 25, 320, 240);
+	resources.add(motionServer);
+
+	MotionComm motionComm = new MotionComm("127.0.0.1", "test", motionServer.getControlPort());
+	resources.add(motionComm::shutdown);
+
+	MjpegRelayServer relay = new MjpegRelayServer(motionComm, 0);
+	resources.add(relay);
+	relay.start();
+
+	CountDownLatch served = new CountDownLatch(nOfClients);
+	CountDownLatch done = new CountDownLatch(1);
+	AtomicInteger failures = new AtomicInteger();
+	List<Thread> clients = new ArrayList<>();
+
+	for (int i = 0; i < nOfClients; i++) {
+
+	    Thread client = new Thread(() -> {
+
+		try (Socket socket = new Socket("127.0.0.1", relay.getPort())) {
+
+		    socket.setSoTimeout((int) TIMEOUT_MS);
+		    OutputStream out = socket.getOutputStream();
+		    out.write(("GET " + MjpegRelayServer.getStreamPath("1") + " HTTP/1.0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		    out.flush();
+
+		    if (countParts(socket.getInputStream(), FRAMES_PER_CLIENT) < FRAMES_PER_CLIENT)
+			failures.incrementAndGet();
+
+		    served.countDown();
+
+		    // all the clients stay connected until the counts are taken
+		    done.await();
+
+		} catch (IOException | InterruptedException e) {
+
+		    failures.incrementAndGet();
+		    served.countDown();
+
+		}
+
+	    }, "relay-client-" + i);
+
+	    client.setDaemon(true);
+	    client.start();
+	    clients.add(client);
+
+	}
+
+	assertTrue("clients not served in time", served.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+	assertEquals(0, failures.get());
+	assertEquals(nOfClients, relay.getClientsCount());
+
+	int[] motionLoad = { motionServer.getStreamConnectionsCount("1"), motionServer.getControlRequestsCount() };
+
+	done.countDown();
+	for (Thread client : clients)
+	    client.join(TIMEOUT_MS);
+
+	return motionLoad;
+
+    }
+
+    /*
+     * reads the multipart stream until the given number of parts has started,
+     * and returns the parts found
+     */
+    private static int countParts(InputStream in, int parts) throws IOException {
+
+	byte[] buffer = new byte[16384];
+	int found = 0;
+	int matched = 0;
+	int read;
+
+	while (found < parts && (read = in.read(buffer)) > 0) {
+
+	    for (int i = 0; i < read && found < parts; i++) {
+
+		// the first byte of the pattern does not occur again in it
+		if (buffer[i] == PART_TYPE[matched])
+		    matched++;
+		else
+		    matched = buffer[i] == PART_TYPE[0] ? 1 : 0;
+
+		if (matched == PART_TYPE.length) {
+
+		    found++;
+		    matched = 0;
+
+		}
+
+	    }
+
+	}
+
+	return found;
+
+    }
+
+}
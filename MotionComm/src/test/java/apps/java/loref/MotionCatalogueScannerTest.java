@@ -0,0 +1,178 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * The Motion files of a tree are found, in any case of their extensions, by
+ * the sequential and the parallel scans alike, and the sequential scan
+ * returns them one directory after the other. The symbolic links to
+ * directories are not followed.
+ */
+public class MotionCatalogueScannerTest {
+
+    private static final int DAYS = 5;
+    private static final int FILES_PER_DAY = 200;
+
+    private Path root;
+    private final MotionCatalogueScanner scanner = new MotionCatalogueScanner(ZoneId.of("UTC"));
+
+    @Before
+    public void setUp() throws IOException {
+
+	root = Files.createTempDirectory("motion-catalogue");
+
+	for (int day = 1; day <= DAYS; day++) {
+
+	    Path directory = Files.createDirectories(root.resolve("2026010" + day).resolve("camera"));
+
+	    for (int i = 0; i < FILES_PER_DAY; i++) {
+
+		String time = String.format("2026010%d12%02d%02d", day, i / 60, i % 60);
+		Files.createFile(directory.resolve("01-" + time + "-00" + (i % 2 == 0 ? ".jpg" : ".JPG")));
+
+	    }
+
+	    Files.createFile(directory.resolve("01-2026010" + day + "120000.Mp4"));
+	    Files.createFile(directory.resolve("motion.conf"));
+
+	}
+
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+	List<Path> paths = new ArrayList<>();
+
+	try (Stream<Path> tree = Files.walk(root)) {
+	    tree.sorted(Comparator.reverseOrder()).forEach(paths::add);
+	}
+
+	for (Path path : paths)
+	    Files.deleteIfExists(path);
+
+    }
+
+    @Test
+    public void extensionsAreMatchedInAnyCase() {
+
+	Path directory = Paths.get("/var/lib/motion");
+	ZoneId zone = ZoneId.of("UTC");
+
+	assertEquals(MotionFile.Type.SNAPSHOT, MotionFile.parse(directory, "01-20260101120000-00.JPG", zone).getType());
+	assertEquals(MotionFile.Type.MOVIE, MotionFile.parse(directory, "01-20260101120000.WebM", zone).getType());
+	assertNull(MotionFile.parse(directory, "01-20260101120000.jpgx", zone));
+	assertNull(MotionFile.parse(directory, "01-20260101120000.av", zone));
+
+    }
+
+    @Test
+    public void sequentialAndParallelScansFindTheSameFiles() throws IOException {
+
+	Set<String> sequential;
+
+	try (Stream<MotionFile> files = scanner.scanTree(root)) {
+	    sequential = files.map(file -> file.getPath().toString()).collect(Collectors.toCollection(TreeSet::new));
+	}
+
+	Set<String> parallel = ConcurrentHashMap.newKeySet();
+	long count = scanner.scanTreeParallel(root, file -> parallel.add(file.getPath().toString()));
+
+	assertEquals(DAYS * (FILES_PER_DAY + 1), sequential.size());
+	assertEquals(sequential.size(), count);
+	assertEquals(sequential, new TreeSet<>(parallel));
+
+	for (String path : sequential)
+	    assertTrue(path, Files.isRegularFile(Paths.get(path)));
+
+    }
+
+    @Test
+    public void filesComeOneDirectoryAfterTheOther() throws IOException {
+
+	try (Stream<MotionFile> files = scanner.scanTree(root)) {
+
+	    Iterator<MotionFile> iterator = files.iterator();
+
+	    Path directory = iterator.next().getDirectory();
+	    int inDirectory = 1;
+
+	    while (iterator.hasNext() && iterator.next().getDirectory().equals(directory))
+		inDirectory++;
+
+	    assertEquals(FILES_PER_DAY + 1, inDirectory);
+
+	}
+
+    }
+
+
+    @Test(timeout = 60000)
+    public void linkCyclesAreNotFollowed() throws IOException {
+
+	Files.createSymbolicLink(root.resolve("20260101").resolve("camera").resolve("loop"), root);
+
+	long sequential;
+
+	try (Stream<MotionFile> files = scanner.scanTree(root)) {
+	    sequential = files.count();
+	}
+
+	assertEquals(DAYS * (FILES_PER_DAY + 1), sequential);
+	assertEquals(sequential, scanner.scanTreeParallel(root, file -> {
+	}));
+
+    }
+
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+/*
+ * A MotionCommCluster over several stand-in Motion daemons routes the calls
+ * naming a camera to the node of its owner, queries all the nodes in
+ * parallel, leaves out the nodes which are down and forwards the frames of
+ * all the nodes to its listener.
+ */
+public class MotionCommClusterTest {
+
+    private static final long TIMEOUT_MS = 30000;
+    private static final int CONTROL_DELAY_MS = 200;
+
+    private final List<FakeMotionServer> motionServers = new ArrayList<>();
+    private final MotionCommCluster cluster = new MotionCommCluster();
+
+    @After
+    public void tearDown() {
+
+	cluster.shutdown();
+
+	for (FakeMotionServer motionServer : motionServers)
+	    motionServer.close();
+
+    }
+
+    /*
+     * adds a node named "node<index>" for each number of cameras
+     */
+    private void startNodes(int... nOfCameras) throws Exception {
+
+	for (int i = 0; i < nOfCameras.length; i++) {
+
+	    FakeMotionServer motionServer = new FakeMotionServer(nOfCameras[i], 25, 64, 48);
+	    motionServers.add(motionServer);
+	    cluster.addNode("127.0.0.1", "node" + i, motionServer.getControlPort());
+
+	}
+
+    }
+
+    @Test(timeout = 60000)
+    public void camerasAreNamedAndRoutedByOwner() throws Exception {
+
+	startNodes(2, 3, 1);
+
+	assertEquals(Arrays.asList("node0/1", "node0/2", "node1/1", "node1/2", "node1/3", "node2/1"), cluster.getCameraIDs());
+
+	int[] before = controlRequestsCounts();
+	assertTrue(cluster.setParameter("node1/3", "threshold", "1500"));
+	int[] after = controlRequestsCounts();
+
+	assertEquals(before[0], after[0]);
+	assertEquals(before[1] + 1, after[1]);
+	assertEquals(before[2], after[2]);
+
+	try {
+
+	    cluster.startModet("node9/1");
+	    throw new AssertionError("camera of an unknown node routed");
+
+	} catch (IllegalArgumentException e) {
+	    // expected
+	}
+
+    }
+
+    @Test(timeout = 60000)
+    public void nodesAreQueriedInParallel() throws Exception {
+
+	int nOfNodes = 8;
+	int[] nOfCameras = new int[nOfNodes];
+	Arrays.fill(nOfCameras, 4);
+
+	startNodes(nOfCameras);
+
+	// as many threads as requests, so that the nodes are not queued
+	ExecutorService executor = Executors.newCachedThreadPool();
+	cluster.setExecutor(executor);
+	for (MotionComm node : cluster.getNodes())
+	    node.setControlExecutor(executor);
+
+	for (FakeMotionServer motionServer : motionServers)
+	    motionServer.setControlDelay(CONTROL_DELAY_MS);
+
+	try {
+
+	    long start = System.nanoTime();
+	    Map<String, CameraInventory> inventories = cluster.getCameraInventory();
+	    long inventoryMillis = (System.nanoTime() - start) / 1000000L;
+
+	    start = System.nanoTime();
+	    Map<String, String> statuses = cluster.getDetectionStatusesAsync().join();
+	    long statusMillis = (System.nanoTime() - start) / 1000000L;
+
+	    assertEquals(nOfNodes, inventories.size());
+	    assertEquals(nOfNodes * 4, statuses.size());
+
+	    // a few rounds of requests in all, while one node after the other
+	    // would take at least two rounds per node
+	    assertTrue("inventory took " + inventoryMillis + " ms", inventoryMillis < nOfNodes * CONTROL_DELAY_MS);
+	    assertTrue("statuses took " + statusMillis + " ms", statusMillis < nOfNodes * CONTROL_DELAY_MS);
+
+	} finally {
+
+	    executor.shutdown();
+
+	}
+
+    }
+
+    @Test(timeout = 60000)
+    public void nodesDownAreLeftOut() throws Exception {
+
+	startNodes(2, 2, 2);
+
+	for (MotionComm node : cluster.getNodes()) {
+	    node.setControlConnectTimeout(500);
+	    node.setControlReadTimeout(500);
+	}
+
+	motionServers.get(1).close();
+
+	Map<String, CameraInventory> inventories = cluster.getCameraInventory();
+	assertEquals(Arrays.asList("node0", "node2"), new ArrayList<>(inventories.keySet()));
+
+	Map<String, String> statuses = cluster.getDetectionStatusesAsync().join();
+	assertEquals(Arrays.asList("node0/1", "node0/2", "node2/1", "node2/2"), new ArrayList<>(statuses.keySet()));
+
+	assertTrue(cluster.setParameter("node2/1", "threshold", "1500"));
+	assertTrue(!cluster.setParameter("node1/1", "threshold", "1500"));
+
+    }
+
+    @Test(timeout = 60000)
+    public void framesOfAllTheNodesReachTheClusterListener() throws Exception {
+
+	startNodes(1, 2);
+
+	Set<String> frameCameras = ConcurrentHashMap.newKeySet();
+	AtomicInteger frames = new AtomicInteger();
+
+	cluster.setListener(new MotionCommListener() {
+
+	    @Override
+	    public void onNewFrame(String cameraID, byte[] frameImageData, String destination) {
+
+		frameCameras.add(cameraID);
+		frames.incrementAndGet();
+
+	    }
+
+	    @Override
+	    public void statusChanged(String cameraID) {
+	    }
+
+	});
+
+	cluster.captureFrames("node0/1", 2, "arrays", -1, -1, FrameFormat.JPEG);
+	cluster.captureFrames("node1/2", 2, "arrays", -1, -1, FrameFormat.JPEG);
+	awaitCondition(() -> frames.get() == 4);
+
+	assertEquals(2, frameCameras.size());
+	assertTrue(frameCameras.contains("node0/1"));
+	assertTrue(frameCameras.contains("node1/2"));
+	assertEquals(0, motionServers.get(1).getStreamConnectionsCount("1"));
+
+	Set<String> bufferCameras = ConcurrentHashMap.newKeySet();
+	AtomicInteger buffers = new AtomicInteger();
+
+	cluster.setListener(new MotionCommFrameBufferListener() {
+
+	    @Override
+	    public void onNewFrame(String cameraID, FrameBuffer frame, String destination) {
+
+		if (frame.getLength() > 0)
+		    bufferCameras.add(cameraID);
+
+		buffers.incrementAndGet();
+
+	    }
+
+	    @Override
+	    public void statusChanged(String cameraID) {
+	    }
+
+	});
+
+	cluster.captureFrames("node0/1", 2, "buffers", -1, -1, FrameFormat.JPEG);
+	cluster.captureFrames("node1/1", 2, "buffers", -1, -1, FrameFormat.JPEG);
+	awaitCondition(() -> buffers.get() == 4);
+
+	assertEquals(2, bufferCameras.size());
+	assertTrue(bufferCameras.contains("node0/1"));
+	assertTrue(bufferCameras.contains("node1/1"));
+
+    }
+
+    private int[] controlRequestsCounts() {
+
+	int[] counts = new int[motionServers.size()];
+
+	for (int i = 0; i < counts.length; i++)
+	    counts[i] = motionServers.get(i).getControlRequestsCount();
+
+	return counts;
+
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+
+	long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+	while (!condition.getAsBoolean()) {
+
+	    if (System.currentTimeMillis() > deadline)
+		throw new AssertionError("condition not met within " + TIMEOUT_MS + " ms");
+
+	    Thread.sleep(10);
+
+	}
+
+    }
+
+}
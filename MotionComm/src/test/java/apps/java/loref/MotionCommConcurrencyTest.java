@@ -0,0 +1,336 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Stress test of the lifecycle of the frame capturers, the frame pipelines and
+ * the camera streams: many threads start and end captures and subscriptions
+ * on the same cameras at once while frames flow, and every capture must get
+ * exactly its frames, with everything released at the end.
+ */
+public class MotionCommConcurrencyTest {
+
+    private static final int N_OF_CAMERAS = 4;
+    private static final int N_OF_DESTINATIONS = 3;
+    private static final int N_OF_THREADS = 32;
+    private static final int FRAMES_PER_SECOND = 50;
+
+    private static final long DELIVERY_TIMEOUT_MS = 60000;
+
+    private FakeMotionServer motionServer;
+    private MotionComm motionComm;
+
+    private final Map<String, AtomicInteger> deliveredFrames = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+
+	motionServer = new FakeMotionServer(N_OF_CAMERAS, FRAMES_PER_SECOND, 320, 240);
+
+	motionComm = new MotionComm("127.0.0.1", "test", motionServer.getControlPort());
+	motionComm.setStreamKeepWarm(0);
+	motionComm.setListener(new MotionCommListener() {
+
+	    @Override
+	    public void onNewFrame(String cameraID, byte[] frameData, String destination) {
+		deliveredFrames.computeIfAbsent(cameraID + "/" + destination, key -> new AtomicInteger()).incrementAndGet();
+	    }
+
+	    @Override
+	    public void statusChanged(String cameraID) {
+	    }
+
+	});
+
+    }
+
+    @After
+    public void tearDown() {
+
+	motionComm.shutdown();
+	motionServer.close();
+
+    }
+
+    @Test(timeout = 120000)
+    public void captureFramesFromManyThreads() throws Exception {
+
+	Map<String, AtomicInteger> requestedFrames = new ConcurrentHashMap<>();
+
+	runConcurrently(N_OF_THREADS, 40, (thread, iteration, random) -> {
+
+	    String cameraID = String.valueOf(1 + random.nextInt(N_OF_CAMERAS));
+	    String destination = "d" + random.nextInt(N_OF_DESTINATIONS);
+	    int framesToCapture = 1 + random.nextInt(3);
+
+	    // the size and format of a running capture are kept, so the
+	    // destination decides them
+	    boolean passThrough = destination.equals("d0");
+
+	    requestedFrames.computeIfAbsent(cameraID + "/" + destination, key -> new AtomicInteger()).addAndGet(framesToCapture);
+	    motionComm.captureFrames(cameraID, framesToCapture, destination, passThrough ? 0 : 160, passThrough ? 0 : 120, passThrough ? FrameFormat.JPEG : FrameFormat.GIF);
+
+	    if (random.nextInt(8) == 0)
+		Thread.sleep(random.nextInt(100));
+
+	});
+
+	awaitCondition("frames delivered", () -> deliveredCount() == requestedCount(requestedFrames));
+	awaitReleased();
+
+	// no capture may get more frames than it requested, not even late
+	Thread.sleep(200);
+
+	for (Map.Entry<String, AtomicInteger> requested : requestedFrames.entrySet())
+	    assertEquals("frames delivered to " + requested.getKey(), requested.getValue().get(), deliveredFrames.get(requested.getKey()).get());
+
+	assertEquals(requestedFrames.size(), deliveredFrames.size());
+
+    }
+
+    @Test(timeout = 120000)
+    public void subscribeAndCancelWhileCapturing() throws Exception {
+
+	Map<String, AtomicInteger> requestedFrames = new ConcurrentHashMap<>();
+	AtomicLong overdelivered = new AtomicLong();
+	AtomicLong subscriptionFrames = new AtomicLong();
+	List<FrameSubscription> subscriptions = new ArrayList<>();
+
+	runConcurrently(N_OF_THREADS, 30, (thread, iteration, random) -> {
+
+	    String cameraID = String.valueOf(1 + random.nextInt(N_OF_CAMERAS));
+
+	    if (thread % 2 == 0) {
+
+		String destination = "d" + random.nextInt(N_OF_DESTINATIONS);
+		requestedFrames.computeIfAbsent(cameraID + "/" + destination, key -> new AtomicInteger()).incrementAndGet();
+		motionComm.captureFrames(cameraID, 1, destination, 0, 0, FrameFormat.JPEG);
+		return;
+
+	    }
+
+	    int demand = 1 + random.nextInt(4);
+	    CountDownLatch received = new CountDownLatch(demand);
+	    AtomicInteger count = new AtomicInteger();
+
+	    FrameSubscription subscription = motionComm.subscribeFrames(cameraID, "s" + thread, 0, 0, FrameFormat.JPEG, new FrameSubscriber() {
+
+		@Override
+		public void onSubscribe(FrameSubscription subscription) {
+		    subscription.request(demand);
+		}
+
+		@Override
+		public void onFrame(String cameraID, byte[] frameData) {
+
+		    subscriptionFrames.incrementAndGet();
+		    if (count.incrementAndGet() > demand)
+			overdelivered.incrementAndGet();
+		    received.countDown();
+
+		}
+
+		@Override
+		public void onComplete() {
+		}
+
+	    });
+
+	    // some subscriptions are cancelled at once, the others once
+	    // served
+	    if (random.nextBoolean())
+		received.await(5, TimeUnit.SECONDS);
+
+	    subscription.cancel();
+
+	    synchronized (subscriptions) {
+		subscriptions.add(subscription);
+	    }
+
+	});
+
+	awaitCondition("frames delivered", () -> deliveredCount() == requestedCount(requestedFrames));
+	awaitReleased();
+
+	assertEquals("frames beyond the demand of a subscription", 0, overdelivered.get());
+	assertTrue("no frames delivered to the subscriptions", subscriptionFrames.get() > 0);
+
+	for (FrameSubscription subscription : subscriptions)
+	    assertTrue(subscription.isCancelled());
+
+    }
+
+    @Test(timeout = 120000)
+    public void latestFramesAndPreEventBuffersAlongsideCaptures() throws Exception {
+
+	motionComm.setLatestFrameKeepWarm(0);
+
+	Map<String, AtomicInteger> requestedFrames = new ConcurrentHashMap<>();
+	AtomicInteger missingLatestFrames = new AtomicInteger();
+
+	runConcurrently(N_OF_THREADS, 20, (thread, iteration, random) -> {
+
+	    String cameraID = String.valueOf(1 + random.nextInt(N_OF_CAMERAS));
+
+	    switch (thread % 4) {
+
+	    case 0:
+		motionComm.startPreEventBuffer(cameraID, 1000, 1 << 20);
+		Thread.sleep(random.nextInt(50));
+		motionComm.getPreEventFrames(cameraID);
+		motionComm.stopPreEventBuffer(cameraID);
+		break;
+
+	    case 1:
+		if (motionComm.getLatestFrame(cameraID, 10000) == null)
+		    missingLatestFrames.incrementAndGet();
+		break;
+
+	    default:
+		String destination = "d" + random.nextInt(N_OF_DESTINATIONS);
+		requestedFrames.computeIfAbsent(cameraID + "/" + destination, key -> new AtomicInteger()).incrementAndGet();
+		motionComm.captureFrames(cameraID, 1, destination, 0, 0, FrameFormat.JPEG);
+
+	    }
+
+	});
+
+	awaitCondition("frames delivered", () -> deliveredCount() == requestedCount(requestedFrames));
+
+	for (int i = 1; i <= N_OF_CAMERAS; i++)
+	    motionComm.stopPreEventBuffer(String.valueOf(i));
+
+	awaitReleased();
+
+	assertEquals("latest frames not received", 0, missingLatestFrames.get());
+
+    }
+
+    /* helpers */
+
+    private interface Worker {
+	void run(int thread, int iteration, Random random) throws Exception;
+    }
+
+    /*
+     * runs the worker iterations times on each of nOfThreads threads, all
+     * started at once, failing on the first exception
+     */
+    private static void runConcurrently(int nOfThreads, int iterations, Worker worker) throws Exception {
+
+	ExecutorService threads = Executors.newFixedThreadPool(nOfThreads);
+	CountDownLatch start = new CountDownLatch(1);
+	List<Future<?>> results = new ArrayList<>();
+
+	for (int t = 0; t < nOfThreads; t++) {
+
+	    int thread = t;
+
+	    results.add(threads.submit(() -> {
+
+		Random random = new Random(thread);
+		start.await();
+
+		for (int i = 0; i < iterations; i++)
+		    worker.run(thread, i, random);
+
+		return null;
+
+	    }));
+
+	}
+
+	start.countDown();
+
+	try {
+
+	    for (Future<?> result : results)
+		result.get(DELIVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+	} finally {
+	    threads.shutdownNow();
+	}
+
+    }
+
+    private void awaitReleased() throws InterruptedException {
+
+	awaitCondition("capturers released", () -> motionComm.getActiveFrameCapturersCount() == 0);
+	awaitCondition("pipelines released", () -> motionComm.getActiveFramePipelinesCount() == 0);
+	awaitCondition("streams released", () -> motionComm.getActiveStreamersCount() == 0);
+
+    }
+
+    private static void awaitCondition(String description, BooleanSupplier condition) throws InterruptedException {
+
+	long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+
+	while (!condition.getAsBoolean()) {
+
+	    if (System.currentTimeMillis() > deadline)
+		throw new AssertionError("timed out waiting for " + description);
+
+	    Thread.sleep(20);
+
+	}
+
+    }
+
+    private long deliveredCount() {
+	return deliveredFrames.values().stream().mapToLong(AtomicInteger::get).sum();
+    }
+
+    private static long requestedCount(Map<String, AtomicInteger> requestedFrames) {
+	return requestedFrames.values().stream().mapToLong(AtomicInteger::get).sum();
+    }
+
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+/*
+ * The requests to the control port of a Motion instance run in parallel up
+ * to the in-flight limit, and a request which finds no free slot in time
+ * fails instead of returning an empty value.
+ */
+public class MotionCommControlTest {
+
+    private static final int CONTROL_DELAY_MS = 100;
+
+    private FakeMotionServer motionServer;
+    private MotionComm motionComm;
+
+    @After
+    public void tearDown() {
+
+	if (motionComm != null)
+	    motionComm.shutdown();
+
+	if (motionServer != null)
+	    motionServer.close();
+
+    }
+
+    @Test(timeout = 60000)
+    public void inventoryRequestsAreNotSerializedByTheDefaultLimit() throws Exception {
+
+	int nOfCameras = 16;
+
+	motionServer = new FakeMotionServer(nOfCameras, 1, 64, 48);
+	motionComm = new MotionComm("127.0.0.1", "test", motionServer.getControlPort());
+	motionServer.setControlDelay(CONTROL_DELAY_MS);
+
+	// as many threads as requests, so that only the in-flight limit counts
+	ExecutorService controlExecutor = Executors.newCachedThreadPool();
+	motionComm.setControlExecutor(controlExecutor);
+
+	long start = System.nanoTime();
+	CameraInventory inventory = motionComm.getCameraInventory();
+	long elapsedMillis = (System.nanoTime() - start) / 1000000L;
+
+	assertEquals(nOfCameras, inventory.getCameraNames().size());
+
+	for (String name : inventory.getCameraNames())
+	    assertFalse("camera name missing", name.isEmpty());
+
+	// the thread list, then all the camera requests at once; with a
+	// limit of four requests they would take 16 rounds
+	assertTrue("inventory took " + elapsedMillis + " ms", elapsedMillis < 8 * CONTROL_DELAY_MS);
+
+	controlExecutor.shutdown();
+
+    }
+
+    @Test(timeout = 60000)
+    public void requestsWithoutAFreeSlotFail() throws Exception {
+
+	int nOfRequests = 6;
+
+	motionServer = new FakeMotionServer(1, 1, 64, 48);
+	motionComm = new MotionComm("127.0.0.1", "test", motionServer.getControlPort());
+	motionServer.setControlDelay(CONTROL_DELAY_MS * 2);
+
+	motionComm.setControlMaxInFlight(1);
+	motionComm.setControlConnectTimeout(CONTROL_DELAY_MS);
+	motionComm.setControlReadTimeout(CONTROL_DELAY_MS * 3);
+
+	ExecutorService callers = Executors.newFixedThreadPool(nOfRequests);
+	List<CompletableFuture<String>> names = new ArrayList<>();
+
+	try {
+
+	    for (int i = 0; i < nOfRequests; i++)
+		names.add(CompletableFuture.supplyAsync(() -> motionComm.getCameraName("1"), callers));
+
+	    int busy = 0;
+
+	    for (CompletableFuture<String> name : names) {
+
+		try {
+
+		    assertEquals("camera1", name.join());
+
+		} catch (CompletionException e) {
+
+		    assertTrue("unexpected " + e.getCause(), e.getCause() instanceof ControlBusyException);
+		    busy++;
+
+		}
+
+	    }
+
+	    // one slot for 6 requests of 200 ms, waiting 400 ms at most
+	    assertTrue("no request failed for want of a slot", busy > 0);
+
+	} finally {
+
+	    callers.shutdownNow();
+
+	}
+
+    }
+
+    @Test(timeout = 60000)
+    public void bulkOperationsCompleteExceptionallyWithoutAFreeSlot() throws Exception {
+
+	int nOfCameras = 8;
+
+	motionServer = new FakeMotionServer(nOfCameras, 1, 64, 48);
+	motionComm = new MotionComm("127.0.0.1", "test", motionServer.getControlPort());
+	motionServer.setControlDelay(CONTROL_DELAY_MS * 2);
+
+	motionComm.setControlMaxInFlight(1);
+	motionComm.setControlConnectTimeout(CONTROL_DELAY_MS);
+	motionComm.setControlReadTimeout(CONTROL_DELAY_MS * 3);
+
+	List<String> cameraIDs = new ArrayList<>();
+	for (int i = 1; i <= nOfCameras; i++)
+	    cameraIDs.add(String.valueOf(i));
+
+	try {
+
+	    motionComm.applyToCamerasAsync(cameraIDs, motionComm::getCameraName).join();
+	    throw new AssertionError("names read through a single slot");
+
+	} catch (CompletionException e) {
+
+	    assertTrue("unexpected " + e.getCause(), e.getCause() instanceof ControlBusyException);
+
+	}
+
+    }
+
+
+    @Test(timeout = 60000)
+    public void slowFetchDoesNotOverwriteALaterWrite() throws Exception {
+
+	motionServer = new FakeMotionServer(1, 1, 64, 48);
+	motionComm = new MotionComm("127.0.0.1", "test", motionServer.getControlPort());
+
+	// the old name is read when the request arrives, and returned later
+	motionServer.setConfigGetDelay(CONTROL_DELAY_MS * 4);
+	int requests = motionServer.getControlRequestsCount();
+
+	ExecutorService caller = Executors.newSingleThreadExecutor();
+
+	try {
+
+	    CompletableFuture<String> slowName = CompletableFuture.supplyAsync(() -> motionComm.getCameraName("1"), caller);
+
+	    long deadline = System.currentTimeMillis() + 10000;
+	    while (motionServer.getControlRequestsCount() == requests && System.currentTimeMillis() < deadline)
+		Thread.sleep(5);
+
+	    assertTrue(motionComm.setParameter("1", "camera_name", "renamed"));
+	    assertEquals("camera1", slowName.join());
+
+	    // served from the cache, which kept the written value
+	    motionServer.setConfigGetDelay(0);
+	    requests = motionServer.getControlRequestsCount();
+
+	    assertEquals("renamed", motionComm.getCameraName("1"));
+	    assertEquals(requests, motionServer.getControlRequestsCount());
+
+	} finally {
+
+	    caller.shutdownNow();
+
+	}
+
+    }
+
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * The camera streams are opened again when lost, and the frame cut short by
+ * the loss is never delivered, nor is the EXIF thumbnail of a frame taken for
+ * the frame.
+ */
+public class MotionCommReconnectionTest {
+
+    private static final long TIMEOUT_MS = 30000;
+
+    private FakeMotionServer motionServer;
+    private MotionComm motionComm;
+
+    private final List<byte[]> receivedFrames = new ArrayList<>();
+    private final AtomicInteger invalidFrames = new AtomicInteger();
+    private volatile boolean completed = false;
+
+    @Before
+    public void setUp() throws Exception {
+
+	motionServer = new FakeMotionServer(1, 25, 320, 240, true);
+
+	motionComm = new MotionComm("127.0.0.1", "test", motionServer.getControlPort());
+	motionComm.setStreamReconnectDelay(20, 200);
+
+    }
+
+    @After
+    public void tearDown() {
+
+	motionComm.shutdown();
+	motionServer.close();
+
+    }
+
+    @Test(timeout = 60000)
+    public void framesCutByReconnectionsAreDropped() throws Exception {
+
+	FrameSubscription subscription = subscribe();
+
+	for (int cut = 1; cut <= 3; cut++) {
+
+	    int connections = cut;
+
+	    awaitFrames(10);
+	    motionServer.cutStreams();
+	    await("reconnection", () -> motionServer.getStreamConnectionsCount("1") > connections);
+
+	}
+
+	awaitFrames(10);
+	subscription.cancel();
+
+	assertEquals("frames cut short, or thumbnails, delivered", 0, invalidFrames.get());
+	assertTrue(motionComm.getStreamReconnectionsCount() >= 3);
+
+    }
+
+    @Test(timeout = 60000)
+    public void slowResponseHeadersDoNotCauseReconnections() throws Exception {
+
+	// slower than the flush delay, within the control read timeout
+	motionServer.setHeaderDelay(300);
+
+	FrameSubscription subscription = subscribe();
+	awaitFrames(20);
+	subscription.cancel();
+
+	assertEquals(0, motionComm.getStreamReconnectionsCount());
+	assertEquals(1, motionServer.getStreamConnectionsCount("1"));
+	assertEquals(0, invalidFrames.get());
+
+    }
+
+    @Test(timeout = 60000)
+    public void streamHealthFollowsTheConnection() throws Exception {
+
+	motionComm.setStreamMaxReconnectAttempts(2);
+
+	subscribe();
+	awaitFrames(1);
+	assertEquals(StreamHealth.STREAMING, motionComm.getStreamHealth("1"));
+
+	// the streamer gives up once the stream keeps being refused
+	motionServer.setRefuseStreams(true);
+	motionServer.cutStreams();
+	await("streamer stopped", () -> motionComm.getStreamHealth("1") == StreamHealth.STOPPED);
+
+	// the end of the stream reaches the subscriber
+	await("end of the subscription", () -> completed);
+
+	assertEquals(0, motionComm.getActiveStreamersCount());
+	assertEquals(0, motionComm.getActiveFrameCapturersCount());
+
+    }
+
+    @Test(timeout = 60000)
+    public void completionWaitsForTheFrameBeingDelivered() throws Exception {
+
+	motionComm.setStreamMaxReconnectAttempts(1);
+
+	AtomicBoolean inCallback = new AtomicBoolean();
+	AtomicInteger overlaps = new AtomicInteger();
+	AtomicInteger framesAfterCompletion = new AtomicInteger();
+	AtomicInteger slowFrames = new AtomicInteger();
+
+	motionComm.subscribeFrames("1", "slow", 0, 0, FrameFormat.JPEG, new FrameSubscriber() {
+
+	    @Override
+	    public void onSubscribe(FrameSubscription subscription) {
+		subscription.request(Long.MAX_VALUE);
+	    }
+
+	    @Override
+	    public void onFrame(String cameraID, byte[] frameData) {
+
+		if (!inCallback.compareAndSet(false, true))
+		    overlaps.incrementAndGet();
+
+		if (completed)
+		    framesAfterCompletion.incrementAndGet();
+
+		try {
+		    Thread.sleep(300);
+		} catch (InterruptedException e) {
+		    Thread.currentThread().interrupt();
+		}
+
+		slowFrames.incrementAndGet();
+		inCallback.set(false);
+
+	    }
+
+	    @Override
+	    public void onComplete() {
+
+		if (!inCallback.compareAndSet(false, true))
+		    overlaps.incrementAndGet();
+
+		completed = true;
+		inCallback.set(false);
+
+	    }
+
+	});
+
+	// the stream ends while a frame is being delivered, and another waits
+	await("a frame being delivered", () -> inCallback.get());
+	motionServer.setRefuseStreams(true);
+	motionServer.cutStreams();
+	await("end of the subscription", () -> completed);
+
+	assertEquals("subscriber called concurrently", 0, overlaps.get());
+	assertEquals("frames delivered after the completion", 0, framesAfterCompletion.get());
+	assertTrue(slowFrames.get() >= 1);
+
+    }
+
+    @Test(timeout = 60000)
+    public void latestFrameIsNotServedStaleWhileReconnecting() throws Exception {
+
+	motionComm.setStreamMaxReconnectAttempts(1000);
+	motionComm.setStreamKeepWarm(0);
+	motionComm.setLatestFrameMaxAge(300);
+	motionComm.setLatestFrameKeepWarm(1500);
+
+	assertNotNull(motionComm.getLatestFrame("1", 5000));
+
+	motionServer.setRefuseStreams(true);
+	motionServer.cutStreams();
+	await("reconnection", () -> motionComm.getStreamHealth("1") == StreamHealth.RECONNECTING);
+
+	// the frame received before the loss is too old by now
+	Thread.sleep(400);
+	assertNull(motionComm.getLatestFrame("1", 100));
+
+	// idle, and given no frame: the stream is closed all the same
+	await("idle stream closed", () -> motionComm.getActiveFrameCapturersCount() == 0 && motionComm.getActiveStreamersCount() == 0);
+
+	// a frame is served again once the stream is back
+	motionServer.setRefuseStreams(false);
+	assertNotNull(motionComm.getLatestFrame("1", 5000));
+
+    }
+
+    /* helpers */
+
+    private FrameSubscription subscribe() {
+
+	return motionComm.subscribeFrames("1", "test", 0, 0, FrameFormat.JPEG, new FrameSubscriber() {
+
+	    @Override
+	    public void onSubscribe(FrameSubscription subscription) {
+		subscription.request(Long.MAX_VALUE);
+	    }
+
+	    @Override
+	    public void onFrame(String cameraID, byte[] frameData) {
+
+		if (!isServedFrame(frameData))
+		    invalidFrames.incrementAndGet();
+
+		synchronized (receivedFrames) {
+		    receivedFrames.add(frameData);
+		}
+
+	    }
+
+	    @Override
+	    public void onComplete() {
+		completed = true;
+	    }
+
+	});
+
+    }
+
+    private boolean isServedFrame(byte[] frameData) {
+
+	for (int i = 0; i < motionServer.getFramesCount(); i++) {
+
+	    if (Arrays.equals(motionServer.getFrame(i), frameData))
+		return true;
+
+	}
+
+	return false;
+
+    }
+
+    private void awaitFrames(int count) throws InterruptedException {
+
+	int target;
+
+	synchronized (receivedFrames) {
+	    target = receivedFrames.size() + count;
+	}
+
+	await(count + " frames", () -> {
+
+	    synchronized (receivedFrames) {
+		return receivedFrames.size() >= target;
+	    }
+
+	});
+
+    }
+
+    private static void await(String description, BooleanSupplier condition) throws InterruptedException {
+
+	long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+	while (!condition.getAsBoolean()) {
+
+	    if (System.currentTimeMillis() > deadline)
+		throw new AssertionError("timed out waiting for " + description);
+
+	    Thread.sleep(10);
+
+	}
+
+    }
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2018 Lorenzo Failla
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package apps.java.loref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/*
+ * The readers of a StreamRingBuffer read the data across the end of the
+ * ring, a reader left behind by the producer resumes according to its
+ * StreamOverrunPolicy, and the end of the stream comes after the data
+ * written before close().
+ */
+public class StreamRingBufferTest {
+
+    private static final byte[] BOUNDARY = "--B".getBytes(StandardCharsets.US_ASCII);
+    private static final int CAPACITY = 16;
+
+    @Test
+    public void readsWrapAroundTheEndOfTheRing() throws IOException {
+
+	for (StreamOverrunPolicy policy : StreamOverrunPolicy.values()) {
+
+	    StreamRingBuffer ringBuffer = new StreamRingBuffer(CAPACITY, BOUNDARY);
+	    InputStream cursor = ringBuffer.newCursor(policy);
+
+	    byte[] data = bytes(0, 40);
+
+	    // 10 bytes at a time: the third and the fourth writes wrap around
+	    for (int offset = 0; offset < data.length; offset += 10) {
+
+		ringBuffer.write(data, offset, 10);
+		assertArrayEquals(policy.toString(), Arrays.copyOfRange(data, offset, offset + 10), read(cursor, 10));
+
+	    }
+
+	}
+
+    }
+
+    @Test
+    public void laggingReaderDroppingTheOldestDataResumesFromTheOldestValid() throws IOException {
+
+	StreamRingBuffer ringBuffer = new StreamRingBuffer(CAPACITY, BOUNDARY);
+	StreamRingBuffer.Cursor cursor = ringBuffer.newCursor(StreamOverrunPolicy.DROP_OLDEST);
+
+	byte[] data = bytes(0, 40);
+	ringBuffer.write(data, 0, data.length);
+
+	// the last CAPACITY bytes are left
+	assertEquals(40 - CAPACITY, cursor.getDroppedBytes());
+	assertArrayEquals(Arrays.copyOfRange(data, 40 - CAPACITY, 40), read(cursor, CAPACITY));
+
+    }
+
+    @Test
+    public void laggingReaderSkippingToAFrameBoundaryResumesFromAFrame() throws IOException {
+
+	StreamRingBuffer ringBuffer = new StreamRingBuffer(CAPACITY, BOUNDARY);
+	StreamRingBuffer.Cursor cursor = ringBuffer.newCursor(StreamOverrunPolicy.SKIP_TO_FRAME_BOUNDARY);
+
+	// frames of 10 bytes, starting at 0, 10, 20 and 30
+	byte[] data = new byte[40];
+	for (int frame = 0; frame < 4; frame++) {
+
+	    System.arraycopy(BOUNDARY, 0, data, frame * 10, BOUNDARY.length);
+	    Arrays.fill(data, frame * 10 + BOUNDARY.length, frame * 10 + 10, (byte) ('0' + frame));
+
+	}
+
+	ringBuffer.write(data, 0, data.length);
+
+	// the oldest valid byte is at 24, inside the third frame: the fourth is next
+	assertEquals(30, cursor.getDroppedBytes());
+	assertArrayEquals(Arrays.copyOfRange(data, 30, 40), read(cursor, 10));
+
+    }
+
+    @Test
+    public void readersGetTheEndOfTheStreamAfterThePendingData() throws IOException {
+
+	for (StreamOverrunPolicy policy : StreamOverrunPolicy.values()) {
+
+	    StreamRingBuffer ringBuffer = new StreamRingBuffer(CAPACITY, BOUNDARY);
+	    InputStream cursor = ringBuffer.newCursor(policy);
+
+	    byte[] data = bytes(0, 12);
+	    ringBuffer.write(data, 0, data.length);
+	    ringBuffer.close();
+
+	    assertArrayEquals(policy.toString(), data, read(cursor, data.length));
+	    assertEquals(policy.toString(), -1, cursor.read());
+
+	    // a reader coming after the end gets it at once
+	    assertEquals(policy.toString(), -1, ringBuffer.newCursor(policy).read());
+
+	}
+
+    }
+
+    @Test(timeout = 10000)
+    public void waitingReaderIsWokenUpByTheEndOfTheStream() throws Exception {
+
+	StreamRingBuffer ringBuffer = new StreamRingBuffer(CAPACITY, BOUNDARY);
+	InputStream cursor = ringBuffer.newCursor(StreamOverrunPolicy.SKIP_TO_FRAME_BOUNDARY);
+
+	CompletableFuture<Integer> read = CompletableFuture.supplyAsync(() -> {
+
+	    try {
+		return cursor.read();
+	    } catch (IOException e) {
+		throw new RuntimeException(e);
+	    }
+
+	});
+
+	Thread.sleep(100);
+	ringBuffer.close();
+
+	assertEquals(-1, (int) read.get(5, TimeUnit.SECONDS));
+
+    }
+
+    /* helpers */
+
+    private static byte[] bytes(int from, int to) {
+
+	byte[] data = new byte[to - from];
+	for (int i = 0; i < data.length; i++)
+	    data[i] = (byte) (from + i);
+
+	return data;
+
+    }
+
+    /*
+     * reads the given number of bytes, which must be available
+     */
+    private static byte[] read(InputStream cursor, int length) throws IOException {
+
+	byte[] data = new byte[length];
+	int read = 0;
+
+	while (read < length) {
+
+	    int n = cursor.read(data, read, length - read);
+
+	    if (n < 0)
+		throw new IOException("End of the stream after " + read + " bytes");
+
+	    read += n;
+
+	}
+
+	return data;
+
+    }
+
+}